@@ -0,0 +1,79 @@
+package ticketingsystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TicketingDS的购票/退票/查询混合，与Test.test相同的操作分布，每次调用为一次操作
+ * TicketingDS在每次fork开始时构造，不计入测量
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class MixedBenchmark extends RouteParams {
+    TicketingDS tds;
+
+    @Setup(Level.Trial)
+    public void setup(BenchmarkParams params) throws Exception {
+        parseRatio();
+        tds = new TicketingDS(routes, coaches, seats, stations, params.getThreads(), options());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tds.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Passenger {
+        Random rand;
+        ArrayList<Ticket> soldTicket;
+
+        @Setup(Level.Trial)
+        public void setup(ThreadParams params) {
+            rand = new Random(params.getThreadIndex());
+            soldTicket = new ArrayList<>();
+        }
+    }
+
+    @Benchmark
+    public void mixed(Passenger passenger, Blackhole blackhole) {
+        Random rand = passenger.rand;
+        ArrayList<Ticket> soldTicket = passenger.soldTicket;
+        int sel = rand.nextInt(inqpc);
+        int route = rand.nextInt(routes) + 1;
+        int departure = rand.nextInt(stations - 1) + 1;
+        int arrival = departure + rand.nextInt(stations - departure) + 1;
+        if (sel < retpc && soldTicket.size() > 0) {
+            blackhole.consume(tds.refundTicket(soldTicket.remove(rand.nextInt(soldTicket.size()))));
+        } else if (sel < buypc) {
+            Ticket ticket = tds.buyTicket("passenger", route, departure, arrival);
+            if (ticket != null)
+                soldTicket.add(ticket);
+        } else {
+            blackhole.consume(tds.inquiry(route, departure, arrival));
+        }
+    }
+}
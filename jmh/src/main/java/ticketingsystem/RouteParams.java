@@ -0,0 +1,53 @@
+package ticketingsystem;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 各基准测试共用的参数：车次规模、操作比例与TicketingDS的配置
+ * 线程数由JMH的 -t 指定，构造TicketingDS时从BenchmarkParams中取得
+ */
+@State(Scope.Benchmark)
+public abstract class RouteParams {
+    @Param("5")
+    public int routes;
+    @Param("8")
+    public int coaches;
+    @Param("100")
+    public int seats;
+    @Param("10")
+    public int stations;
+    // 退票/购票/查询 的累计百分比，对应Test中的retpc/buypc/inqpc
+    @Param("10/40/100")
+    public String ratio;
+    @Param("SEAT_MAJOR")
+    public TicketingOptions.SeatLayout layout;
+    @Param("SCAN")
+    public TicketingOptions.InquiryMode inquiry;
+    @Param("false")
+    public boolean precheck;
+    @Param("false")
+    public boolean flags;
+    @Param("false")
+    public boolean summary;
+
+    protected int retpc, buypc, inqpc;
+
+    protected void parseRatio() {
+        String[] pc = ratio.split("/");
+        retpc = Integer.parseInt(pc[0]);
+        buypc = Integer.parseInt(pc[1]);
+        inqpc = Integer.parseInt(pc[2]);
+    }
+
+    protected TicketingOptions options() {
+        TicketingOptions options = new TicketingOptions();
+        options.seat_layout = layout;
+        options.inquiry_mode = inquiry;
+        options.availability_precheck = precheck;
+        options.sold_out_flags = flags;
+        options.free_seat_summary = summary;
+        return options;
+    }
+}
@@ -0,0 +1,81 @@
+package ticketingsystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 只测座位占用表的allocateSeat/recycleSeat/query，不包括Ticket的构造和tid生成
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SeatMapBenchmark extends RouteParams {
+    TicketingDS tds;
+
+    @Setup(Level.Trial)
+    public void setup(BenchmarkParams params) throws Exception {
+        parseRatio();
+        tds = new TicketingDS(routes, coaches, seats, stations, params.getThreads(), options());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tds.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Seats {
+        Random rand;
+        // 每张已售座位按 {车次, 座位index, 始发站, 终点站} 存放
+        ArrayList<int[]> sold;
+
+        @Setup(Level.Trial)
+        public void setup(ThreadParams params) {
+            rand = new Random(params.getThreadIndex());
+            sold = new ArrayList<>();
+        }
+    }
+
+    @Benchmark
+    public void seatMap(Seats thread, Blackhole blackhole) throws Exception {
+        Random rand = thread.rand;
+        ArrayList<int[]> sold = thread.sold;
+        int sel = rand.nextInt(inqpc);
+        int route = rand.nextInt(routes) + 1;
+        int departure = rand.nextInt(stations - 1) + 1;
+        int arrival = departure + rand.nextInt(stations - departure) + 1;
+        if (sel < retpc && sold.size() > 0) {
+            int[] seat = sold.remove(rand.nextInt(sold.size()));
+            blackhole.consume(tds.routeSeats(seat[0]).recycleSeat(seat[2], seat[3], seat[1] / seats + 1,
+                    seat[1] % seats + 1));
+        } else if (sel < buypc) {
+            int index = tds.routeSeats(route).allocateSeat(departure, arrival);
+            if (index != SeatBitMap.NO_SEAT)
+                sold.add(new int[]{route, index, departure, arrival});
+        } else {
+            blackhole.consume(tds.routeSeats(route).query(departure, arrival));
+        }
+    }
+}
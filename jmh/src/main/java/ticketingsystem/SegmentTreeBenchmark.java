@@ -0,0 +1,82 @@
+package ticketingsystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 只测SegmentTree的区间更新与区间最小值查询，每个车次一棵树，叶子为各区段的余票
+ * 购票为先查询后更新，多线程时可能使余票短暂为负，只影响后续查询的结果
+ * layout、inquiry等配置参数对本测试没有影响
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SegmentTreeBenchmark extends RouteParams {
+    SegmentTree[] trees;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        parseRatio();
+        trees = new SegmentTree[routes];
+        for (int i = 0; i < routes; i++) {
+            int[] data = new int[stations - 1];
+            Arrays.fill(data, coaches * seats);
+            trees[i] = new SegmentTree(data);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Tickets {
+        Random rand;
+        // 每张车票按 {车次下标, 始发站, 终点站} 存放
+        ArrayList<int[]> sold;
+
+        @Setup(Level.Trial)
+        public void setup(ThreadParams params) {
+            rand = new Random(params.getThreadIndex());
+            sold = new ArrayList<>();
+        }
+    }
+
+    @Benchmark
+    public void segmentTree(Tickets thread, Blackhole blackhole) {
+        Random rand = thread.rand;
+        ArrayList<int[]> sold = thread.sold;
+        int sel = rand.nextInt(inqpc);
+        int route = rand.nextInt(routes);
+        int departure = rand.nextInt(stations - 1) + 1;
+        int arrival = departure + rand.nextInt(stations - departure) + 1;
+        if (sel < retpc && sold.size() > 0) {
+            int[] ticket = sold.remove(rand.nextInt(sold.size()));
+            trees[ticket[0]].update(ticket[1] - 1, ticket[2] - 2, 1);
+        } else if (sel < buypc) {
+            if (trees[route].query(departure - 1, arrival - 2) > 0) {
+                trees[route].update(departure - 1, arrival - 2, -1);
+                sold.add(new int[]{route, departure, arrival});
+            }
+        } else {
+            blackhole.consume(trees[route].query(departure - 1, arrival - 2));
+        }
+    }
+}
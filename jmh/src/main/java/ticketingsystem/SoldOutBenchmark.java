@@ -0,0 +1,94 @@
+package ticketingsystem;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 售完之后的购票高峰：setup中单线程随机购票直到连续失败，已售车票分给各测量线程；
+ * 测量时每个线程以ratio中的退票比例退掉自己的车票，其余为随机区间的购票，绝大多数无票
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SoldOutBenchmark extends RouteParams {
+    TicketingDS tds;
+    ArrayList<ArrayList<Ticket>> sold;
+
+    @Setup(Level.Trial)
+    public void setup(BenchmarkParams params) throws Exception {
+        parseRatio();
+        int threads = params.getThreads();
+        tds = new TicketingDS(routes, coaches, seats, stations, threads, options());
+        sold = new ArrayList<>();
+        for (int i = 0; i < threads; i++)
+            sold.add(new ArrayList<Ticket>());
+        Random rand = new Random(0);
+        for (int failures = 0, n = 0; failures < 100 * routes * stations * stations; ) {
+            int route = rand.nextInt(routes) + 1;
+            int departure = rand.nextInt(stations - 1) + 1;
+            int arrival = departure + rand.nextInt(stations - departure) + 1;
+            Ticket ticket = tds.buyTicket("passenger", route, departure, arrival);
+            if (ticket == null) {
+                failures++;
+            } else {
+                failures = 0;
+                sold.get(n++ % threads).add(ticket);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tds.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Passenger {
+        Random rand;
+        ArrayList<Ticket> soldTicket;
+
+        @Setup(Level.Trial)
+        public void setup(SoldOutBenchmark benchmark, ThreadParams params) {
+            rand = new Random(params.getThreadIndex());
+            soldTicket = benchmark.sold.get(params.getThreadIndex());
+        }
+    }
+
+    @Benchmark
+    public void soldOut(Passenger passenger, Blackhole blackhole) {
+        Random rand = passenger.rand;
+        ArrayList<Ticket> soldTicket = passenger.soldTicket;
+        int route = rand.nextInt(routes) + 1;
+        int departure = rand.nextInt(stations - 1) + 1;
+        int arrival = departure + rand.nextInt(stations - departure) + 1;
+        if (rand.nextInt(inqpc) < retpc && soldTicket.size() > 0) {
+            blackhole.consume(tds.refundTicket(soldTicket.remove(rand.nextInt(soldTicket.size()))));
+        } else {
+            Ticket ticket = tds.buyTicket("passenger", route, departure, arrival);
+            if (ticket != null)
+                soldTicket.add(ticket);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package ticketingsystem;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单写者模式的售票系统：车次分为若干组，每组由一个工作线程独占
+ * 调用方把请求放入工作线程的有界MPSC环形队列，通过CompletableFuture得到结果；
+ * 工作线程成批取出请求，在普通long数组上的座位表（PlainSeatBitMap）上逐个执行，没有任何CAS竞争
+ *
+ * 第route个车次由工作线程 (route - 1) % 工作线程数 负责，
+ * tid为 工作线程内的序号 * 工作线程数 + 工作线程编号
+ */
+public class ActorTicketingSystem implements TicketingSystem, Closeable {
+    // 每个工作线程的队列容量
+    private static final int QUEUE_CAPACITY = 4096;
+    // 工作线程每次最多取出的请求数
+    private static final int BATCH_SIZE = 256;
+    // 队列为空时休眠之前自旋的次数
+    private static final int IDLE_SPINS = 100;
+
+    private final int ROUTE_NUM;
+    private final int SEAT_NUM;
+    private final Worker[] workers;
+
+    public ActorTicketingSystem(int routenum, int coachnum, int seatnum, int stationnum, int workernum) {
+        if (workernum < 1 || workernum > routenum)
+            throw new IllegalArgumentException("工作线程数应在1到车次数之间");
+        ROUTE_NUM = routenum;
+        SEAT_NUM = seatnum;
+        IntervalTable intervals = new IntervalTable(stationnum);
+        workers = new Worker[workernum];
+        for (int i = 0; i < workernum; i++) {
+            int routes = (routenum - i + workernum - 1) / workernum;
+            workers[i] = new Worker(i, routes, coachnum, seatnum, intervals);
+        }
+        for (Worker worker : workers)
+            worker.thread.start();
+    }
+
+    public CompletableFuture<Ticket> buyTicketAsync(String passenger, int route, int departure, int arrival) {
+        Request<Ticket> request = new Request<>(Request.BUY, route, departure, arrival);
+        request.passenger = passenger;
+        return submit(request);
+    }
+
+    public CompletableFuture<Integer> inquiryAsync(int route, int departure, int arrival) {
+        return submit(new Request<Integer>(Request.INQUIRY, route, departure, arrival));
+    }
+
+    public CompletableFuture<Boolean> refundTicketAsync(Ticket ticket) {
+        if (ticket == null || ticket.route < 1 || ticket.route > ROUTE_NUM
+                || ticket.tid % workers.length != (ticket.route - 1) % workers.length)
+            return CompletableFuture.completedFuture(false);
+        Request<Boolean> request = new Request<>(Request.REFUND, ticket.route, ticket.departure, ticket.arrival);
+        request.ticket = ticket;
+        return submit(request);
+    }
+
+    @Override
+    public Ticket buyTicket(String passenger, int route, int departure, int arrival) {
+        return buyTicketAsync(passenger, route, departure, arrival).join();
+    }
+
+    @Override
+    public int inquiry(int route, int departure, int arrival) {
+        return inquiryAsync(route, departure, arrival).join();
+    }
+
+    @Override
+    public boolean refundTicket(Ticket ticket) {
+        return refundTicketAsync(ticket).join();
+    }
+
+    @Override
+    public boolean buyTicketReplay(Ticket ticket) {
+        return false;
+    }
+
+    @Override
+    public boolean refundTicketReplay(Ticket ticket) {
+        return false;
+    }
+
+    private <T> CompletableFuture<T> submit(Request<T> request) {
+        if (request.route < 1 || request.route > ROUTE_NUM)
+            throw new IndexOutOfBoundsException("车次不存在: " + request.route);
+        Worker worker = workers[(request.route - 1) % workers.length];
+        if (!worker.running)
+            throw new IllegalStateException("售票系统已关闭");
+        // 队列满时等待工作线程取走请求
+        while (!worker.queue.offer(request))
+            Thread.yield();
+        if (worker.sleeping)
+            LockSupport.unpark(worker.thread);
+        return request;
+    }
+
+    /**
+     * 停止所有工作线程，已经放入队列的请求仍会执行；不应与提交请求并发调用
+     */
+    @Override
+    public void close() {
+        for (Worker worker : workers) {
+            worker.running = false;
+            LockSupport.unpark(worker.thread);
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 请求本身就是返回给调用方的CompletableFuture，车次为全局车次
+     */
+    private static final class Request<T> extends CompletableFuture<T> {
+        static final byte BUY = 0;
+        static final byte INQUIRY = 1;
+        static final byte REFUND = 2;
+
+        final byte op;
+        final int route;
+        final int departure;
+        final int arrival;
+        String passenger;
+        Ticket ticket;
+
+        Request(byte op, int route, int departure, int arrival) {
+            this.op = op;
+            this.route = route;
+            this.departure = departure;
+            this.arrival = arrival;
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final int index;
+        private final PlainSeatBitMap[] routes_seats;
+        private final MpscRingBuffer<Request<?>> queue = new MpscRingBuffer<>(QUEUE_CAPACITY);
+        private final Thread thread;
+        // 只由工作线程访问
+        private long next_tid;
+        private volatile boolean running = true;
+        private volatile boolean sleeping;
+
+        Worker(int index, int routenum, int coachnum, int seatnum, IntervalTable intervals) {
+            this.index = index;
+            routes_seats = new PlainSeatBitMap[routenum];
+            for (int i = 0; i < routenum; i++)
+                routes_seats[i] = new PlainSeatBitMap(coachnum, seatnum, intervals);
+            thread = new Thread(this, "ticketing-actor-" + index);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Request<?>[] batch = new Request<?>[BATCH_SIZE];
+            int idle = 0;
+            while (true) {
+                int n = queue.drain(batch);
+                for (int i = 0; i < n; i++) {
+                    execute(batch[i]);
+                    batch[i] = null;
+                }
+                if (n > 0) {
+                    idle = 0;
+                } else if (!running) {
+                    return;
+                } else if (++idle < IDLE_SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    // 先声明休眠再检查队列，与submit中先放入请求再检查sleeping配对，不会错过唤醒
+                    sleeping = true;
+                    if (queue.isEmpty() && running)
+                        LockSupport.park(this);
+                    sleeping = false;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void execute(Request<?> request) {
+            try {
+                PlainSeatBitMap seats = routes_seats[(request.route - 1) / workers.length];
+                switch (request.op) {
+                    case Request.BUY: {
+                        int seat = seats.allocateSeat(request.departure, request.arrival);
+                        Ticket ticket = null;
+                        if (seat != SeatBitMap.NO_SEAT) {
+                            ticket = TicketFactory.ConstructTicket(next_tid++ * workers.length + index,
+                                    request.passenger, request.route, request.departure, request.arrival,
+                                    seat / SEAT_NUM + 1, seat % SEAT_NUM + 1);
+                        }
+                        ((Request<Ticket>) request).complete(ticket);
+                        break;
+                    }
+                    case Request.INQUIRY:
+                        ((Request<Integer>) request).complete(seats.query(request.departure, request.arrival));
+                        break;
+                    case Request.REFUND: {
+                        Ticket ticket = request.ticket;
+                        ((Request<Boolean>) request).complete(
+                                seats.recycleSeat(ticket.departure, ticket.arrival, ticket.coach, ticket.seat));
+                        break;
+                    }
+                    default:
+                        throw new IllegalArgumentException("未知的操作: " + request.op);
+                }
+            } catch (RuntimeException e) {
+                // 非法的请求不能使工作线程退出；与TicketingDS一致，非法车票退票失败
+                if (request.op == Request.REFUND)
+                    ((Request<Boolean>) request).complete(false);
+                else
+                    request.completeExceptionally(e);
+            }
+        }
+    }
+}
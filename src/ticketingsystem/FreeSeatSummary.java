@@ -0,0 +1,110 @@
+package ticketingsystem;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 座位主序占用表的空闲座位摘要，用于购票时跳过没有空闲座位的座位块
+ * 每64个座位为一块，每64块为一组，分别记录块、组在每个区段上空闲座位数的上界
+ * 退票在释放座位之前加1，购票在占用座位之后减1，因此计数不会小于实际的空闲座位数：
+ * 某区段的计数为0时，该块（组）内一定没有在此区段空闲的座位，可以整块跳过
+ * 计数为正只说明可能有空闲座位，各区段分别空闲但不同时空闲的块仍需逐个座位检查
+ */
+class FreeSeatSummary {
+    static final int BLOCK_BITS = 6;
+    static final int GROUP_BITS = 12;
+
+    // 区段数
+    private final int ranges;
+    // block_free[block * ranges + j]：第block块在区段j上的空闲座位数上界
+    private final AtomicIntegerArray block_free;
+    // group_free[group * ranges + j]：第group组在区段j上的空闲座位数上界，只有一组时为null
+    private final AtomicIntegerArray group_free;
+
+    FreeSeatSummary(int total_seat_num, int ranges) {
+        this.ranges = ranges;
+        int blocks = (total_seat_num + (1 << BLOCK_BITS) - 1) >>> BLOCK_BITS;
+        block_free = new AtomicIntegerArray(blocks * ranges);
+        for (int b = 0; b < blocks; b++) {
+            int seats = Math.min(1 << BLOCK_BITS, total_seat_num - (b << BLOCK_BITS));
+            for (int j = 0; j < ranges; j++)
+                block_free.set(b * ranges + j, seats);
+        }
+        int groups = (total_seat_num + (1 << GROUP_BITS) - 1) >>> GROUP_BITS;
+        if (groups > 1) {
+            group_free = new AtomicIntegerArray(groups * ranges);
+            for (int g = 0; g < groups; g++) {
+                int seats = Math.min(1 << GROUP_BITS, total_seat_num - (g << GROUP_BITS));
+                for (int j = 0; j < ranges; j++)
+                    group_free.set(g * ranges + j, seats);
+            }
+        } else {
+            group_free = null;
+        }
+    }
+
+    /**
+     * 座位index在区段[low, high)上被占用之后调用
+     */
+    void claim(int index, int low, int high) {
+        adjust(index, low, high, -1);
+    }
+
+    /**
+     * 座位index在区段[low, high)上被释放之前调用
+     */
+    void release(int index, int low, int high) {
+        adjust(index, low, high, 1);
+    }
+
+    /**
+     * @param from  起始座位index
+     * @param total 总座位数
+     * @return 不小于from、可能在区段[low, high)上都空闲的第一个座位index，没有时返回total
+     */
+    int nextCandidate(int from, int low, int high, int total) {
+        int i = from;
+        while (i < total) {
+            if (group_free != null) {
+                int g = i >>> GROUP_BITS;
+                if (!hasFree(group_free, g, low, high)) {
+                    i = (g + 1) << GROUP_BITS;
+                    continue;
+                }
+            }
+            int b = i >>> BLOCK_BITS;
+            if (!hasFree(block_free, b, low, high)) {
+                i = (b + 1) << BLOCK_BITS;
+                continue;
+            }
+            return i;
+        }
+        return total;
+    }
+
+    private boolean hasFree(AtomicIntegerArray free, int unit, int low, int high) {
+        int offset = unit * ranges;
+        for (int j = low; j < high; j++) {
+            if (free.get(offset + j) <= 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void adjust(int index, int low, int high, int delta) {
+        int offset = (index >>> BLOCK_BITS) * ranges;
+        for (int j = low; j < high; j++)
+            block_free.getAndAdd(offset + j, delta);
+        if (group_free != null) {
+            offset = (index >>> GROUP_BITS) * ranges;
+            for (int j = low; j < high; j++)
+                group_free.getAndAdd(offset + j, delta);
+        }
+    }
+
+    /**
+     * @return 摘要占用的内存（字节）
+     */
+    long bytes() {
+        return 16 + block_free.length() * 4L + (group_free == null ? 0 : 16 + group_free.length() * 4L);
+    }
+}
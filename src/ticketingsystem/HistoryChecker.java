@@ -0,0 +1,438 @@
+package ticketingsystem;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * 检查Trace记录的多线程操作历史是否与顺序执行的售票系统一致
+ * 每个操作带有调用与返回时间，其线性化点可以在[调用, 返回]内任意选取，据此：
+ * 1. 车票的"一定持有"窗口为[购票返回, 退票调用]，"可能持有"窗口为[购票调用, 退票返回]，未退票时窗口到无穷
+ * 2. 同一座位上区段重叠的两张车票，一定持有窗口不能相交，否则无论如何选取线性化点都会重复售出
+ * 3. 退票必须对应一张已售出且未退过的车票，且车票信息一致；合法的退票不能被拒绝
+ * 4. 余票查询的结果必须在 [总座位 - 可能被占用的座位数, 总座位 - 一定被占用的座位数] 内，
+ *    无票的购票相当于查询结果为0
+ * 这些条件都是必要条件，检查只会漏报不会误报；按车次划分后各车次独立检查，
+ * 重叠检查再按座位和区段划分，查询检查按时间扫描，只需遍历查询时刻仍在持有的车票
+ *
+ * 用法：java ticketingsystem.HistoryChecker 历史文件 [routenum coachnum seatnum stationnum]
+ */
+public class HistoryChecker {
+    static final int BUY = 0;
+    static final int SOLD_OUT = 1;
+    static final int REFUND = 2;
+    static final int REFUND_FAILED = 3;
+    static final int INQUIRY = 4;
+    // 与Trace输出的行首一致
+    static final String[] NAMES = {"TicketBought", "TicketSoldOut", "TicketRefund", "ErrOfRefund", "RemainTicket"};
+
+    // 最多保留的错误数
+    static final int MAX_ERRORS = 20;
+
+    /**
+     * 历史中的一个操作
+     */
+    static final class Operation {
+        int type;
+        long invoke;
+        long response;
+        int thread;
+        long tid;
+        String passenger;
+        int route, coach, seat, departure, arrival;
+        // 余票查询的结果
+        int left;
+
+        /**
+         * 输出格式：调用时间 返回时间 线程 操作 参数，参数的顺序与Trace原有的输出相同
+         */
+        String toLine() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(invoke).append(' ').append(response).append(' ').append(thread).append(' ').append(NAMES[type]);
+            switch (type) {
+                case SOLD_OUT:
+                    sb.append(' ').append(route).append(' ').append(departure).append(' ').append(arrival);
+                    break;
+                case INQUIRY:
+                    sb.append(' ').append(left).append(' ').append(route).append(' ').append(departure).append(' ').append(arrival);
+                    break;
+                default:
+                    sb.append(' ').append(tid).append(' ').append(passenger).append(' ').append(route).append(' ').append(coach)
+                            .append(' ').append(departure).append(' ').append(arrival).append(' ').append(seat);
+            }
+            return sb.toString();
+        }
+
+        static Operation parse(String line) {
+            String[] f = line.trim().split("\\s+");
+            Operation op = new Operation();
+            op.invoke = Long.parseLong(f[0]);
+            op.response = Long.parseLong(f[1]);
+            op.thread = Integer.parseInt(f[2]);
+            op.type = Arrays.asList(NAMES).indexOf(f[3]);
+            switch (op.type) {
+                case SOLD_OUT:
+                    op.route = Integer.parseInt(f[4]);
+                    op.departure = Integer.parseInt(f[5]);
+                    op.arrival = Integer.parseInt(f[6]);
+                    break;
+                case INQUIRY:
+                    op.left = Integer.parseInt(f[4]);
+                    op.route = Integer.parseInt(f[5]);
+                    op.departure = Integer.parseInt(f[6]);
+                    op.arrival = Integer.parseInt(f[7]);
+                    break;
+                case BUY:
+                case REFUND:
+                case REFUND_FAILED:
+                    op.tid = Long.parseLong(f[4]);
+                    op.passenger = f[5];
+                    op.route = Integer.parseInt(f[6]);
+                    op.coach = Integer.parseInt(f[7]);
+                    op.departure = Integer.parseInt(f[8]);
+                    op.arrival = Integer.parseInt(f[9]);
+                    op.seat = Integer.parseInt(f[10]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("无法解析: " + line);
+            }
+            return op;
+        }
+    }
+
+    /**
+     * 一张售出的车票及其退票
+     */
+    private static final class Holding {
+        final Operation buy;
+        Operation refund;
+        // 座位在本车次内的index
+        final int index;
+        // 在扫描中活动集合里的位置
+        int definite_pos = -1, possible_pos = -1;
+
+        Holding(Operation buy, int index) {
+            this.buy = buy;
+            this.index = index;
+        }
+
+        long possibleStart() {
+            return buy.invoke;
+        }
+
+        long possibleEnd() {
+            return refund == null ? Long.MAX_VALUE : refund.response;
+        }
+
+        long definiteStart() {
+            return buy.response;
+        }
+
+        long definiteEnd() {
+            return refund == null ? Long.MAX_VALUE : refund.invoke;
+        }
+
+        boolean overlaps(int departure, int arrival) {
+            return buy.departure < arrival && departure < buy.arrival;
+        }
+    }
+
+    private final int routenum, coachnum, seatnum, stationnum;
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+
+    public HistoryChecker(int routenum, int coachnum, int seatnum, int stationnum) {
+        this.routenum = routenum;
+        this.coachnum = coachnum;
+        this.seatnum = seatnum;
+        this.stationnum = stationnum;
+    }
+
+    /**
+     * @param history 所有线程的操作，顺序任意
+     * @return 发现的错误，最多MAX_ERRORS条，为空表示通过
+     */
+    public List<String> check(List<Operation> history) {
+        List<List<Holding>> holdings = new ArrayList<>();
+        List<List<Operation>> queries = new ArrayList<>();
+        for (int i = 0; i < routenum; i++) {
+            holdings.add(new ArrayList<Holding>());
+            queries.add(new ArrayList<Operation>());
+        }
+
+        // 购票：车票信息合法、tid唯一
+        Map<Long, Holding> by_tid = new HashMap<>();
+        for (Operation op : history) {
+            if (op.route < 1 || op.route > routenum || op.departure < 1 || op.arrival > stationnum
+                    || op.departure >= op.arrival) {
+                error("非法的车次或区间: " + op.toLine());
+                continue;
+            }
+            if (op.type == BUY) {
+                if (op.coach < 1 || op.coach > coachnum || op.seat < 1 || op.seat > seatnum) {
+                    error("非法的座位: " + op.toLine());
+                    continue;
+                }
+                Holding h = new Holding(op, (op.coach - 1) * seatnum + op.seat - 1);
+                if (by_tid.put(op.tid, h) != null) {
+                    error("重复的tid: " + op.toLine());
+                    continue;
+                }
+                holdings.get(op.route - 1).add(h);
+            } else if (op.type == SOLD_OUT || op.type == INQUIRY) {
+                queries.get(op.route - 1).add(op);
+            }
+        }
+
+        // 退票：对应已售出且未退过的车票
+        List<Operation> refunds = new ArrayList<>();
+        for (Operation op : history) {
+            if (op.type == REFUND || op.type == REFUND_FAILED)
+                refunds.add(op);
+        }
+        refunds.sort(Comparator.comparingLong(op -> op.invoke));
+        for (Operation op : refunds) {
+            Holding h = by_tid.get(op.tid);
+            if (h == null || h.buy.route != op.route || h.buy.coach != op.coach || h.buy.seat != op.seat
+                    || h.buy.departure != op.departure || h.buy.arrival != op.arrival
+                    || !h.buy.passenger.equals(op.passenger)) {
+                if (op.type == REFUND)
+                    error("退票与售出的车票不符: " + op.toLine());
+            } else if (h.refund != null) {
+                if (op.type == REFUND)
+                    error("重复退票: " + op.toLine());
+            } else if (op.response < h.buy.invoke) {
+                error("退票早于购票: " + op.toLine());
+            } else if (op.type == REFUND_FAILED) {
+                error("合法的退票被拒绝: " + op.toLine());
+            } else {
+                h.refund = op;
+            }
+        }
+
+        IntStream.range(0, routenum).parallel().forEach(i -> {
+            checkSeats(holdings.get(i));
+            checkQueries(holdings.get(i), queries.get(i));
+        });
+        return errors.size() > MAX_ERRORS ? new ArrayList<>(errors.subList(0, MAX_ERRORS)) : new ArrayList<>(errors);
+    }
+
+    private void error(String message) {
+        if (errors.size() < MAX_ERRORS)
+            errors.add(message);
+    }
+
+    /**
+     * 按座位、区段划分后，检查区段重叠的车票一定持有窗口是否相交
+     */
+    private void checkSeats(List<Holding> holdings) {
+        List<List<Holding>> by_seat = new ArrayList<>();
+        for (int i = 0; i < coachnum * seatnum; i++)
+            by_seat.add(new ArrayList<Holding>());
+        for (Holding h : holdings) {
+            // 退票调用早于购票返回时一定持有窗口为空
+            if (h.definiteStart() < h.definiteEnd())
+                by_seat.get(h.index).add(h);
+        }
+
+        List<Holding> segment = new ArrayList<>();
+        for (List<Holding> seat : by_seat) {
+            if (seat.size() < 2)
+                continue;
+            seat.sort(Comparator.comparingLong(Holding::definiteStart));
+            for (int j = 1; j < stationnum; j++) {
+                segment.clear();
+                for (Holding h : seat) {
+                    if (h.buy.departure <= j && j < h.buy.arrival)
+                        segment.add(h);
+                }
+                Holding last = null;
+                for (Holding h : segment) {
+                    // 按开始时间排序后，只需与之前结束最晚的窗口比较；时间相等时无法判断先后，不算错误
+                    if (last != null && h.definiteStart() < last.definiteEnd()) {
+                        error("座位重复售出: " + last.buy.toLine() + " / " + h.buy.toLine());
+                        break;
+                    }
+                    if (last == null || h.definiteEnd() > last.definiteEnd())
+                        last = h;
+                }
+            }
+        }
+    }
+
+    // 扫描事件，时间相同时按此顺序处理：可能持有的车票先加入、后移出，一定持有的车票先移出、后加入
+    private static final int POSSIBLE_ADD = 0;
+    private static final int DEFINITE_REMOVE = 1;
+    private static final int QUERY = 2;
+    private static final int DEFINITE_ADD = 3;
+    private static final int POSSIBLE_REMOVE = 4;
+
+    private static final class Event {
+        final long time;
+        final int kind;
+        final Holding holding;
+        final Operation query;
+
+        Event(long time, int kind, Holding holding, Operation query) {
+            this.time = time;
+            this.kind = kind;
+            this.holding = holding;
+            this.query = query;
+        }
+    }
+
+    /**
+     * 按时间扫描，在每个查询的调用时刻统计一定被占用与可能被占用的座位数
+     */
+    private void checkQueries(List<Holding> holdings, List<Operation> queries) {
+        if (queries.isEmpty())
+            return;
+        List<Event> events = new ArrayList<>(holdings.size() * 4 + queries.size());
+        for (Holding h : holdings) {
+            events.add(new Event(h.possibleStart(), POSSIBLE_ADD, h, null));
+            if (h.refund != null)
+                events.add(new Event(h.possibleEnd(), POSSIBLE_REMOVE, h, null));
+            if (h.definiteStart() < h.definiteEnd()) {
+                events.add(new Event(h.definiteStart(), DEFINITE_ADD, h, null));
+                if (h.refund != null)
+                    events.add(new Event(h.definiteEnd(), DEFINITE_REMOVE, h, null));
+            }
+        }
+        for (Operation q : queries)
+            events.add(new Event(q.invoke, QUERY, null, q));
+        events.sort(Comparator.<Event>comparingLong(e -> e.time).thenComparingInt(e -> e.kind));
+
+        // 按购票调用时间排序，用于找出在查询进行期间才开始的购票
+        Holding[] by_start = holdings.toArray(new Holding[0]);
+        Arrays.sort(by_start, Comparator.comparingLong(Holding::possibleStart));
+        long[] starts = new long[by_start.length];
+        for (int i = 0; i < starts.length; i++)
+            starts[i] = by_start[i].possibleStart();
+
+        List<Holding> definite = new ArrayList<>(), possible = new ArrayList<>();
+        int total = coachnum * seatnum;
+        int[] mark = new int[total];
+        int stamp = 0;
+        for (Event e : events) {
+            switch (e.kind) {
+                case POSSIBLE_ADD:
+                    e.holding.possible_pos = add(possible, e.holding);
+                    break;
+                case POSSIBLE_REMOVE:
+                    remove(possible, e.holding, false);
+                    break;
+                case DEFINITE_ADD:
+                    e.holding.definite_pos = add(definite, e.holding);
+                    break;
+                case DEFINITE_REMOVE:
+                    remove(definite, e.holding, true);
+                    break;
+                default:
+                    Operation q = e.query;
+                    int possibly_occupied = 0, definitely_occupied = 0;
+                    stamp++;
+                    for (Holding h : possible) {
+                        if (h.overlaps(q.departure, q.arrival) && mark[h.index] != stamp) {
+                            mark[h.index] = stamp;
+                            possibly_occupied++;
+                        }
+                    }
+                    // 查询进行期间才开始的购票
+                    int from = upperBound(starts, q.invoke);
+                    for (int i = from; i < by_start.length && starts[i] <= q.response; i++) {
+                        Holding h = by_start[i];
+                        if (h.overlaps(q.departure, q.arrival) && mark[h.index] != stamp) {
+                            mark[h.index] = stamp;
+                            possibly_occupied++;
+                        }
+                    }
+                    stamp++;
+                    for (Holding h : definite) {
+                        if (h.definiteEnd() > q.response && h.overlaps(q.departure, q.arrival) && mark[h.index] != stamp) {
+                            mark[h.index] = stamp;
+                            definitely_occupied++;
+                        }
+                    }
+                    int result = q.type == INQUIRY ? q.left : 0;
+                    if (result < total - possibly_occupied || result > total - definitely_occupied) {
+                        error("余票超出范围[" + (total - possibly_occupied) + ", " + (total - definitely_occupied)
+                                + "]: " + q.toLine());
+                    }
+            }
+        }
+    }
+
+    private static int add(List<Holding> set, Holding h) {
+        set.add(h);
+        return set.size() - 1;
+    }
+
+    /**
+     * 与最后一个元素交换后移除，O(1)
+     */
+    private static void remove(List<Holding> set, Holding h, boolean definite) {
+        int pos = definite ? h.definite_pos : h.possible_pos;
+        Holding last = set.remove(set.size() - 1);
+        if (last != h) {
+            set.set(pos, last);
+            if (definite)
+                last.definite_pos = pos;
+            else
+                last.possible_pos = pos;
+        }
+    }
+
+    /**
+     * @return 第一个大于key的位置
+     */
+    private static int upperBound(long[] a, long key) {
+        int low = 0, high = a.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (a[mid] <= key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("usage: HistoryChecker history_file [routenum coachnum seatnum stationnum]");
+            return;
+        }
+        int routenum = Trace.routenum, coachnum = Trace.coachnum, seatnum = Trace.seatnum, stationnum = Trace.stationnum;
+        if (args.length >= 5) {
+            routenum = Integer.parseInt(args[1]);
+            coachnum = Integer.parseInt(args[2]);
+            seatnum = Integer.parseInt(args[3]);
+            stationnum = Integer.parseInt(args[4]);
+        }
+        List<Operation> history = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(args[0]));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.trim().isEmpty())
+                history.add(Operation.parse(line));
+        }
+        reader.close();
+        report(new HistoryChecker(routenum, coachnum, seatnum, stationnum), history);
+    }
+
+    static boolean report(HistoryChecker checker, List<Operation> history) {
+        long start = System.nanoTime();
+        List<String> errors = checker.check(history);
+        long ms = (System.nanoTime() - start) / 1000000;
+        for (String error : errors)
+            System.out.println(error);
+        System.out.println((errors.isEmpty() ? "OK" : "FAILED") + ": " + history.size() + " operations checked in " + ms + "ms");
+        return errors.isEmpty();
+    }
+}
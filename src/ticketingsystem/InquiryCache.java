@@ -0,0 +1,86 @@
+package ticketingsystem;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 余票查询结果缓存：每车次一个按区间编号直接映射的小表，条目记下计算结果时车次的写版本（RouteVersions）
+ * 购票、退票修改座位时版本增加，版本不同的条目不再命中，下次查询时重新计算；
+ * 允许一定陈旧度时，计算时间在该范围内的条目不论版本都直接返回
+ * 条目是不可变对象，读者看到引用即可看到完整的字段（final字段语义），写入冲突时后写者覆盖
+ */
+final class InquiryCache {
+    private static final class Entry {
+        final int interval;
+        final int count;
+        final long version;
+        final long nanos;
+
+        Entry(int interval, int count, long version, long nanos) {
+            this.interval = interval;
+            this.count = count;
+            this.version = version;
+            this.nanos = nanos;
+        }
+    }
+
+    private final Entry[] entries;
+    // 每车次的条目数，2的幂
+    private final int per_route;
+    // 允许的陈旧度（纳秒），为0时只返回与当前版本一致的结果
+    private final long staleness_nanos;
+
+    // 版本一致的命中次数
+    final LongAdder hits = new LongAdder();
+    // 版本已变但在陈旧度范围内的命中次数
+    final LongAdder stale_hits = new LongAdder();
+    // 未命中、重新计算的次数
+    final LongAdder misses = new LongAdder();
+    // 计算期间有写并发、结果未放入缓存的次数
+    final LongAdder uncached = new LongAdder();
+
+    /**
+     * @param route_num       车次数
+     * @param per_route       每车次的条目数，向上取整为2的幂
+     * @param staleness_nanos 允许的陈旧度（纳秒）
+     */
+    InquiryCache(int route_num, int per_route, long staleness_nanos) {
+        int size = 1;
+        while (size < per_route)
+            size <<= 1;
+        this.per_route = size;
+        this.entries = new Entry[route_num * size];
+        this.staleness_nanos = staleness_nanos;
+    }
+
+    /**
+     * @param route    车次下标，从0开始
+     * @param interval 区间编号
+     * @param version  车次当前的写版本，有进行中的写时为-1
+     * @return 可以直接返回的余票，没有时返回-1
+     */
+    int lookup(int route, int interval, long version) {
+        Entry entry = entries[slot(route, interval)];
+        if (entry == null || entry.interval != interval)
+            return -1;
+        if (version >= 0 && entry.version == version) {
+            hits.increment();
+            return entry.count;
+        }
+        if (staleness_nanos > 0 && System.nanoTime() - entry.nanos <= staleness_nanos) {
+            stale_hits.increment();
+            return entry.count;
+        }
+        return -1;
+    }
+
+    /**
+     * 记录在版本version（计算前后都没有写）下得到的余票
+     */
+    void store(int route, int interval, int count, long version) {
+        entries[slot(route, interval)] = new Entry(interval, count, version, System.nanoTime());
+    }
+
+    private int slot(int route, int interval) {
+        return route * per_route + (interval & (per_route - 1));
+    }
+}
@@ -0,0 +1,275 @@
+package ticketingsystem;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 为TicketingSystem记录每个操作、每个车次的纳秒级延迟直方图
+ * 每个线程写自己的记录器，读取时再合并，记录路径上没有共享写
+ * 被包装的是TicketingDS时同时启用座位占用表内部的CAS重试、扫描座位数统计；
+ * 不使用本类包装时，TicketingDS只多一次对null的判断
+ * 批量购票、退票直接转发给被包装的系统，按整批记录在各自的直方图中
+ */
+public class InstrumentedTicketingSystem implements TicketingSystem {
+    static final int BUY = 0;
+    static final int REFUND = 1;
+    static final int INQUIRY = 2;
+    static final int BUY_BATCH = 3;
+    static final int REFUND_BATCH = 4;
+    static final String[] OPERATIONS = {"buyTicket", "refundTicket", "inquiry", "buyTickets", "refundTickets"};
+
+    // 操作直方图的精度，相对误差约3%
+    private static final int OPERATION_SUB_BITS = 5;
+    // 车次直方图数量较多，精度约12%
+    private static final int ROUTE_SUB_BITS = 3;
+
+    private final TicketingSystem delegate;
+    private final int route_num;
+    private final SeatMapStats seat_stats;
+    // 所有线程的记录器，线程结束后其记录仍然保留
+    private final ConcurrentLinkedQueue<Recorder> recorders = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Recorder> recorder = new ThreadLocal<Recorder>() {
+        @Override
+        protected Recorder initialValue() {
+            Recorder r = new Recorder(route_num);
+            recorders.add(r);
+            return r;
+        }
+    };
+
+    /**
+     * 单个线程的记录，只由该线程写入
+     */
+    private static class Recorder {
+        final LatencyHistogram[] operation = new LatencyHistogram[OPERATIONS.length];
+        // 按车次的直方图在第一次用到时才分配
+        final LatencyHistogram[][] route;
+        long sold_out, batch_sold_out;
+
+        Recorder(int route_num) {
+            for (int op = 0; op < OPERATIONS.length; op++)
+                operation[op] = new LatencyHistogram(OPERATION_SUB_BITS);
+            route = new LatencyHistogram[OPERATIONS.length][route_num];
+        }
+
+        void record(int op, int route_index, long nanos) {
+            operation[op].record(nanos);
+            if (route_index >= 0 && route_index < route[op].length) {
+                LatencyHistogram h = route[op][route_index];
+                if (h == null)
+                    route[op][route_index] = h = new LatencyHistogram(ROUTE_SUB_BITS);
+                h.record(nanos);
+            }
+        }
+    }
+
+    /**
+     * 某一时刻合并后的统计
+     */
+    public static class Snapshot {
+        // 按操作合并的直方图，下标为BUY / REFUND / INQUIRY / BUY_BATCH / REFUND_BATCH
+        final LatencyHistogram[] operation = new LatencyHistogram[OPERATIONS.length];
+        // [操作][车次 - 1]，该车次没有记录时为null
+        final LatencyHistogram[][] route;
+        long sold_out, batch_sold_out;
+        long allocations, allocate_retries, seats_scanned, recycle_retries, sold_out_hits;
+        boolean has_seat_stats;
+
+        Snapshot(int route_num) {
+            for (int op = 0; op < OPERATIONS.length; op++)
+                operation[op] = new LatencyHistogram(OPERATION_SUB_BITS);
+            route = new LatencyHistogram[OPERATIONS.length][route_num];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                LatencyHistogram h = operation[op];
+                sb.append(String.format("%-13s count=%d mean=%.0fns p50=%dns p99=%dns p99.9=%dns max=%dns%n",
+                        OPERATIONS[op], h.count(), h.mean(), h.valueAtPercentile(50),
+                        h.valueAtPercentile(99), h.valueAtPercentile(99.9), h.max()));
+            }
+            sb.append("sold out: ").append(sold_out).append(", batches sold out: ").append(batch_sold_out)
+                    .append(System.lineSeparator());
+            if (has_seat_stats) {
+                sb.append(String.format("seat map: allocations=%d allocate CAS retries=%d recycle CAS retries=%d seats scanned/allocation=%.2f sold-out flag hits=%d%n",
+                        allocations, allocate_retries, recycle_retries,
+                        allocations == 0 ? 0 : (double) seats_scanned / allocations, sold_out_hits));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * @param delegate  被包装的售票系统
+     * @param route_num 车次数，用于按车次记录延迟
+     */
+    public InstrumentedTicketingSystem(TicketingSystem delegate, int route_num) {
+        this.delegate = delegate;
+        this.route_num = route_num;
+        this.seat_stats = delegate instanceof TicketingDS ? ((TicketingDS) delegate).enableStats() : null;
+    }
+
+    @Override
+    public Ticket buyTicket(String passenger, int route, int departure, int arrival) {
+        long start = System.nanoTime();
+        Ticket ticket = delegate.buyTicket(passenger, route, departure, arrival);
+        long nanos = System.nanoTime() - start;
+        Recorder r = recorder.get();
+        r.record(BUY, route - 1, nanos);
+        if (ticket == null)
+            r.sold_out++;
+        return ticket;
+    }
+
+    @Override
+    public int inquiry(int route, int departure, int arrival) {
+        long start = System.nanoTime();
+        int result = delegate.inquiry(route, departure, arrival);
+        long nanos = System.nanoTime() - start;
+        recorder.get().record(INQUIRY, route - 1, nanos);
+        return result;
+    }
+
+    @Override
+    public boolean refundTicket(Ticket ticket) {
+        long start = System.nanoTime();
+        boolean result = delegate.refundTicket(ticket);
+        long nanos = System.nanoTime() - start;
+        recorder.get().record(REFUND, ticket == null ? -1 : ticket.route - 1, nanos);
+        return result;
+    }
+
+    /**
+     * 整批记录一次延迟，车次直方图按批量购票的车次记录
+     */
+    @Override
+    public Ticket[] buyTickets(String[] passengers, int route, int departure, int arrival, int count,
+                               SeatPreference preference) {
+        long start = System.nanoTime();
+        Ticket[] tickets = delegate.buyTickets(passengers, route, departure, arrival, count, preference);
+        long nanos = System.nanoTime() - start;
+        Recorder r = recorder.get();
+        r.record(BUY_BATCH, route - 1, nanos);
+        if (tickets == null)
+            r.batch_sold_out++;
+        return tickets;
+    }
+
+    /**
+     * 整批记录一次延迟，一批车票可能属于不同车次，不记录车次直方图
+     */
+    @Override
+    public int refundTickets(Ticket[] tickets) {
+        long start = System.nanoTime();
+        int refunded = delegate.refundTickets(tickets);
+        long nanos = System.nanoTime() - start;
+        recorder.get().record(REFUND_BATCH, -1, nanos);
+        return refunded;
+    }
+
+    @Override
+    public boolean buyTicketReplay(Ticket ticket) {
+        return delegate.buyTicketReplay(ticket);
+    }
+
+    @Override
+    public boolean refundTicketReplay(Ticket ticket) {
+        return delegate.refundTicketReplay(ticket);
+    }
+
+    /**
+     * 合并所有线程的记录，运行中读取时结果是近似的
+     *
+     * @return 统计快照
+     */
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot(route_num);
+        for (Recorder r : recorders) {
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                snapshot.operation[op].add(r.operation[op]);
+                for (int i = 0; i < route_num; i++) {
+                    LatencyHistogram h = r.route[op][i];
+                    if (h == null)
+                        continue;
+                    if (snapshot.route[op][i] == null)
+                        snapshot.route[op][i] = new LatencyHistogram(ROUTE_SUB_BITS);
+                    snapshot.route[op][i].add(h);
+                }
+            }
+            snapshot.sold_out += r.sold_out;
+            snapshot.batch_sold_out += r.batch_sold_out;
+        }
+        if (seat_stats != null) {
+            snapshot.has_seat_stats = true;
+            snapshot.allocations = seat_stats.allocations.sum();
+            snapshot.allocate_retries = seat_stats.allocate_retries.sum();
+            snapshot.seats_scanned = seat_stats.seats_scanned.sum();
+            snapshot.recycle_retries = seat_stats.recycle_retries.sum();
+            snapshot.sold_out_hits = seat_stats.sold_out_hits.sum();
+        }
+        return snapshot;
+    }
+
+    /**
+     * 以 ticketingsystem:type=TicketingStats,name=name 注册到平台MBeanServer
+     *
+     * @param name MBean名
+     * @throws Exception 注册失败
+     */
+    public void registerMBean(String name) throws Exception {
+        ObjectName object_name = new ObjectName("ticketingsystem:type=TicketingStats,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new Stats(), object_name);
+    }
+
+    private class Stats implements TicketingStatsMXBean {
+        @Override
+        public Map<String, Long> getOperationCounts() {
+            Snapshot snapshot = snapshot();
+            Map<String, Long> result = new LinkedHashMap<>();
+            for (int op = 0; op < OPERATIONS.length; op++)
+                result.put(OPERATIONS[op], snapshot.operation[op].count());
+            result.put("buyTicket.soldOut", snapshot.sold_out);
+            result.put("buyTickets.soldOut", snapshot.batch_sold_out);
+            return result;
+        }
+
+        @Override
+        public Map<String, Long> getLatencyNanos() {
+            Snapshot snapshot = snapshot();
+            Map<String, Long> result = new LinkedHashMap<>();
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                LatencyHistogram h = snapshot.operation[op];
+                result.put(OPERATIONS[op] + ".p50", h.valueAtPercentile(50));
+                result.put(OPERATIONS[op] + ".p99", h.valueAtPercentile(99));
+                result.put(OPERATIONS[op] + ".p999", h.valueAtPercentile(99.9));
+                result.put(OPERATIONS[op] + ".max", h.max());
+            }
+            return result;
+        }
+
+        @Override
+        public Map<String, Long> getSeatMapCounters() {
+            Map<String, Long> result = new LinkedHashMap<>();
+            if (seat_stats != null) {
+                result.put("allocations", seat_stats.allocations.sum());
+                result.put("allocateCasRetries", seat_stats.allocate_retries.sum());
+                result.put("seatsScanned", seat_stats.seats_scanned.sum());
+                result.put("recycleCasRetries", seat_stats.recycle_retries.sum());
+                result.put("soldOutFlagHits", seat_stats.sold_out_hits.sum());
+            }
+            long[] cache = delegate instanceof TicketingDS ? ((TicketingDS) delegate).inquiryCacheStats() : null;
+            if (cache != null) {
+                result.put("inquiryCacheHits", cache[0]);
+                result.put("inquiryCacheStaleHits", cache[1]);
+                result.put("inquiryCacheMisses", cache[2]);
+                result.put("inquiryCacheUncached", cache[3]);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ticketingsystem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 每个区间上一次购票的座位index（历史位置），按区间编号存放，代替 ConcurrentHashMap<Long, AtomicInteger>
+ * 历史位置之前的座位对该区间都已被占用，查询和购票都从历史位置开始
+ *
+ * 高32位为版本号，低32位为index。退票只降低index大于退回座位的历史位置，并递增其版本号：
+ * 与之并发、基于旧值向后推进历史位置的购票CAS会失败
+ * 历史位置已不超过退回座位的区间不做修改，这时购票可能在座位释放前越过它并推进历史位置；
+ * 为此退票在释放座位之后、降低历史位置之前递增释放计数，购票在读取历史位置之前读取释放计数，
+ * 推进成功后发现计数变化就把历史位置退回到推进前，刚退回的座位不会被留在历史位置之前
+ */
+final class IntervalCursors {
+    private static final long VERSION = 1L << 32;
+
+    private final AtomicLongArray cursors;
+    // 第id个区间的历史位置位于 offset + id
+    private final int offset;
+    // 释放计数位于所有历史位置之后
+    private final int releases;
+
+    IntervalCursors(int interval_num) {
+        this(interval_num, false);
+    }
+
+    /**
+     * @param padded 前后各留出一个缓存行，不与其他车次的对象共享缓存行
+     */
+    IntervalCursors(int interval_num, boolean padded) {
+        offset = padded ? SeatBitMapFactory.CACHE_LINE_LONGS : 0;
+        releases = offset + interval_num;
+        cursors = new AtomicLongArray(interval_num + 1 + 2 * offset);
+    }
+
+    /**
+     * @return 带版本号的历史位置
+     */
+    long get(int id) {
+        return cursors.get(offset + id);
+    }
+
+    /**
+     * @return 带版本号的历史位置中的index
+     */
+    static int index(long cursor) {
+        return (int) cursor;
+    }
+
+    /**
+     * @return 释放计数，须在读取历史位置之前读取
+     */
+    long releases() {
+        return cursors.get(releases);
+    }
+
+    /**
+     * 购票成功后推进历史位置，期间历史位置被降低时放弃；
+     * 推进后发现查找期间有座位释放，则退回到推进前的位置
+     *
+     * @param id       区间编号
+     * @param expect   开始查找时读到的历史位置
+     * @param released 读取expect之前读到的释放计数
+     * @param index    新的index
+     */
+    void advance(int id, long expect, long released, int index) {
+        if (cursors.compareAndSet(offset + id, expect, (expect & -VERSION) | index) && releases() != released)
+            lower(id, index(expect));
+    }
+
+    /**
+     * 座位释放后、降低历史位置之前调用
+     */
+    void released() {
+        cursors.getAndIncrement(releases);
+    }
+
+    /**
+     * 将历史位置降低到不超过index并递增版本号，已不超过index时不做修改
+     * 用于退回座位时须先调用released
+     */
+    void lower(int id, int index) {
+        long cursor = cursors.get(offset + id);
+        while (index(cursor) > index && !cursors.compareAndSet(offset + id, cursor, ((cursor & -VERSION) + VERSION) | index)) {
+            cursor = cursors.get(offset + id);
+        }
+    }
+
+    /**
+     * 座位index在区段[low, high)上被释放，释放后它所在的连续空闲区段为[run_low, run_high)，
+     * 降低所有可能因此可用的区间的历史位置，即包含于[run_low, run_high)且与[low, high)相交的区间
+     */
+    void lowerRun(IntervalTable intervals, int run_low, int run_high, int low, int high, int index) {
+        released();
+        for (int l = run_low; l < high; l++) {
+            for (int h = Math.max(l, low) + 1; h <= run_high; h++) {
+                lower(intervals.id(l + 1, h + 1), index);
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package ticketingsystem;
+
+/**
+ * 某个TicketingDS中所有(departure, arrival)区间的不可变描述表
+ * 区间编号是[0, interval_num)内的稠密整数，热路径上由编号直接查到区段掩码，
+ * 不需要循环构造探测器，也没有装箱和哈希
+ */
+final class IntervalTable {
+    final int station_num;
+    // 区段数
+    final int ranges;
+    // 区间数
+    final int interval_num;
+    // 每个区间掩码占用的word数
+    final int words;
+
+    // departure * (station_num + 1) + arrival -> 区间编号，不合法的组合为-1
+    private final int[] ids;
+    // 区间覆盖的区段为[low, high)
+    private final int[] lows;
+    private final int[] highs;
+    // 第id个区间第k个word的掩码位于 id * words + k
+    private final long[] masks;
+    // BEST_FIT中每个区间检查空闲区段桶的顺序，第一次用到时计算
+    private volatile int[][] fit_order;
+
+    IntervalTable(int station_num) {
+        this.station_num = station_num;
+        this.ranges = station_num - 1;
+        this.interval_num = station_num * (station_num - 1) / 2;
+        this.words = (ranges + 63) >>> 6;
+
+        ids = new int[(station_num + 1) * (station_num + 1)];
+        java.util.Arrays.fill(ids, -1);
+        lows = new int[interval_num];
+        highs = new int[interval_num];
+        masks = new long[interval_num * words];
+
+        int id = 0;
+        for (int departure = 1; departure < station_num; departure++) {
+            for (int arrival = departure + 1; arrival <= station_num; arrival++) {
+                ids[departure * (station_num + 1) + arrival] = id;
+                lows[id] = departure - 1;
+                highs[id] = arrival - 1;
+                for (int j = departure - 1; j < arrival - 1; j++) {
+                    masks[id * words + (j >>> 6)] |= 1L << j;
+                }
+                id++;
+            }
+        }
+    }
+
+    /**
+     * @param departure 始发站
+     * @param arrival   终点站
+     * @return 区间编号
+     */
+    int id(int departure, int arrival) {
+        return ids[departure * (station_num + 1) + arrival];
+    }
+
+    /**
+     * @return 区间的第一个区段
+     */
+    int low(int id) {
+        return lows[id];
+    }
+
+    /**
+     * @return 区间最后一个区段的下一个区段
+     */
+    int high(int id) {
+        return highs[id];
+    }
+
+    /**
+     * 区段数不超过64时区间的余票检测器
+     */
+    long mask(int id) {
+        return masks[id * words];
+    }
+
+    /**
+     * 区间检测器的第k个word
+     */
+    long wordMask(int id, int k) {
+        return masks[id * words + k];
+    }
+
+    /**
+     * BEST_FIT检查空闲区段桶的顺序：区间[low, high)可以放进起点s <= low、终点e >= high的连续空闲区段[s, e)，
+     * 放入后两侧剩下 (low - s) + (e - high) 个零散区段，按剩下的区段数从少到多排列
+     *
+     * @return 桶编号 s * (区段数 + 1) + e
+     */
+    int[] fitOrder(int id) {
+        int[][] order = fit_order;
+        if (order == null) {
+            synchronized (this) {
+                if (fit_order == null)
+                    fit_order = buildFitOrder();
+                order = fit_order;
+            }
+        }
+        return order[id];
+    }
+
+    private int[][] buildFitOrder() {
+        int[][] order = new int[interval_num][];
+        for (int id = 0; id < interval_num; id++) {
+            int low = lows[id], high = highs[id];
+            order[id] = new int[(low + 1) * (ranges - high + 1)];
+            int n = 0;
+            for (int waste = 0; waste <= low + ranges - high; waste++) {
+                for (int s = low; s >= 0; s--) {
+                    int e = high + waste - (low - s);
+                    if (e >= high && e <= ranges)
+                        order[id][n++] = s * (ranges + 1) + e;
+                }
+            }
+        }
+        return order;
+    }
+}
@@ -0,0 +1,92 @@
+package ticketingsystem;
+
+/**
+ * 对数线性分桶的延迟直方图，与HdrHistogram的分桶方式相同：
+ * 小于 2^sub_bits 的值各占一个桶，之后每个2的幂区间再均分为 2^sub_bits 个桶，相对误差不超过 2^-sub_bits
+ * 只允许一个线程写入，其他线程合并读取时得到的是近似的快照
+ */
+class LatencyHistogram {
+    // 可记录的最大值为 2^MAX_EXPONENT - 1 纳秒（约68秒），更大的值记入最后一个桶
+    static final int MAX_EXPONENT = 36;
+
+    private final int sub_bits;
+    private final long[] counts;
+    private long total_count;
+    private long total_value;
+    private long max_value;
+
+    LatencyHistogram(int sub_bits) {
+        this.sub_bits = sub_bits;
+        this.counts = new long[(MAX_EXPONENT - sub_bits + 1) << sub_bits];
+    }
+
+    void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts[index(value)]++;
+        total_count++;
+        total_value += value;
+        if (value > max_value)
+            max_value = value;
+    }
+
+    /**
+     * 把另一个直方图的计数累加到本直方图，两者的精度必须相同
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+        total_count += other.total_count;
+        total_value += other.total_value;
+        max_value = Math.max(max_value, other.max_value);
+    }
+
+    long count() {
+        return total_count;
+    }
+
+    long max() {
+        return max_value;
+    }
+
+    double mean() {
+        return total_count == 0 ? 0 : (double) total_value / total_count;
+    }
+
+    /**
+     * @param percentile 百分位，如99.9
+     * @return 至少percentile%的记录值不超过的值，取所在桶的上界
+     */
+    long valueAtPercentile(double percentile) {
+        if (total_count == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * total_count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target)
+                return Math.min(max_value, highestEquivalent(i));
+        }
+        return max_value;
+    }
+
+    private int index(long value) {
+        int sub_count = 1 << sub_bits;
+        if (value < sub_count)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT)
+            return counts.length - 1;
+        int shift = exponent - sub_bits;
+        return ((shift + 1) << sub_bits) + (int) (value >>> shift) - sub_count;
+    }
+
+    private long highestEquivalent(int index) {
+        int sub_count = 1 << sub_bits;
+        if (index < sub_count)
+            return index;
+        int shift = (index >>> sub_bits) - 1;
+        long low = (long) (sub_count + (index & (sub_count - 1))) << shift;
+        return low + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,81 @@
+package ticketingsystem;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 有界的多生产者单消费者环形队列
+ * 每个槽位有一个序号：等于pos时可由第pos个生产者写入，等于pos + 1时可由消费者读取，
+ * 消费者读完后设为pos + capacity，留给下一轮的生产者
+ * 生产者只在tail上CAS竞争，消费者的head只有自己访问
+ */
+final class MpscRingBuffer<E> {
+    private final int mask;
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // 只由消费者线程访问
+    private long head;
+
+    /**
+     * @param capacity 容量，向上取为2的幂
+     */
+    MpscRingBuffer(int capacity) {
+        int n = 1;
+        while (n < capacity)
+            n <<= 1;
+        mask = n - 1;
+        elements = new Object[n];
+        sequences = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++)
+            sequences.set(i, i);
+    }
+
+    /**
+     * 放入一个元素，队列满时返回false
+     * 发布元素使用volatile写，之后读取消费者是否休眠的线程不会错过唤醒
+     */
+    boolean offer(E element) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements[index] = element;
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 取出至多batch.length个元素，只能由消费者线程调用
+     *
+     * @return 取出的元素数
+     */
+    @SuppressWarnings("unchecked")
+    int drain(E[] batch) {
+        int n = 0;
+        while (n < batch.length) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1)
+                break;
+            batch[n++] = (E) elements[index];
+            elements[index] = null;
+            sequences.lazySet(index, head + mask + 1);
+            head++;
+        }
+        return n;
+    }
+
+    /**
+     * @return 消费者线程看到的队列是否为空
+     */
+    boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+}
@@ -0,0 +1,285 @@
+package ticketingsystem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 区段数超过64时的座位主序占用表：每个座位占用 ceil(区段数 / 64) 个连续的long，
+ * 第k个long的第j位表示第 k * 64 + j 个区段是否被占用
+ * 多个word的占用按word顺序逐个CAS，某个word冲突时撤销已占用的word；
+ * 每个座位有一个写版本，判断售完和统计余票时在没有进行中的写时读取，不会把之后被撤销的部分占用当作已售
+ */
+class MultiWordSeatBitMap extends SeatBitMap {
+    private final AtomicLongArray seat_bit_map;
+    // 本车次在共享数组中的起始位置
+    private final int base;
+    // 相邻座位间隔的long数，不小于每个座位占用的word数
+    private final int stride;
+
+    // 记录每个区间的上一次购票index
+    private final IntervalCursors history;
+    // 每个座位的写版本，占用和释放座位时递增
+    private final SeatVersions versions;
+
+    public MultiWordSeatBitMap(int coach_num, int seat_num, IntervalTable intervals, boolean padded,
+                               AtomicLongArray seat_bit_map, int base, int stride) {
+        super(coach_num, seat_num, intervals);
+
+        this.seat_bit_map = seat_bit_map;
+        this.base = base;
+        this.stride = stride;
+        this.history = new IntervalCursors(intervals.interval_num, padded);
+        this.versions = new SeatVersions(total_seat_num);
+    }
+
+    /**
+     * @param station_num 站点数
+     * @return 每个座位需要的word数
+     */
+    static int wordsPerSeat(int station_num) {
+        return (station_num - 1 + 63) >>> 6;
+    }
+
+    @Override
+    public int allocateSeat(int departure, int arrival) {
+        int interval = intervals.id(departure, arrival);
+        if (knownSoldOut(interval)) {
+            if (stats != null)
+                stats.sold_out_hits.increment();
+            return NO_SEAT;
+        }
+        long release_state = releaseState();
+        long released = history.releases();
+        long curr_history = history.get(interval);
+        int start = IntervalCursors.index(curr_history);
+        // 第一遍不等待进行中的写，部分占用的座位只是被跳过；没有找到时按没有进行中的写的状态再确认一遍
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = start; i < total_seat_num; i++) {
+                if (pass == 0 ? isFree(base + i * stride, interval) && claim(i, interval) : claimStable(i, interval)) {
+                    // 更新最近购票位
+                    history.advance(interval, curr_history, released, i + 1);
+                    if (stats != null) {
+                        stats.allocations.increment();
+                        stats.seats_scanned.add(pass * (total_seat_num - start) + i + 1 - start);
+                    }
+                    return i;
+                }
+            }
+        }
+        markSoldOut(interval, release_state);
+        if (stats != null) {
+            stats.allocations.increment();
+            stats.seats_scanned.add(2 * (total_seat_num - start));
+        }
+        return NO_SEAT;
+    }
+
+    @Override
+    public boolean recycleSeat(int departure, int arrival, int coach, int seat) throws Exception {
+        int index = (coach - 1) * seat_num + seat - 1;
+        int slot = base + index * stride;
+        int interval = intervals.id(departure, arrival);
+        int low = intervals.low(interval), high = intervals.high(interval);
+        int first = low >>> 6, last = (high - 1) >>> 6;
+
+        // 在区间内的bit都应该是1，否则不是本座位售出的车票
+        long version;
+        boolean held;
+        do {
+            version = versions.readBegin(index);
+            held = isHeld(slot, interval);
+        } while (!versions.validate(index, version));
+        if (!held)
+            return false;
+
+        beginRelease();
+        try {
+            versions.beginWrite(index);
+            try {
+                if (!clear(slot, interval, first, last))
+                    return false;
+            } finally {
+                versions.endWrite(index);
+            }
+
+            // 释放之后再读取连续空闲区段，与之并发的相邻退票中至少有一个能看到合并后的空闲区段
+            int run_low = low, run_high = high;
+            while (run_low > 0 && !isOccupied(slot, run_low - 1))
+                run_low--;
+            while (run_high < ranges && !isOccupied(slot, run_high))
+                run_high++;
+            history.lowerRun(intervals, run_low, run_high, low, high, index);
+        } finally {
+            endRelease();
+        }
+        return true;
+    }
+
+    @Override
+    public int query(int departure, int arrival) {
+        int interval = intervals.id(departure, arrival);
+        return count(IntervalCursors.index(history.get(interval)), interval);
+    }
+
+    @Override
+    public int scanQuery(int departure, int arrival) {
+        return count(0, intervals.id(departure, arrival));
+    }
+
+    @Override
+    public long seatWordBytes() {
+        return (long) total_seat_num * stride * 8 + versions.bytes();
+    }
+
+    /**
+     * 一次遍历得到所有区间的余票，空闲区段可以跨越word
+     */
+    @Override
+    public void queryAll(int[][] matrix) {
+        int from = total_seat_num;
+        for (int id = 0; id < intervals.interval_num; id++)
+            from = Math.min(from, IntervalCursors.index(history.get(id)));
+        int words = intervals.words;
+        int[] runs = newRunCounts();
+        long[] seat_words = new long[words];
+        for (int i = from; i < total_seat_num; i++) {
+            int slot = base + i * stride, run_start = -1;
+            long version;
+            do {
+                version = versions.readBegin(i);
+                for (int k = 0; k < words; k++)
+                    seat_words[k] = seat_bit_map.get(slot + k);
+            } while (!versions.validate(i, version));
+            for (int k = 0; k < words; k++)
+                run_start = addWordRuns(runs, seat_words[k], k, run_start);
+            closeRun(runs, run_start);
+        }
+        fillMatrix(runs, matrix);
+    }
+
+    @Override
+    public boolean occupySeat(int departure, int arrival, int coach, int seat) {
+        if (coach < 1 || coach > coach_num || seat < 1 || seat > seat_num)
+            return false;
+        return claim((coach - 1) * seat_num + seat - 1, intervals.id(departure, arrival));
+    }
+
+    @Override
+    long seatWord(int index, int k) {
+        return seat_bit_map.get(base + index * stride + k);
+    }
+
+    private int count(int from, int interval) {
+        int count = 0;
+        for (int i = from; i < total_seat_num; i++) {
+            if (stableFree(i, interval))
+                count++;
+        }
+        return count;
+    }
+
+    private boolean isOccupied(int slot, int range) {
+        return (seat_bit_map.get(slot + (range >>> 6)) >>> range & 1) != 0;
+    }
+
+    private boolean isFree(int slot, int interval) {
+        for (int k = intervals.low(interval) >>> 6; k <= (intervals.high(interval) - 1) >>> 6; k++) {
+            if ((seat_bit_map.get(slot + k) & intervals.wordMask(interval, k)) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private boolean isHeld(int slot, int interval) {
+        for (int k = intervals.low(interval) >>> 6; k <= (intervals.high(interval) - 1) >>> 6; k++) {
+            long detector = intervals.wordMask(interval, k);
+            if ((seat_bit_map.get(slot + k) & detector) != detector)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 没有进行中的写时座位index在区间内是否空闲
+     */
+    private boolean stableFree(int index, int interval) {
+        int slot = base + index * stride;
+        while (true) {
+            long version = versions.readBegin(index);
+            boolean free = isFree(slot, interval);
+            if (versions.validate(index, version))
+                return free;
+        }
+    }
+
+    /**
+     * 座位确认空闲时占用，占用失败说明期间有写，重新确认
+     *
+     * @return 占用成功时返回true，座位确认已被占用时返回false
+     */
+    private boolean claimStable(int index, int interval) {
+        while (stableFree(index, interval)) {
+            if (claim(index, interval))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * 按word顺序逐个占用区段，某个word已被占用时撤销之前的word
+     * 撤销前其他线程可能看到部分占用，只有不需要确切结果的查找会因此跳过该座位
+     *
+     * @return 全部word占用成功时返回true
+     */
+    private boolean claim(int index, int interval) {
+        int slot = base + index * stride;
+        int first = intervals.low(interval) >>> 6, last = (intervals.high(interval) - 1) >>> 6;
+        versions.beginWrite(index);
+        try {
+            for (int k = first; k <= last; k++) {
+                long detector = intervals.wordMask(interval, k);
+                long seat_flag_bit = seat_bit_map.get(slot + k);
+                while (true) {
+                    if ((seat_flag_bit & detector) != 0) {
+                        for (int j = first; j < k; j++)
+                            seat_bit_map.getAndAdd(slot + j, -intervals.wordMask(interval, j));
+                        return false;
+                    }
+                    if (seat_bit_map.compareAndSet(slot + k, seat_flag_bit, seat_flag_bit | detector))
+                        break;
+                    if (stats != null)
+                        stats.allocate_retries.increment();
+                    seat_flag_bit = seat_bit_map.get(slot + k);
+                }
+            }
+            return true;
+        } finally {
+            versions.endWrite(index);
+        }
+    }
+
+    /**
+     * 逐个word清除区间的bit，每个word在CAS时确认区间的bit都是1；
+     * 某个word不满足（与之并发的重复或伪造退票已清除）时恢复本次清除的word
+     *
+     * @return 区间的bit都是1并已清除时返回true
+     */
+    private boolean clear(int slot, int interval, int first, int last) {
+        for (int k = first; k <= last; k++) {
+            long detector = intervals.wordMask(interval, k);
+            long seat_flag_bit = seat_bit_map.get(slot + k);
+            while (true) {
+                if ((seat_flag_bit & detector) != detector) {
+                    for (int j = first; j < k; j++)
+                        seat_bit_map.getAndAccumulate(slot + j, intervals.wordMask(interval, j), (w, m) -> w | m);
+                    return false;
+                }
+                if (seat_bit_map.compareAndSet(slot + k, seat_flag_bit, seat_flag_bit & ~detector))
+                    break;
+                if (stats != null)
+                    stats.recycle_retries.increment();
+                seat_flag_bit = seat_bit_map.get(slot + k);
+            }
+        }
+        return true;
+    }
+}
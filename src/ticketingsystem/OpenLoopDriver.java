@@ -0,0 +1,290 @@
+package ticketingsystem;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 开环负载驱动：大量大部分时间空闲的客户端会话，总到达率固定（泊松过程）或按记录的速率曲线变化
+ * 每个会话按指数分布的间隔计划下一个请求，请求的延迟从计划时间算起，
+ * 系统变慢时排队等待的时间也计入延迟，修正了闭环测试中的协调遗漏（coordinated omission）
+ *
+ * 有虚拟线程（JDK 21及以上）时每个会话一个虚拟线程；否则所有会话作为定时任务由固定数量的平台线程执行，
+ * 平台线程全忙时请求推迟发出，推迟的时间同样计入延迟
+ */
+class OpenLoopDriver {
+    static final String[] OPERATIONS = {"buyTicket", "refundTicket", "inquiry"};
+    private static final int BUY = 0, REFUND = 1, INQUIRY = 2;
+    // 直方图按会话分组，减少记录时的锁竞争
+    private static final int STRIPES = 64;
+    private static final int SUB_BITS = 5;
+    // 积分速率曲线的时间片
+    private static final long SLICE_NANOS = 10_000_000L;
+
+    private final int clients;
+    // 速率曲线，第i个点为 (curve_seconds[i], curve_rates[i])，点之间线性插值，最后一个点之后保持不变
+    private final double[] curve_seconds;
+    private final double[] curve_rates;
+    // 定时任务方式下的平台线程数
+    private final int fallback_threads;
+    private final int retpc, buypc, inqpc;
+
+    private final LatencyHistogram[][] corrected = new LatencyHistogram[STRIPES][OPERATIONS.length];
+    private final LatencyHistogram[][] service = new LatencyHistogram[STRIPES][OPERATIONS.length];
+
+    private TicketingSystem system;
+    private int routenum, stationnum;
+    private long start, end;
+
+    /**
+     * @param clients          客户端会话数
+     * @param curve_seconds    速率曲线的时间点（秒），只有一个点时为固定速率
+     * @param curve_rates      各时间点的总到达率（次/秒）
+     * @param fallback_threads 没有虚拟线程时的平台线程数
+     * @param retpc            退票百分比上界，与Test相同
+     * @param buypc            购票百分比上界
+     * @param inqpc            查询百分比上界
+     */
+    OpenLoopDriver(int clients, double[] curve_seconds, double[] curve_rates, int fallback_threads,
+                   int retpc, int buypc, int inqpc) {
+        this.clients = clients;
+        this.curve_seconds = curve_seconds;
+        this.curve_rates = curve_rates;
+        this.fallback_threads = fallback_threads;
+        this.retpc = retpc;
+        this.buypc = buypc;
+        this.inqpc = inqpc;
+        for (int i = 0; i < STRIPES; i++) {
+            for (int op = 0; op < OPERATIONS.length; op++) {
+                corrected[i][op] = new LatencyHistogram(SUB_BITS);
+                service[i][op] = new LatencyHistogram(SUB_BITS);
+            }
+        }
+    }
+
+    /**
+     * 读取速率曲线文件，每行为“秒 次/秒”，#开头的行为注释
+     *
+     * @return {时间点, 速率}
+     */
+    static double[][] readCurve(String file) throws IOException {
+        List<double[]> points = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] fields = line.split("\\s+");
+            points.add(new double[]{Double.parseDouble(fields[0]), Double.parseDouble(fields[1])});
+        }
+        if (points.isEmpty())
+            throw new IllegalArgumentException("速率曲线为空: " + file);
+        double[][] curve = new double[2][points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            curve[0][i] = points.get(i)[0];
+            curve[1][i] = points.get(i)[1];
+        }
+        return curve;
+    }
+
+    /**
+     * @return 开始后seconds秒时的总到达率
+     */
+    double rate(double seconds) {
+        if (seconds <= curve_seconds[0])
+            return curve_rates[0];
+        for (int i = 1; i < curve_seconds.length; i++) {
+            if (seconds < curve_seconds[i]) {
+                double f = (seconds - curve_seconds[i - 1]) / (curve_seconds[i] - curve_seconds[i - 1]);
+                return curve_rates[i - 1] + f * (curve_rates[i] - curve_rates[i - 1]);
+            }
+        }
+        return curve_rates[curve_rates.length - 1];
+    }
+
+    /**
+     * @return 虚拟线程工厂，JDK不支持时为null
+     */
+    static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 对system运行seconds秒的开环负载
+     *
+     * @return 是否使用了虚拟线程
+     */
+    boolean run(TicketingSystem system, int routenum, int stationnum, double seconds) throws InterruptedException {
+        this.system = system;
+        this.routenum = routenum;
+        this.stationnum = stationnum;
+        // 先建好所有会话，开始时间之后的计划才不受准备工作的影响
+        Session[] sessions = new Session[clients];
+        for (int i = 0; i < clients; i++)
+            sessions[i] = new Session(i);
+        ThreadFactory factory = virtualThreadFactory();
+        start = System.nanoTime();
+        end = start + (long) (seconds * 1e9);
+        for (Session session : sessions) {
+            session.intended = start;
+            session.schedule();
+        }
+        if (factory != null) {
+            Thread[] threads = new Thread[clients];
+            for (int i = 0; i < clients; i++) {
+                final Session session = sessions[i];
+                threads[i] = factory.newThread(() -> {
+                    while (session.intended < end) {
+                        long wait = session.intended - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                            continue;
+                        }
+                        session.step();
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            return true;
+        }
+
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(fallback_threads);
+        final AtomicInteger running = new AtomicInteger(clients);
+        for (int i = 0; i < clients; i++) {
+            final Session session = sessions[i];
+            if (session.intended >= end) {
+                if (running.decrementAndGet() == 0)
+                    executor.shutdown();
+                continue;
+            }
+            executor.schedule(new Runnable() {
+                public void run() {
+                    session.step();
+                    if (session.intended < end)
+                        executor.schedule(this, session.intended - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    else if (running.decrementAndGet() == 0)
+                        executor.shutdown();
+                }
+            }, session.intended - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return false;
+    }
+
+    /**
+     * 一个客户端会话，同一时刻只由一个线程执行
+     */
+    private final class Session {
+        private final int stripe;
+        private final ArrayList<Ticket> soldTicket = new ArrayList<>();
+        // 下一个请求的计划时间
+        long intended;
+
+        Session(int id) {
+            stripe = id % STRIPES;
+        }
+
+        /**
+         * 计划下一个请求：取服从Exp(1)的目标值，按时间片累加速率曲线的积分直到达到目标，
+         * 速率变化时到达间隔随之变化（时间变换法），固定速率时即为指数分布的间隔
+         */
+        void schedule() {
+            double target = -Math.log(1 - ThreadLocalRandom.current().nextDouble());
+            while (intended < end) {
+                double per_second = rate((intended - start) / 1e9) / clients;
+                double mass = per_second * SLICE_NANOS / 1e9;
+                if (mass >= target) {
+                    intended += (long) (target / per_second * 1e9);
+                    return;
+                }
+                target -= mass;
+                intended += SLICE_NANOS;
+            }
+        }
+
+        /**
+         * 执行计划时间已到的请求并计划下一个
+         */
+        void step() {
+            ThreadLocalRandom rand = ThreadLocalRandom.current();
+            int sel = rand.nextInt(inqpc);
+            int route = rand.nextInt(routenum) + 1;
+            int departure = rand.nextInt(stationnum - 1) + 1;
+            int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+            int op;
+            long begin = System.nanoTime();
+            if (sel < retpc && soldTicket.size() > 0) {
+                op = REFUND;
+                system.refundTicket(soldTicket.remove(rand.nextInt(soldTicket.size())));
+            } else if (sel < buypc) {
+                op = BUY;
+                Ticket ticket = system.buyTicket("passenger", route, departure, arrival);
+                if (ticket != null)
+                    soldTicket.add(ticket);
+            } else {
+                op = INQUIRY;
+                system.inquiry(route, departure, arrival);
+            }
+            long done = System.nanoTime();
+            synchronized (corrected[stripe]) {
+                corrected[stripe][op].record(done - intended);
+                service[stripe][op].record(done - begin);
+            }
+            schedule();
+        }
+    }
+
+    /**
+     * 合并所有分组的直方图
+     *
+     * @param from_intended 为true时为从计划时间算起的延迟，否则为实际执行时间
+     */
+    LatencyHistogram[] merged(boolean from_intended) {
+        LatencyHistogram[] result = new LatencyHistogram[OPERATIONS.length];
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            result[op] = new LatencyHistogram(SUB_BITS);
+            for (int i = 0; i < STRIPES; i++) {
+                LatencyHistogram[] h = from_intended ? corrected[i] : service[i];
+                synchronized (corrected[i]) {
+                    result[op].add(h[op]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param seconds 运行时长
+     * @return 各操作修正后的延迟百分位，以及未修正的p99用于对比
+     */
+    String report(double seconds) {
+        LatencyHistogram[] fixed = merged(true), raw = merged(false);
+        long total = 0;
+        StringBuilder sb = new StringBuilder();
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            LatencyHistogram h = fixed[op];
+            total += h.count();
+            sb.append(String.format("%-13s count=%d p50=%dns p99=%dns p99.9=%dns p99.99=%dns max=%dns (uncorrected p99=%dns)%n",
+                    OPERATIONS[op], h.count(), h.valueAtPercentile(50), h.valueAtPercentile(99),
+                    h.valueAtPercentile(99.9), h.valueAtPercentile(99.99), h.max(), raw[op].valueAtPercentile(99)));
+        }
+        sb.append(String.format("achieved=%.2fops/s%n", total / seconds));
+        return sb.toString();
+    }
+}
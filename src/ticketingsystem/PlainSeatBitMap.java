@@ -0,0 +1,117 @@
+package ticketingsystem;
+
+/**
+ * 只由一个线程访问的座位主序占用表：每个座位一个普通long，没有CAS和volatile，
+ * 历史位置也是普通的int数组；用于ActorTicketingSystem中由工作线程独占的车次
+ * 区段数不超过64
+ */
+class PlainSeatBitMap extends SeatBitMap {
+    private final long[] seat_bit_map;
+    // 每个区间的历史位置，之前的座位对该区间都已被占用
+    private final int[] history;
+
+    PlainSeatBitMap(int coach_num, int seat_num, IntervalTable intervals) {
+        super(coach_num, seat_num, intervals);
+        if (intervals.ranges > 64)
+            throw new IllegalArgumentException("单线程座位表只支持不超过64个区段");
+        seat_bit_map = new long[total_seat_num];
+        history = new int[intervals.interval_num];
+    }
+
+    @Override
+    public int allocateSeat(int departure, int arrival) {
+        int interval = intervals.id(departure, arrival);
+        long detector = intervals.mask(interval);
+        for (int i = history[interval]; i < total_seat_num; i++) {
+            if ((seat_bit_map[i] & detector) == 0) {
+                seat_bit_map[i] |= detector;
+                history[interval] = i + 1;
+                return i;
+            }
+        }
+        history[interval] = total_seat_num;
+        return NO_SEAT;
+    }
+
+    @Override
+    public boolean recycleSeat(int departure, int arrival, int coach, int seat) {
+        if (coach < 1 || coach > coach_num || seat < 1 || seat > seat_num)
+            return false;
+        int index = (coach - 1) * seat_num + seat - 1;
+        int interval = intervals.id(departure, arrival);
+        long detector = intervals.mask(interval);
+        if ((seat_bit_map[index] & detector) != detector)
+            return false;
+        long free_mask = seat_bit_map[index] &= ~detector;
+        // 与SeatMajorBitMap相同，降低所有因此可能可用的区间的历史位置
+        int low = intervals.low(interval), high = intervals.high(interval);
+        long below = free_mask & ((1L << low) - 1);
+        int run_low = below == 0 ? 0 : 64 - Long.numberOfLeadingZeros(below);
+        long above = high >= 64 ? 0 : free_mask >>> high;
+        int run_high = above == 0 ? ranges : high + Long.numberOfTrailingZeros(above);
+        for (int l = run_low; l < high; l++) {
+            for (int h = Math.max(l, low) + 1; h <= run_high; h++) {
+                int id = intervals.id(l + 1, h + 1);
+                if (history[id] > index)
+                    history[id] = index;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean occupySeat(int departure, int arrival, int coach, int seat) {
+        if (coach < 1 || coach > coach_num || seat < 1 || seat > seat_num)
+            return false;
+        int index = (coach - 1) * seat_num + seat - 1;
+        long detector = intervals.mask(intervals.id(departure, arrival));
+        if ((seat_bit_map[index] & detector) != 0)
+            return false;
+        seat_bit_map[index] |= detector;
+        return true;
+    }
+
+    @Override
+    long seatWord(int index, int k) {
+        return seat_bit_map[index];
+    }
+
+    @Override
+    public int query(int departure, int arrival) {
+        int interval = intervals.id(departure, arrival);
+        long detector = intervals.mask(interval);
+        int count = 0;
+        for (int i = history[interval]; i < total_seat_num; i++) {
+            if ((seat_bit_map[i] & detector) == 0)
+                count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void queryAll(int[][] matrix) {
+        int from = total_seat_num;
+        for (int cursor : history)
+            from = Math.min(from, cursor);
+        int[] runs = newRunCounts();
+        for (int i = from; i < total_seat_num; i++)
+            closeRun(runs, addWordRuns(runs, seat_bit_map[i], 0, -1));
+        fillMatrix(runs, matrix);
+    }
+
+    @Override
+    public int scanQuery(int departure, int arrival) {
+        long detector = intervals.mask(intervals.id(departure, arrival));
+        int count = 0;
+        for (int i = 0; i < total_seat_num; i++) {
+            if ((seat_bit_map[i] & detector) == 0)
+                count++;
+        }
+        return count;
+    }
+
+    @Override
+    public long seatWordBytes() {
+        return (long) total_seat_num * 8;
+    }
+}
@@ -0,0 +1,49 @@
+package ticketingsystem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 每车次一对写计数器，用于一致的余票读取（类似seqlock，但写者之间不互斥，也不被读者阻塞）
+ * 写者修改座位前递增begin，修改后递增end；读者在begin == end（没有进行中的写）时记下begin，
+ * 读完后begin不变，说明读取期间没有写开始，读到的就是某一时刻的状态
+ * begin与end位于不同的缓存行，不同车次的计数器也互不共享缓存行
+ */
+final class RouteVersions {
+    // 一个缓存行的long数
+    private static final int LINE = 8;
+
+    private final AtomicLongArray counters;
+    // 读取期间有写发生而重读的次数
+    final LongAdder retries = new LongAdder();
+    // 重读次数用完仍不一致、返回了最后一次读取结果的次数
+    final LongAdder fallbacks = new LongAdder();
+
+    RouteVersions(int route_num) {
+        counters = new AtomicLongArray(route_num * 2 * LINE);
+    }
+
+    void beginWrite(int route) {
+        counters.getAndIncrement(route * 2 * LINE);
+    }
+
+    void endWrite(int route) {
+        counters.getAndIncrement(route * 2 * LINE + LINE);
+    }
+
+    /**
+     * @return 没有进行中的写时返回当前版本，否则返回-1
+     */
+    long readBegin(int route) {
+        long end = counters.get(route * 2 * LINE + LINE);
+        long begin = counters.get(route * 2 * LINE);
+        return begin == end ? begin : -1;
+    }
+
+    /**
+     * @return 自readBegin以来没有写开始
+     */
+    boolean validate(int route, long version) {
+        return counters.get(route * 2 * LINE) == version;
+    }
+}
@@ -0,0 +1,128 @@
+package ticketingsystem;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * BEST_FIT使用的空闲区段桶：桶(s, e)是一个座位bitset，记录哪些座位有一段恰好为[s, e)的极大连续空闲区段
+ * （两侧是已占用的区段或线路端点），另有每个桶的座位数用于跳过空桶；只用于区段数不超过64的座位主序布局
+ * 座位word改变后由修改者按新旧word的差异更新桶。同一座位的并发修改可能使更新交错，因此桶只是提示：
+ * 查找时以座位word为准，清除不符的座位，找不到时由调用方退回顺序查找
+ */
+final class RunBuckets {
+    private final int ranges;
+    // 每个桶的word数
+    private final int words;
+    // 所有区段的掩码
+    private final long range_mask;
+    // 第b个桶位于 b * words
+    private final AtomicLongArray seats;
+    private final AtomicIntegerArray sizes;
+
+    RunBuckets(int total_seat_num, int ranges) {
+        this.ranges = ranges;
+        this.words = (total_seat_num + 63) >>> 6;
+        this.range_mask = ranges == 64 ? -1L : (1L << ranges) - 1;
+        int buckets = (ranges + 1) * (ranges + 1);
+        seats = new AtomicLongArray(buckets * words);
+        sizes = new AtomicIntegerArray(buckets);
+        // 初始时所有座位全程空闲
+        int full = ranges;
+        for (int i = 0; i < total_seat_num; i++)
+            add(full, i);
+    }
+
+    /**
+     * 座位word由old_word变为new_word之后调用
+     */
+    void update(int seat, long old_word, long new_word) {
+        long free = ~old_word & range_mask;
+        while (free != 0) {
+            int s = Long.numberOfTrailingZeros(free);
+            int e = runEnd(free, s);
+            if (!isRun(new_word, s, e))
+                remove(s * (ranges + 1) + e, seat);
+            free &= ~span(s, e);
+        }
+        free = ~new_word & range_mask;
+        while (free != 0) {
+            int s = Long.numberOfTrailingZeros(free);
+            int e = runEnd(free, s);
+            if (!isRun(old_word, s, e))
+                add(s * (ranges + 1) + e, seat);
+            free &= ~span(s, e);
+        }
+    }
+
+    boolean isEmpty(int bucket) {
+        return sizes.get(bucket) <= 0;
+    }
+
+    /**
+     * @return 桶中index不小于from的第一个座位，没有时为-1
+     */
+    int next(int bucket, int from) {
+        int k = from >>> 6;
+        if (k >= words)
+            return -1;
+        long word = seats.get(bucket * words + k) & (-1L << (from & 63));
+        while (word == 0) {
+            if (++k == words)
+                return -1;
+            word = seats.get(bucket * words + k);
+        }
+        return (k << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * @return 座位word中有一段恰好为桶所表示的极大连续空闲区段
+     */
+    boolean matches(long occupied, int bucket) {
+        return isRun(occupied, bucket / (ranges + 1), bucket % (ranges + 1));
+    }
+
+    /**
+     * 查找时发现座位与桶不符，从桶中清除；清除后再按最新的word确认一次，避免覆盖并发的加入
+     */
+    void evict(int bucket, int seat, AtomicLongArray seat_bit_map, int slot) {
+        remove(bucket, seat);
+        if (matches(seat_bit_map.get(slot), bucket))
+            add(bucket, seat);
+    }
+
+    /**
+     * @return 桶占用的字节数
+     */
+    long bytes() {
+        return 8L * seats.length() + 4L * sizes.length();
+    }
+
+    private boolean isRun(long occupied, int s, int e) {
+        return (occupied & span(s, e)) == 0 && (s == 0 || (occupied >>> (s - 1) & 1) != 0)
+                && (e == ranges || (occupied >>> e & 1) != 0);
+    }
+
+    /**
+     * @return 从s开始的连续空闲区段的终点
+     */
+    private static int runEnd(long free, int s) {
+        long rest = ~(free >>> s);
+        return rest == 0 ? 64 : Math.min(64, s + Long.numberOfTrailingZeros(rest));
+    }
+
+    private static long span(int s, int e) {
+        return (e == 64 ? -1L : (1L << e) - 1) & -(1L << s);
+    }
+
+    private void add(int bucket, int seat) {
+        long bit = 1L << seat;
+        if ((seats.getAndAccumulate(bucket * words + (seat >>> 6), bit, (w, b) -> w | b) & bit) == 0)
+            sizes.getAndIncrement(bucket);
+    }
+
+    private void remove(int bucket, int seat) {
+        long bit = 1L << seat;
+        if ((seats.getAndAccumulate(bucket * words + (seat >>> 6), ~bit, (w, b) -> w & b) & bit) != 0)
+            sizes.getAndDecrement(bucket);
+    }
+}
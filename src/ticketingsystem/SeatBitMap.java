@@ -0,0 +1,326 @@
+package ticketingsystem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 某车次所有座位的占用表
+ * 使用bit表示座位在某区段是否被占用，1表示占用；具体存储布局由子类决定，
+ * 通过SeatBitMapFactory按配置构造
+ */
+abstract class SeatBitMap {
+    // 车厢数
+    protected final int coach_num;
+    // 每节车厢座位数
+    protected final int seat_num;
+    // 总座位数
+    protected final int total_seat_num;
+    // 站点数
+    protected final int station_num;
+    // 区段数
+    protected final int ranges;
+    // allocateSeat无余票时的返回值
+    static final int NO_SEAT = -1;
+    // 区间编号与检测器表，所有车次共享
+    protected final IntervalTable intervals;
+    // 运行统计，未启用时为null，应在并发访问开始前设置
+    protected SeatMapStats stats;
+
+    // 释放状态低位为正在释放座位的操作数，高位为已完成的释放次数（纪元）
+    private static final int RELEASING_BITS = 20;
+    private static final long RELEASING_MASK = (1L << RELEASING_BITS) - 1;
+    // 释放状态位于release_index，第i个区间被发现售完时的纪元 + 1位于 flag_base + i，0表示未发现；未启用时为null
+    private AtomicLongArray sold_out;
+    private int release_index;
+    private int flag_base;
+
+    SeatBitMap(int coach_num, int seat_num, IntervalTable intervals) {
+        this.coach_num = coach_num;
+        this.seat_num = seat_num;
+        this.total_seat_num = coach_num * seat_num;
+        this.station_num = intervals.station_num;
+        this.ranges = intervals.ranges;
+        this.intervals = intervals;
+    }
+
+    /**
+     * 分配一个在[departure, arrival)区间内空闲的座位
+     *
+     * @param departure 始发站
+     * @param arrival   终点站
+     * @return 座位index，即 (车厢号 - 1) * 每节车厢座位数 + 座位号 - 1，无余票时为NO_SEAT
+     */
+    public abstract int allocateSeat(int departure, int arrival);
+
+    /**
+     * 回收退票对应的座位
+     *
+     * @param departure 始发站
+     * @param arrival   终点站
+     * @param coach     车厢号
+     * @param seat      座位号
+     * @return 座位在该区间确实被占用并已释放时返回true
+     * @throws Exception
+     */
+    public abstract boolean recycleSeat(int departure, int arrival, int coach, int seat) throws Exception;
+
+    /**
+     * 分配count个在[departure, arrival)区间内空闲的座位，全部分配成功或一个也不分配
+     * 默认逐个分配，不足时释放已分配的座位；子类可以在一次扫描中完成并按偏好挑选座位
+     *
+     * @param departure  始发站
+     * @param arrival    终点站
+     * @param count      座位数
+     * @param preference 座位偏好，不满足时退回任意座位
+     * @param seats      写入分配到的座位index，长度不小于count
+     * @return 分配到的座位数，count或0
+     */
+    public int allocateSeats(int departure, int arrival, int count,
+                             TicketingSystem.SeatPreference preference, int[] seats) {
+        for (int i = 0; i < count; i++) {
+            seats[i] = allocateSeat(departure, arrival);
+            if (seats[i] == NO_SEAT) {
+                releaseSeats(departure, arrival, seats, i);
+                return 0;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 释放allocateSeats已占用的前n个座位
+     */
+    protected final void releaseSeats(int departure, int arrival, int[] seats, int n) {
+        try {
+            for (int i = 0; i < n; i++)
+                recycleSeat(departure, arrival, seats[i] / seat_num + 1, seats[i] % seat_num + 1);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 批量回收同一车次的退票座位，默认逐个回收
+     *
+     * @param tickets  车票
+     * @param order    待回收车票在tickets中的下标
+     * @param from     order的起始位置（含）
+     * @param to       order的结束位置（不含）
+     * @param released 写入每张车票的座位是否确实被释放，下标与tickets相同
+     */
+    void recycleSeats(Ticket[] tickets, int[] order, int from, int to, boolean[] released) {
+        for (int k = from; k < to; k++) {
+            Ticket ticket = tickets[order[k]];
+            try {
+                released[order[k]] = recycleSeat(ticket.departure, ticket.arrival, ticket.coach, ticket.seat);
+            } catch (Exception e) {
+                released[order[k]] = false;
+            }
+        }
+    }
+
+    /**
+     * 占用指定的座位，用于重放日志和从快照恢复
+     *
+     * @param departure 始发站
+     * @param arrival   终点站
+     * @param coach     车厢号
+     * @param seat      座位号
+     * @return 座位在该区间空闲并已被占用时返回true
+     */
+    public abstract boolean occupySeat(int departure, int arrival, int coach, int seat);
+
+    /**
+     * 座位的第k个占用word，第j位表示第 k * 64 + j 个区段是否被占用，用于写快照
+     *
+     * @param index 座位index
+     * @param k     word序号
+     */
+    abstract long seatWord(int index, int k);
+
+    /**
+     * 返回剩余的车票数
+     *
+     * @param departure 始发站
+     * @param arrival   终点站
+     * @return 余票
+     */
+    public abstract int query(int departure, int arrival);
+
+    /**
+     * 从头遍历所有座位统计余票，用于校验
+     *
+     * @param departure 始发站
+     * @param arrival   终点站
+     * @return 余票
+     */
+    public abstract int scanQuery(int departure, int arrival);
+
+    /**
+     * 读取所有区间的余票，matrix[departure][arrival]
+     * 默认逐个区间查询；座位主序布局一次遍历所有座位，由每个座位的占用位得到它可用的全部区间
+     *
+     * @param matrix (站点数 + 1) * (站点数 + 1) 的矩阵
+     */
+    public void queryAll(int[][] matrix) {
+        for (int departure = 1; departure < station_num; departure++) {
+            for (int arrival = departure + 1; arrival <= station_num; arrival++)
+                matrix[departure][arrival] = query(departure, arrival);
+        }
+    }
+
+    /**
+     * @return 按(起点区段, 终点区段)统计连续空闲区段数的表，供addWordRuns与fillMatrix使用
+     */
+    protected final int[] newRunCounts() {
+        return new int[(ranges + 1) * (ranges + 1)];
+    }
+
+    /**
+     * 统计座位第k个占用word中的连续空闲区段，空闲区段可能从上一个word延续过来，也可能延续到下一个word
+     * 座位在连续空闲区段[s, e)内的每个区间都可用
+     *
+     * @param runs      newRunCounts得到的表
+     * @param occupied  占用word
+     * @param k         word序号
+     * @param run_start 从上一个word延续过来的空闲区段的起点，没有时为-1
+     * @return 延续到下一个word的空闲区段的起点，没有时为-1；最后一个word之后由调用方以ranges为终点记录
+     */
+    protected final int addWordRuns(int[] runs, long occupied, int k, int run_start) {
+        int first = k << 6, bits = Math.min(64, ranges - first);
+        long free = ~occupied;
+        // 超出区段数的位当作占用，空闲区段在此结束
+        if (bits < 64)
+            free &= (1L << bits) - 1;
+        int pos = 0;
+        while (pos < bits) {
+            if (run_start < 0) {
+                long rest = free >>> pos;
+                if (rest == 0)
+                    return -1;
+                pos += Long.numberOfTrailingZeros(rest);
+                run_start = first + pos;
+            }
+            long taken = ~free >>> pos;
+            if (taken == 0)
+                return run_start;
+            pos += Long.numberOfTrailingZeros(taken);
+            if (pos >= bits)
+                return run_start;
+            runs[run_start * (ranges + 1) + first + pos]++;
+            run_start = -1;
+        }
+        return run_start;
+    }
+
+    /**
+     * 记录终点为最后一个区段的空闲区段
+     */
+    protected final void closeRun(int[] runs, int run_start) {
+        if (run_start >= 0)
+            runs[run_start * (ranges + 1) + ranges]++;
+    }
+
+    /**
+     * 区间[l, h)的余票等于起点不大于l、终点不小于h的空闲区段数：
+     * 对runs先按起点求前缀和、再按终点求后缀和，O(区段数^2)
+     */
+    protected final void fillMatrix(int[] runs, int[][] matrix) {
+        int n = ranges + 1;
+        for (int s = 1; s < n; s++) {
+            for (int e = 0; e < n; e++)
+                runs[s * n + e] += runs[(s - 1) * n + e];
+        }
+        for (int l = 0; l < n; l++) {
+            for (int e = n - 2; e >= 0; e--)
+                runs[l * n + e] += runs[l * n + e + 1];
+        }
+        for (int l = 0; l < ranges; l++) {
+            for (int h = l + 1; h <= ranges; h++)
+                matrix[l + 1][h + 1] = runs[l * n + h];
+        }
+    }
+
+    /**
+     * 读取增量维护的区间余票计数，只有支持计数的布局才实现
+     *
+     * @param departure 始发站
+     * @param arrival   终点站
+     * @return 余票
+     */
+    public int countedQuery(int departure, int arrival) {
+        throw new UnsupportedOperationException("区间余票计数不支持当前座位布局");
+    }
+
+    /**
+     * 启用运行统计，之后的CAS重试、扫描座位数会计入stats
+     *
+     * @param stats 统计，为null时关闭
+     */
+    void setStats(SeatMapStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * 启用区间售完标记：扫描完所有座位仍无余票时记下当时的纪元，
+     * 之后只要没有座位被释放，购票直接返回无票，不再扫描
+     */
+    void enableSoldOutFlags() {
+        enableSoldOutFlags(false);
+    }
+
+    /**
+     * @param padded 释放状态与售完标记各自独占缓存行，前后不与其他车次的对象共享缓存行
+     */
+    void enableSoldOutFlags(boolean padded) {
+        int line = padded ? SeatBitMapFactory.CACHE_LINE_LONGS : 0;
+        release_index = line;
+        flag_base = padded ? 2 * line : 1;
+        sold_out = new AtomicLongArray(flag_base + intervals.interval_num + line);
+    }
+
+    /**
+     * @return 自上次发现该区间售完以来没有座位被释放，且没有正在进行的释放
+     */
+    protected final boolean knownSoldOut(int interval) {
+        if (sold_out == null)
+            return false;
+        long state = sold_out.get(release_index);
+        return (state & RELEASING_MASK) == 0 && sold_out.get(flag_base + interval) == (state >>> RELEASING_BITS) + 1;
+    }
+
+    /**
+     * 在开始扫描座位之前读取，扫描失败时交给markSoldOut
+     */
+    protected final long releaseState() {
+        return sold_out == null ? 0 : sold_out.get(release_index);
+    }
+
+    /**
+     * 记录区间在state对应的纪元售完；若扫描期间有座位被释放，纪元已经改变，该标记不会生效
+     */
+    protected final void markSoldOut(int interval, long state) {
+        if (sold_out != null)
+            sold_out.set(flag_base + interval, (state >>> RELEASING_BITS) + 1);
+    }
+
+    /**
+     * 释放座位（包括退票以及撤销未完成的占用）之前调用，与endRelease成对使用
+     * 释放进行期间售完标记都不生效，释放完成后纪元加1使之前的标记失效
+     */
+    protected final void beginRelease() {
+        if (sold_out != null)
+            sold_out.getAndIncrement(release_index);
+    }
+
+    protected final void endRelease() {
+        if (sold_out != null)
+            sold_out.getAndAdd(release_index, (1L << RELEASING_BITS) - 1);
+    }
+
+    /**
+     * 估算本车次座位占用位占用的内存（字节），共享存储按本车次所占的部分计算
+     *
+     * @return 字节数
+     */
+    public abstract long seatWordBytes();
+}
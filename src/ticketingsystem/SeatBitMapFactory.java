@@ -0,0 +1,105 @@
+package ticketingsystem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class SeatBitMapFactory {
+    // 一个缓存行可容纳的long数
+    static final int CACHE_LINE_LONGS = 8;
+
+    /**
+     * 座位主序布局下相邻座位之间间隔的long数
+     *
+     * @param options     配置
+     * @param station_num 站点数
+     * @return 间隔
+     */
+    static int seatStride(TicketingOptions options, int station_num) {
+        int words = MultiWordSeatBitMap.wordsPerSeat(station_num);
+        if (options.seat_padding == TicketingOptions.SeatPadding.CACHE_LINE)
+            return (words + CACHE_LINE_LONGS - 1) / CACHE_LINE_LONGS * CACHE_LINE_LONGS;
+        return words;
+    }
+
+    /**
+     * PADDED布局下每车次的座位word补齐到整缓存行，车次之间再隔开一个缓存行，
+     * 数组对象头不保证按缓存行对齐，隔开一整行才能保证相邻车次不共享缓存行
+     *
+     * @return 共享存储中相邻车次间隔的long数
+     */
+    private static long routeLength(TicketingOptions options, int seat_num, int station_num) {
+        long words = (long) seat_num * seatStride(options, station_num);
+        if (options.route_layout == TicketingOptions.RouteLayout.PADDED)
+            return (words + CACHE_LINE_LONGS - 1) / CACHE_LINE_LONGS * CACHE_LINE_LONGS + CACHE_LINE_LONGS;
+        return words;
+    }
+
+    /**
+     * 为若干车次分配一块连续的座位word存储，区段主序布局不使用共享存储
+     *
+     * @param options   配置
+     * @param route_num   车次数
+     * @param seat_num    每车次总座位数
+     * @param station_num 站点数
+     * @return 共享存储，不需要时返回null
+     */
+    static AtomicLongArray ConstructSeatStorage(TicketingOptions options, int route_num, int seat_num, int station_num) {
+        if (options.seat_layout != TicketingOptions.SeatLayout.SEAT_MAJOR)
+            return null;
+        long length = route_num * routeLength(options, seat_num, station_num);
+        if (options.route_layout == TicketingOptions.RouteLayout.PADDED)
+            length += CACHE_LINE_LONGS;
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("座位总数超出单个数组的容量");
+        return new AtomicLongArray((int) length);
+    }
+
+    /**
+     * 按配置构造某车次的座位占用表
+     *
+     * @param options     配置
+     * @param storage     座位word存储
+     * @param route       车次在存储中的下标，从0开始
+     * @param coach_num   车厢数
+     * @param seat_num    每节车厢座位数
+     * @param intervals   区间编号与检测器表
+     * @return 座位占用表
+     */
+    static SeatBitMap ConstructSeatBitMap(TicketingOptions options, AtomicLongArray storage, int route,
+                                          int coach_num, int seat_num, IntervalTable intervals) {
+        SeatBitMap seats = ConstructLayout(options, storage, route, coach_num, seat_num, intervals);
+        if (options.sold_out_flags)
+            seats.enableSoldOutFlags(options.route_layout == TicketingOptions.RouteLayout.PADDED);
+        return seats;
+    }
+
+    private static SeatBitMap ConstructLayout(TicketingOptions options, AtomicLongArray storage, int route,
+                                              int coach_num, int seat_num, IntervalTable intervals) {
+        int station_num = intervals.station_num;
+        boolean counting = options.inquiry_mode == TicketingOptions.InquiryMode.COUNTER;
+        boolean padded = options.route_layout == TicketingOptions.RouteLayout.PADDED;
+        if (padded && options.seat_layout != TicketingOptions.SeatLayout.SEAT_MAJOR)
+            throw new IllegalArgumentException("PADDED车次布局只支持座位主序布局");
+        switch (options.seat_layout) {
+            case SEGMENT_MAJOR:
+                if (options.allocation_policy != TicketingOptions.AllocationPolicy.FIRST_FIT)
+                    throw new IllegalArgumentException("区段主序布局只支持FIRST_FIT分配策略");
+                if (counting)
+                    throw new IllegalArgumentException("区段主序布局不支持区间余票计数");
+                return new SegmentMajorBitMap(coach_num, seat_num, intervals);
+            case SEAT_MAJOR:
+            default:
+                int stride = seatStride(options, station_num);
+                int base = (int) (route * routeLength(options, coach_num * seat_num, station_num))
+                        + (padded ? CACHE_LINE_LONGS : 0);
+                // 区段数不超过64时使用单word的快速路径
+                if (station_num - 1 <= 64)
+                    return new SeatMajorBitMap(coach_num, seat_num, intervals, counting, options.free_seat_summary,
+                            options.allocation_policy, padded, storage, base, stride);
+                if (counting)
+                    throw new IllegalArgumentException("多word座位不支持区间余票计数");
+                if (options.allocation_policy != TicketingOptions.AllocationPolicy.FIRST_FIT)
+                    throw new IllegalArgumentException("多word座位只支持FIRST_FIT分配策略");
+                return new MultiWordSeatBitMap(coach_num, seat_num, intervals, padded, storage, base, stride);
+        }
+    }
+}
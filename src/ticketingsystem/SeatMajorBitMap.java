@@ -0,0 +1,604 @@
+package ticketingsystem;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 以座位为主序的占用表：每个座位一个long，第j位表示第j个区段是否被占用
+ * 所有车次的座位word存放在同一个AtomicLongArray中，本车次第i个座位位于 base + i * stride
+ */
+class SeatMajorBitMap extends SeatBitMap {
+    private final AtomicLongArray seat_bit_map;
+    // 本车次在共享数组中的起始位置
+    private final int base;
+    // 相邻座位间隔的long数，大于1时用于避免伪共享
+    private final int stride;
+
+    // 记录每个区间的上一次购票index
+    private final IntervalCursors history;
+
+    // 每个(departure, arrival)区间的余票计数，仅在COUNTER查询模式下维护
+    private LongAdder[] interval_counter;
+
+    // 空闲座位摘要，未启用时为null
+    private FreeSeatSummary summary;
+
+    // 座位分配策略
+    private final TicketingOptions.AllocationPolicy policy;
+    // THREAD_OFFSET：起点分布在历史位置之后的OFFSET_LINES个缓存行上，每个线程先查找OFFSET_LINES * OFFSET_STEP个座位
+    private static final int OFFSET_LINES = 8;
+    private static final int OFFSET_STEP = 8;
+    // STRIPED：座位平均分为STRIPES段，每段有自己的历史位置
+    private static final int STRIPES = 8;
+    private int stripe_size;
+    private IntervalCursors[] stripe_cursors;
+    // BEST_FIT：按极大连续空闲区段分桶的座位，其他策略下为null
+    private RunBuckets buckets;
+
+    public SeatMajorBitMap(int coach_num, int seat_num, IntervalTable intervals, boolean counting, boolean summarize,
+                           TicketingOptions.AllocationPolicy policy, boolean padded,
+                           AtomicLongArray seat_bit_map, int base, int stride) {
+        super(coach_num, seat_num, intervals);
+
+        this.seat_bit_map = seat_bit_map;
+        this.base = base;
+        this.stride = stride;
+
+        history = new IntervalCursors(intervals.interval_num, padded);
+        if (summarize)
+            summary = new FreeSeatSummary(total_seat_num, ranges);
+        this.policy = policy;
+        if (policy == TicketingOptions.AllocationPolicy.STRIPED) {
+            stripe_size = (total_seat_num + STRIPES - 1) / STRIPES;
+            stripe_cursors = new IntervalCursors[STRIPES];
+            for (int i = 0; i < STRIPES; i++)
+                stripe_cursors[i] = new IntervalCursors(intervals.interval_num, padded);
+        }
+        if (policy == TicketingOptions.AllocationPolicy.BEST_FIT)
+            buckets = new RunBuckets(total_seat_num, ranges);
+
+        if (counting) {
+            interval_counter = new LongAdder[intervals.interval_num];
+            for (int i = 0; i < interval_counter.length; i++) {
+                interval_counter[i] = new LongAdder();
+                interval_counter[i].add(total_seat_num);
+            }
+        }
+    }
+
+
+    /**
+     * 使用bit来表示某对应区段的座位是否被占用, 1表示占用
+     *
+     * @param departure 始发站
+     * @param arrival   终点站
+     * @return 座位index，无余票时为NO_SEAT
+     */
+    @Override
+    public int allocateSeat(int departure, int arrival) {
+        int interval = intervals.id(departure, arrival);
+        if (knownSoldOut(interval)) {
+            if (stats != null)
+                stats.sold_out_hits.increment();
+            return NO_SEAT;
+        }
+        long detector = intervals.mask(interval);
+        int low = intervals.low(interval), high = intervals.high(interval);
+
+        long release_state = releaseState();
+        // 本线程所属一段座位的释放计数，起点还取决于历史位置，须在读取历史位置之前读取
+        int stripe = policy == TicketingOptions.AllocationPolicy.STRIPED ? threadProbe() & (STRIPES - 1) : 0;
+        long stripe_released = stripe_cursors != null ? stripe_cursors[stripe].releases() : 0;
+        long released = history.releases();
+        long curr_history = history.get(interval);
+        int cursor = IntervalCursors.index(curr_history);
+        int seat = NO_SEAT;
+        if (policy == TicketingOptions.AllocationPolicy.STRIPED) {
+            // 先在本线程所属的一段座位内找，这一段满了再从历史位置查找
+            int stripe_low = stripe * stripe_size, stripe_high = Math.min(total_seat_num, stripe_low + stripe_size);
+            long stripe_history = stripe_cursors[stripe].get(interval);
+            int start = Math.max(stripe_low, Math.max(cursor, IntervalCursors.index(stripe_history)));
+            seat = scan(interval, detector, low, high, start, stripe_high);
+            if (seat != NO_SEAT)
+                stripe_cursors[stripe].advance(interval, stripe_history, stripe_released, seat + 1);
+        } else if (policy == TicketingOptions.AllocationPolicy.THREAD_OFFSET) {
+            // 各线程先在历史位置之后不同的缓存行开始的一小段内找，找不到再从历史位置查找
+            int start = Math.min(total_seat_num, cursor + (threadProbe() & (OFFSET_LINES - 1)) * OFFSET_STEP);
+            seat = scan(interval, detector, low, high, start, Math.min(total_seat_num, start + OFFSET_LINES * OFFSET_STEP));
+        } else if (policy == TicketingOptions.AllocationPolicy.BEST_FIT) {
+            // 先找放入后剩下零散区段最少的座位，桶中没有可用座位时从历史位置顺序查找
+            seat = bestFit(interval, detector, low, high);
+        }
+        if (seat == NO_SEAT) {
+            seat = scan(interval, detector, low, high, cursor, total_seat_num);
+            // 更新最近购票位
+            if (seat != NO_SEAT)
+                history.advance(interval, curr_history, released, seat + 1);
+        }
+        if (stats != null)
+            stats.allocations.increment();
+        if (seat == NO_SEAT)
+            markSoldOut(interval, release_state);
+        return seat;
+    }
+
+    /**
+     * 在座位[from, to)中按顺序查找并占用第一个在区间内空闲的座位
+     *
+     * @return 座位index，没有时为NO_SEAT
+     */
+    private int scan(int interval, long detector, int low, int high, int from, int to) {
+        long new_seat_flag_bit, seat_flag_bit;
+        int retries = 0, scanned = 0;
+        int seat = NO_SEAT;
+        search:
+        for (int i = from; i < to; i++) {
+            // 进入新的座位块时，跳过摘要中没有空闲座位的块
+            if (summary != null && (i == from || (i & ((1 << FreeSeatSummary.BLOCK_BITS) - 1)) == 0)) {
+                i = summary.nextCandidate(i, low, high, to);
+                if (i >= to)
+                    break;
+            }
+            scanned++;
+            int slot = base + i * stride;
+            seat_flag_bit = seat_bit_map.get(slot);
+            // 找到探测器范围内bit值都为0的座位
+            while ((seat_flag_bit & detector) == 0) {
+                // 将对应区段都改为1标志
+                new_seat_flag_bit = seat_flag_bit | detector;
+
+                if (seat_bit_map.compareAndSet(slot, seat_flag_bit, new_seat_flag_bit)) {
+                    if (buckets != null)
+                        buckets.update(i, seat_flag_bit, new_seat_flag_bit);
+                    if (summary != null)
+                        summary.claim(i, low, high);
+                    if (interval_counter != null)
+                        adjustCounters(seat_flag_bit, low, high, -1);
+                    seat = i;
+                    break search;
+                }
+                retries++;
+                seat_flag_bit = seat_bit_map.get(slot);
+            }
+        }
+        if (stats != null) {
+            stats.seats_scanned.add(scanned);
+            if (retries != 0)
+                stats.allocate_retries.add(retries);
+        }
+        return seat;
+    }
+
+    /**
+     * 按IntervalTable.fitOrder的顺序检查空闲区段桶，占用第一个仍然符合桶的座位
+     * 桶中与座位word不符的座位顺便清除
+     *
+     * @return 座位index，没有时为NO_SEAT
+     */
+    private int bestFit(int interval, long detector, int low, int high) {
+        int scanned = 0;
+        int seat = NO_SEAT;
+        search:
+        for (int bucket : intervals.fitOrder(interval)) {
+            if (buckets.isEmpty(bucket))
+                continue;
+            for (int i = buckets.next(bucket, 0); i >= 0; i = buckets.next(bucket, i + 1)) {
+                scanned++;
+                int slot = base + i * stride;
+                if (!buckets.matches(seat_bit_map.get(slot), bucket)) {
+                    buckets.evict(bucket, i, seat_bit_map, slot);
+                } else if (claim(i, detector, low, high)) {
+                    seat = i;
+                    break search;
+                }
+            }
+        }
+        if (stats != null)
+            stats.seats_scanned.add(scanned);
+        return seat;
+    }
+
+    /**
+     * 一次扫描分配count个座位，全部成功或全部撤销
+     * 先按偏好在车厢内查找，找不到时从历史位置起占用遇到的每个空闲座位；
+     * 后一种情况下历史位置之后被跳过的座位都已被占用，历史位置只推进一次
+     */
+    @Override
+    public int allocateSeats(int departure, int arrival, int count,
+                             TicketingSystem.SeatPreference preference, int[] seats) {
+        if (count == 1) {
+            seats[0] = allocateSeat(departure, arrival);
+            return seats[0] == NO_SEAT ? 0 : 1;
+        }
+        int interval = intervals.id(departure, arrival);
+        if (knownSoldOut(interval)) {
+            if (stats != null)
+                stats.sold_out_hits.increment();
+            return 0;
+        }
+        long detector = intervals.mask(interval);
+        int low = intervals.low(interval), high = intervals.high(interval);
+
+        long release_state = releaseState();
+        long released = history.releases();
+        long curr_history = history.get(interval);
+        int cursor = IntervalCursors.index(curr_history);
+        if (stats != null)
+            stats.allocations.add(count);
+        if (count <= seat_num && preference != TicketingSystem.SeatPreference.NONE
+                && claimInCoach(preference, detector, low, high, cursor, count, seats))
+            return count;
+
+        int claimed = 0, last = cursor;
+        for (int i = cursor; i < total_seat_num && claimed < count; i++) {
+            if (summary != null && (i == cursor || (i & ((1 << FreeSeatSummary.BLOCK_BITS) - 1)) == 0)) {
+                i = summary.nextCandidate(i, low, high, total_seat_num);
+                if (i >= total_seat_num)
+                    break;
+            }
+            if (claim(i, detector, low, high)) {
+                seats[claimed++] = i;
+                last = i;
+            }
+        }
+        if (claimed == count) {
+            history.advance(interval, curr_history, released, last + 1);
+            return count;
+        }
+        if (claimed == 0)
+            markSoldOut(interval, release_state);
+        else
+            releaseSeats(departure, arrival, seats, claimed);
+        return 0;
+    }
+
+    /**
+     * 从历史位置所在的车厢起逐节车厢查找满足偏好的count个空闲座位并占用
+     * ADJACENT要求座位号连续，SAME_COACH只要求在同一车厢；先只读地找到候选座位再占用，
+     * 占用中途失败时撤销已占用的座位，继续查找
+     *
+     * @return 是否已占用count个座位
+     */
+    private boolean claimInCoach(TicketingSystem.SeatPreference preference, long detector, int low, int high,
+                                 int cursor, int count, int[] seats) {
+        boolean adjacent = preference == TicketingSystem.SeatPreference.ADJACENT;
+        for (int coach = cursor / seat_num; coach < coach_num; coach++) {
+            int coach_low = Math.max(cursor, coach * seat_num), coach_high = (coach + 1) * seat_num;
+            int free = 0;
+            for (int i = coach_low; i < coach_high && free < count; i++) {
+                if ((seat_bit_map.get(base + i * stride) & detector) == 0) {
+                    free++;
+                } else if (adjacent) {
+                    free = 0;
+                } else if (coach_high - i <= count - free) {
+                    break;
+                }
+                if (adjacent && free == count) {
+                    // 候选的连续座位为[i - count + 1, i]
+                    int claimed = 0;
+                    while (claimed < count && claim(i - count + 1 + claimed, detector, low, high)) {
+                        seats[claimed] = i - count + 1 + claimed;
+                        claimed++;
+                    }
+                    if (claimed == count)
+                        return true;
+                    unclaim(seats, claimed, detector, low, high);
+                    free = 0;
+                }
+            }
+            if (adjacent || free < count)
+                continue;
+            int claimed = 0;
+            for (int i = coach_low; i < coach_high && claimed < count; i++) {
+                if (claim(i, detector, low, high))
+                    seats[claimed++] = i;
+            }
+            if (claimed == count)
+                return true;
+            unclaim(seats, claimed, detector, low, high);
+        }
+        return false;
+    }
+
+    /**
+     * 若座位i在区间内空闲则占用它
+     */
+    private boolean claim(int i, long detector, int low, int high) {
+        int slot = base + i * stride;
+        long seat_flag_bit = seat_bit_map.get(slot);
+        while ((seat_flag_bit & detector) == 0) {
+            if (seat_bit_map.compareAndSet(slot, seat_flag_bit, seat_flag_bit | detector)) {
+                if (buckets != null)
+                    buckets.update(i, seat_flag_bit, seat_flag_bit | detector);
+                if (summary != null)
+                    summary.claim(i, low, high);
+                if (interval_counter != null)
+                    adjustCounters(seat_flag_bit, low, high, -1);
+                return true;
+            }
+            if (stats != null)
+                stats.allocate_retries.increment();
+            seat_flag_bit = seat_bit_map.get(slot);
+        }
+        return false;
+    }
+
+    /**
+     * 撤销claimInCoach已占用的座位，与退票一样处理：
+     * 期间其他线程可能已把历史位置推进到这些座位之后，也可能已发现区间无票
+     */
+    private void unclaim(int[] seats, int n, long detector, int low, int high) {
+        beginRelease();
+        try {
+            for (int k = 0; k < n; k++) {
+                int i = seats[k];
+                if (summary != null)
+                    summary.release(i, low, high);
+                long seat_flag_bit = seat_bit_map.getAndAdd(base + i * stride, -detector) - detector;
+                if (buckets != null)
+                    buckets.update(i, seat_flag_bit | detector, seat_flag_bit);
+                if (interval_counter != null)
+                    adjustCounters(seat_flag_bit, low, high, 1);
+                int run_low = runLow(seat_flag_bit, low), run_high = runHigh(seat_flag_bit, high);
+                history.lowerRun(intervals, run_low, run_high, low, high, i);
+                if (stripe_cursors != null)
+                    stripe_cursors[i / stripe_size].lowerRun(intervals, run_low, run_high, low, high, i);
+            }
+        } finally {
+            endRelease();
+        }
+    }
+
+    /**
+     * 批量回收同一车次的座位：整批只开始/结束一次释放，
+     * 每个区间的历史位置在最后只降低一次，降到本批释放的最小index
+     */
+    @Override
+    void recycleSeats(Ticket[] tickets, int[] order, int from, int to, boolean[] released) {
+        int[] lowest = new int[intervals.interval_num];
+        Arrays.fill(lowest, Integer.MAX_VALUE);
+        beginRelease();
+        try {
+            for (int k = from; k < to; k++) {
+                Ticket ticket = tickets[order[k]];
+                released[order[k]] = false;
+                if (ticket.coach < 1 || ticket.coach > coach_num || ticket.seat < 1 || ticket.seat > seat_num
+                        || ticket.departure < 1 || ticket.arrival <= ticket.departure || ticket.arrival > station_num)
+                    continue;
+                int index = (ticket.coach - 1) * seat_num + ticket.seat - 1;
+                int slot = base + index * stride;
+                int interval = intervals.id(ticket.departure, ticket.arrival);
+                long detector = intervals.mask(interval);
+                int low = intervals.low(interval), high = intervals.high(interval);
+
+                if (summary != null)
+                    summary.release(index, low, high);
+                long seat_flag_bit = seat_bit_map.get(slot);
+                while ((seat_flag_bit & detector) == detector) {
+                    long new_seat_flag_bit = (~detector) & seat_flag_bit;
+                    if (seat_bit_map.compareAndSet(slot, seat_flag_bit, new_seat_flag_bit)) {
+                        if (buckets != null)
+                            buckets.update(index, seat_flag_bit, new_seat_flag_bit);
+                        if (interval_counter != null)
+                            adjustCounters(new_seat_flag_bit, low, high, 1);
+                        int run_low = runLow(new_seat_flag_bit, low), run_high = runHigh(new_seat_flag_bit, high);
+                        for (int l = run_low; l < high; l++) {
+                            for (int h = Math.max(l, low) + 1; h <= run_high; h++) {
+                                int id = intervals.id(l + 1, h + 1);
+                                lowest[id] = Math.min(lowest[id], index);
+                            }
+                        }
+                        if (stripe_cursors != null)
+                            stripe_cursors[index / stripe_size].lowerRun(intervals, run_low, run_high, low, high, index);
+                        released[order[k]] = true;
+                        break;
+                    }
+                    if (stats != null)
+                        stats.recycle_retries.increment();
+                    seat_flag_bit = seat_bit_map.get(slot);
+                }
+                if (!released[order[k]] && summary != null)
+                    summary.claim(index, low, high);
+            }
+            history.released();
+            for (int id = 0; id < lowest.length; id++) {
+                if (lowest[id] != Integer.MAX_VALUE)
+                    history.lower(id, lowest[id]);
+            }
+        } finally {
+            endRelease();
+        }
+    }
+
+    /**
+     * 由线程id得到的散列值，用于为竞争同一区间的线程选择不同的起点
+     */
+    private static int threadProbe() {
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) (id >>> 32);
+    }
+
+    /**
+     * 回收退票对应的座位
+     *
+     * @param departure 始发站
+     * @param arrival   终点站
+     * @param coach     车厢号
+     * @param seat      座位号
+     * @return
+     * @throws Exception
+     */
+    @Override
+    public boolean recycleSeat(int departure, int arrival, int coach, int seat) throws Exception {
+        int index = (coach - 1) * seat_num + seat - 1;
+        int slot = base + index * stride;
+        long seat_flag_bit = seat_bit_map.get(slot);
+        long new_seat_flag_bit;
+
+        // 获取余票检测器
+        int interval = intervals.id(departure, arrival);
+        long detector = intervals.mask(interval);
+        int low = intervals.low(interval), high = intervals.high(interval);
+
+        beginRelease();
+        // 摘要中的空闲数先于座位增加
+        if (summary != null)
+            summary.release(index, low, high);
+        try {
+            // 在探测器范围内的bit都应该是1，否则不是本座位售出的车票
+            while ((seat_flag_bit & detector) == detector) {
+                new_seat_flag_bit = (~detector) & seat_flag_bit;
+                if (seat_bit_map.compareAndSet(slot, seat_flag_bit, new_seat_flag_bit)) {
+                    if (buckets != null)
+                        buckets.update(index, seat_flag_bit, new_seat_flag_bit);
+                    if (interval_counter != null)
+                        adjustCounters(new_seat_flag_bit, low, high, 1);
+                    // 该座位对所有因此变为空闲的区间都可用，不只是本车票的区间
+                    int run_low = runLow(new_seat_flag_bit, low), run_high = runHigh(new_seat_flag_bit, high);
+                    history.lowerRun(intervals, run_low, run_high, low, high, index);
+                    if (stripe_cursors != null)
+                        stripe_cursors[index / stripe_size].lowerRun(intervals, run_low, run_high, low, high, index);
+                    return true;
+                }
+                if (stats != null)
+                    stats.recycle_retries.increment();
+                seat_flag_bit = seat_bit_map.get(slot);
+            }
+            if (summary != null)
+                summary.claim(index, low, high);
+        } finally {
+            endRelease();
+        }
+        return false;
+    }
+
+    @Override
+    public boolean occupySeat(int departure, int arrival, int coach, int seat) {
+        if (coach < 1 || coach > coach_num || seat < 1 || seat > seat_num)
+            return false;
+        int interval = intervals.id(departure, arrival);
+        return claim((coach - 1) * seat_num + seat - 1, intervals.mask(interval),
+                intervals.low(interval), intervals.high(interval));
+    }
+
+    @Override
+    long seatWord(int index, int k) {
+        return seat_bit_map.get(base + index * stride);
+    }
+
+    /**
+     * 返回剩余的车票数
+     *
+     * @param departure 始发站
+     * @param arrival   终点站
+     * @return 余票
+     */
+    @Override
+    public int query(int departure, int arrival) {
+        int count = 0;
+        int interval = intervals.id(departure, arrival);
+        long detector = intervals.mask(interval);
+
+        int curr_index = IntervalCursors.index(history.get(interval));
+        for (int i = curr_index; i < total_seat_num; i++) {
+            // 摘要中某区段空闲数为0的块不会有余票
+            if (summary != null && (i == curr_index || (i & ((1 << FreeSeatSummary.BLOCK_BITS) - 1)) == 0)) {
+                i = summary.nextCandidate(i, intervals.low(interval), intervals.high(interval), total_seat_num);
+                if (i >= total_seat_num)
+                    break;
+            }
+            if ((seat_bit_map.get(base + i * stride) & detector) == 0)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * 一次遍历得到所有区间的余票，O(座位数 * 每座位的空闲段数 + 区段数^2)
+     * 所有区间的历史位置之前的座位对每个区间都已被占用，从其中最小的开始遍历
+     */
+    @Override
+    public void queryAll(int[][] matrix) {
+        int from = total_seat_num;
+        for (int id = 0; id < intervals.interval_num; id++)
+            from = Math.min(from, IntervalCursors.index(history.get(id)));
+        int[] runs = newRunCounts();
+        for (int i = from; i < total_seat_num; i++)
+            closeRun(runs, addWordRuns(runs, seat_bit_map.get(base + i * stride), 0, -1));
+        fillMatrix(runs, matrix);
+    }
+
+    /**
+     * 直接读取区间余票计数，O(1)
+     * LongAdder并发求和时可能读到同一座位买票前、退票后的分片，结果需限制在合法范围内
+     *
+     * @param departure 始发站
+     * @param arrival   终点站
+     * @return 余票
+     */
+    @Override
+    public int countedQuery(int departure, int arrival) {
+        long count = interval_counter[intervals.id(departure, arrival)].sum();
+        return (int) Math.max(0, Math.min(total_seat_num, count));
+    }
+
+    /**
+     * 不依赖历史位置，从头遍历所有座位统计余票，用于校验
+     *
+     * @param departure 始发站
+     * @param arrival   终点站
+     * @return 余票
+     */
+    @Override
+    public int scanQuery(int departure, int arrival) {
+        int count = 0;
+        long detector = intervals.mask(intervals.id(departure, arrival));
+        for (int i = 0; i < total_seat_num; i++) {
+            if ((seat_bit_map.get(base + i * stride) & detector) == 0)
+                count++;
+        }
+        return count;
+    }
+
+    @Override
+    public long seatWordBytes() {
+        return (long) total_seat_num * stride * 8 + (summary == null ? 0 : summary.bytes())
+                + (buckets == null ? 0 : buckets.bytes());
+    }
+
+    /**
+     * 某座位的占用位在区段[low, high)上被置位或清除后，更新受影响区间的余票计数
+     * 受影响的区间是：在free_mask中空闲，且与[low, high)相交的区间
+     * 买票时free_mask为修改前的占用位，退票时为修改后的占用位
+     *
+     * @param free_mask 区间在其中空闲的占用位
+     * @param low       本次修改的第一个区段
+     * @param high      本次修改的最后一个区段的下一个区段
+     * @param delta     买票为-1，退票为1
+     */
+    private void adjustCounters(long free_mask, int low, int high, int delta) {
+        int run_low = runLow(free_mask, low), run_high = runHigh(free_mask, high);
+        for (int l = run_low; l < high; l++) {
+            for (int h = Math.max(l, low) + 1; h <= run_high; h++) {
+                interval_counter[intervals.id(l + 1, h + 1)].add(delta);
+            }
+        }
+    }
+
+    /**
+     * @return 包含区段low的连续空闲区段的起点
+     */
+    private static int runLow(long seat_flag_bit, int low) {
+        long below = seat_flag_bit & ((1L << low) - 1);
+        return below == 0 ? 0 : 64 - Long.numberOfLeadingZeros(below);
+    }
+
+    /**
+     * @return 包含区段high - 1的连续空闲区段的终点（不含）
+     */
+    private int runHigh(long seat_flag_bit, int high) {
+        long above = high >= 64 ? 0 : seat_flag_bit >>> high;
+        return above == 0 ? ranges : high + Long.numberOfTrailingZeros(above);
+    }
+}
@@ -0,0 +1,19 @@
+package ticketingsystem;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 座位占用表内部的运行统计，只在启用统计后由占用表更新
+ */
+class SeatMapStats {
+    // allocateSeat调用次数
+    final LongAdder allocations = new LongAdder();
+    // allocateSeat中失败的CAS次数
+    final LongAdder allocate_retries = new LongAdder();
+    // allocateSeat检查过的座位数
+    final LongAdder seats_scanned = new LongAdder();
+    // 因区间售完标记直接返回无票的次数
+    final LongAdder sold_out_hits = new LongAdder();
+    // recycleSeat中失败的CAS次数
+    final LongAdder recycle_retries = new LongAdder();
+}
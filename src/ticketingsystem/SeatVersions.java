@@ -0,0 +1,60 @@
+package ticketingsystem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 占用位分散在多个word中的座位（或一组座位）的写版本，用于读取某一时刻的占用状态
+ * （类似seqlock，但写者之间不互斥，也不等待读者）
+ * 低WRITER_BITS位为进行中的写数，其余为已完成的写数：写者修改前加1，修改后加 (1 << WRITER_BITS) - 1
+ * 读者在没有进行中的写时记下版本，读完后版本不变，读到的就不含之后被撤销的部分占用；
+ * 写者按word顺序CAS、冲突时撤销，不会被其他写者或读者阻塞，只有需要确切结果的读者等待
+ */
+final class SeatVersions {
+    private static final int WRITER_BITS = 16;
+    private static final long WRITERS = (1L << WRITER_BITS) - 1;
+    private static final int SPINS = 16;
+
+    private final AtomicLongArray versions;
+
+    SeatVersions(int num) {
+        versions = new AtomicLongArray(num);
+    }
+
+    void beginWrite(int index) {
+        versions.getAndIncrement(index);
+    }
+
+    void endWrite(int index) {
+        versions.getAndAdd(index, WRITERS);
+    }
+
+    /**
+     * 等到没有进行中的写，先自旋，写者可能被调度出去，多次失败后让出CPU
+     *
+     * @return 当前版本
+     */
+    long readBegin(int index) {
+        int failures = 0;
+        while (true) {
+            long version = versions.get(index);
+            if ((version & WRITERS) == 0)
+                return version;
+            if (++failures < SPINS)
+                Thread.onSpinWait();
+            else
+                Thread.yield();
+        }
+    }
+
+    /**
+     * @return 自readBegin以来没有写开始
+     */
+    boolean validate(int index, long version) {
+        return versions.get(index) == version;
+    }
+
+    long bytes() {
+        // AtomicLongArray对象及其long[]的对象头
+        return 16 + 16 + 8L * versions.length();
+    }
+}
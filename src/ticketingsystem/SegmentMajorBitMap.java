@@ -0,0 +1,233 @@
+package ticketingsystem;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * 以区段为主序的占用表：每个区段一组long，每个bit对应一个座位，1表示该座位在此区段被占用
+ * 区间[departure, arrival)内的空闲座位为各区段对应word按位或后取反，
+ * 一次可以检查64个座位，余票统计即为Long.bitCount
+ * 一个座位的占用按区段顺序逐个置位，某个区段已被占用时撤销之前的区段；
+ * 每组64个座位有一个写版本，判断售完和统计余票时在没有进行中的写时读取，不会把之后被撤销的部分占用当作已售
+ */
+class SegmentMajorBitMap extends SeatBitMap {
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    // 每个区段占用的word数
+    private final int words_per_range;
+    // 最后一个word中有效座位的掩码
+    private final long last_word_mask;
+    // 第j个区段的第w个word位于 j * words_per_range + w
+    private final long[] range_bit_map;
+    // 第w组座位的写版本，占用和释放座位时递增
+    private final SeatVersions versions;
+
+    public SegmentMajorBitMap(int coach_num, int seat_num, IntervalTable intervals) {
+        super(coach_num, seat_num, intervals);
+
+        words_per_range = (total_seat_num + 63) >>> 6;
+        int tail = total_seat_num & 63;
+        last_word_mask = tail == 0 ? -1L : (1L << tail) - 1;
+        range_bit_map = new long[ranges * words_per_range];
+        versions = new SeatVersions(words_per_range);
+    }
+
+    @Override
+    public int allocateSeat(int departure, int arrival) {
+        int interval = intervals.id(departure, arrival);
+        if (knownSoldOut(interval)) {
+            if (stats != null)
+                stats.sold_out_hits.increment();
+            return NO_SEAT;
+        }
+        long release_state = releaseState();
+        int low = departure - 1, high = arrival - 1;
+        int retries = 0;
+        // 先不等待进行中的写，部分占用的座位只是被跳过
+        for (int w = 0; w < words_per_range; w++) {
+            long free = ~occupied(low, high, w) & validMask(w);
+            while (free != 0) {
+                long bit = Long.lowestOneBit(free);
+                if (claim(low, high, w, bit)) {
+                    int seat = (w << 6) + Long.numberOfTrailingZeros(bit);
+                    if (stats != null)
+                        recordAllocation(seat + 1, retries);
+                    return seat;
+                }
+                retries++;
+                // 被其他线程抢占，重新读取该word的占用情况
+                free &= ~occupied(low, high, w) & ~bit;
+            }
+        }
+        // 没有找到时按没有进行中的写的状态逐组确认，确认空闲的座位占用失败说明期间有写，重新读取
+        for (int w = 0; w < words_per_range; w++) {
+            long free;
+            while ((free = stableFree(low, high, w)) != 0) {
+                long bit = Long.lowestOneBit(free);
+                if (claim(low, high, w, bit)) {
+                    int seat = (w << 6) + Long.numberOfTrailingZeros(bit);
+                    if (stats != null)
+                        recordAllocation(seat + 1, retries);
+                    return seat;
+                }
+                retries++;
+            }
+        }
+        markSoldOut(interval, release_state);
+        if (stats != null)
+            recordAllocation(total_seat_num, retries);
+        return NO_SEAT;
+    }
+
+    private void recordAllocation(int scanned, int retries) {
+        stats.allocations.increment();
+        stats.seats_scanned.add(scanned);
+        if (retries != 0)
+            stats.allocate_retries.add(retries);
+    }
+
+    @Override
+    public boolean recycleSeat(int departure, int arrival, int coach, int seat) throws Exception {
+        int index = (coach - 1) * seat_num + seat - 1;
+        int w = index >>> 6;
+        long bit = 1L << (index & 63);
+        int low = departure - 1, high = arrival - 1;
+
+        // 在区间内的bit都应该是1，否则不是本座位售出的车票
+        long version;
+        boolean held;
+        do {
+            version = versions.readBegin(w);
+            held = (allOccupied(low, high, w) & bit) != 0;
+        } while (!versions.validate(w, version));
+        if (!held)
+            return false;
+
+        versions.beginWrite(w);
+        beginRelease();
+        try {
+            for (int j = low; j < high; j++) {
+                long prev = (long) WORDS.getAndBitwiseAnd(range_bit_map, j * words_per_range + w, ~bit);
+                if ((prev & bit) == 0) {
+                    // 与之并发的重复或伪造退票已清除该区段，恢复本次清除的区段
+                    for (int k = low; k < j; k++) {
+                        WORDS.getAndBitwiseOr(range_bit_map, k * words_per_range + w, bit);
+                    }
+                    if (stats != null)
+                        stats.recycle_retries.increment();
+                    return false;
+                }
+            }
+        } finally {
+            endRelease();
+            versions.endWrite(w);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean occupySeat(int departure, int arrival, int coach, int seat) {
+        if (coach < 1 || coach > coach_num || seat < 1 || seat > seat_num)
+            return false;
+        int index = (coach - 1) * seat_num + seat - 1;
+        return claim(departure - 1, arrival - 1, index >>> 6, 1L << (index & 63));
+    }
+
+    /**
+     * 由各区段中该座位的bit拼出座位主序的占用word
+     */
+    @Override
+    long seatWord(int index, int k) {
+        int w = index >>> 6;
+        long bit = 1L << (index & 63);
+        long word = 0;
+        for (int j = k << 6; j < Math.min(ranges, (k + 1) << 6); j++) {
+            if (((long) WORDS.getVolatile(range_bit_map, j * words_per_range + w) & bit) != 0)
+                word |= 1L << (j & 63);
+        }
+        return word;
+    }
+
+    @Override
+    public int query(int departure, int arrival) {
+        int count = 0;
+        int low = departure - 1, high = arrival - 1;
+        for (int w = 0; w < words_per_range; w++) {
+            count += Long.bitCount(stableFree(low, high, w));
+        }
+        return count;
+    }
+
+    @Override
+    public int scanQuery(int departure, int arrival) {
+        return query(departure, arrival);
+    }
+
+    @Override
+    public long seatWordBytes() {
+        // long[]对象头16字节
+        return 16 + (long) range_bit_map.length * 8 + versions.bytes();
+    }
+
+    /**
+     * 区段[low, high)中第w个word的按位或，即在区间内任一区段被占用的座位
+     */
+    private long occupied(int low, int high, int w) {
+        long bits = 0;
+        for (int j = low; j < high; j++) {
+            bits |= (long) WORDS.getVolatile(range_bit_map, j * words_per_range + w);
+        }
+        return bits;
+    }
+
+    /**
+     * 区段[low, high)中第w个word的按位与，即在区间内所有区段都被占用的座位
+     */
+    private long allOccupied(int low, int high, int w) {
+        long bits = -1L;
+        for (int j = low; j < high; j++) {
+            bits &= (long) WORDS.getVolatile(range_bit_map, j * words_per_range + w);
+        }
+        return bits;
+    }
+
+    /**
+     * 没有进行中的写时读取第w组座位中在区段[low, high)内都空闲的座位
+     */
+    private long stableFree(int low, int high, int w) {
+        while (true) {
+            long version = versions.readBegin(w);
+            long free = ~occupied(low, high, w) & validMask(w);
+            if (versions.validate(w, version))
+                return free;
+        }
+    }
+
+    private long validMask(int w) {
+        return w == words_per_range - 1 ? last_word_mask : -1L;
+    }
+
+    /**
+     * 按区段顺序逐个置位，某个区段已被占用时撤销之前的区段
+     * 撤销前其他线程可能看到部分占用，只有不需要确切结果的查找会因此跳过该座位
+     *
+     * @return 所有区段都空闲并已置位时返回true
+     */
+    private boolean claim(int low, int high, int w, long bit) {
+        versions.beginWrite(w);
+        try {
+            for (int j = low; j < high; j++) {
+                long prev = (long) WORDS.getAndBitwiseOr(range_bit_map, j * words_per_range + w, bit);
+                if ((prev & bit) != 0) {
+                    for (int k = low; k < j; k++) {
+                        WORDS.getAndBitwiseAnd(range_bit_map, k * words_per_range + w, ~bit);
+                    }
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            versions.endWrite(w);
+        }
+    }
+}
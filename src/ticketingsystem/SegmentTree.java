@@ -1,44 +1,43 @@
 package ticketingsystem;
 
 import java.util.Random;
-
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 无锁的区间最小值线段树，叶子为各区段的余票数
+ * 每个节点是一个long，高32位为版本号、低32位为值，每次修改都增加版本号以避免ABA
+ * 区间更新先逐个修改叶子，再自底向上刷新祖先：刷新时读取两个孩子并CAS写入父节点，
+ * 每个祖先刷新两次，第二次刷新之后父节点的值一定是在本次修改之后读取孩子得到的
+ * （第一次CAS若失败，说明其他线程在此期间写入了父节点，第二次的读取必然晚于本次修改）
+ * 不使用延迟标记，区间更新的代价为 O(区段数 + log n)，查询为 O(log n)
+ */
 public class SegmentTree {
-    // 线段树数组
-    private int[] tree_data;
-    // 延迟增量累计，可以是负值
-    private int[] addition_record;
-    // 原始数据
-    private int[] origin_data;
-
-    private Object[] lock_targets;
+    // 叶子数，不小于区段数的2的幂
+    private final int size;
+    // 原始数据长度
+    private final int length;
+    // 节点i的孩子为2i和2i+1，叶子从size开始；多余的叶子为Integer.MAX_VALUE
+    private final AtomicLongArray tree_data;
 
     public SegmentTree(int[] data) {
-        origin_data = data;
-        tree_data = new int[data.length * 3];
-        addition_record = new int[data.length * 3];
-
-        lock_targets = new Object[origin_data.length * 3];
-        for (int i = 0; i < origin_data.length * 3; i++)
-            lock_targets[i] = new Object();
-        buildTree(0, 0, data.length - 1);
+        length = data.length;
+        int n = 1;
+        while (n < length)
+            n <<= 1;
+        size = n;
+        tree_data = new AtomicLongArray(size * 2);
+        buildTree(data);
     }
 
     /**
      * 构造线段树
-     * @param root 当前子树的根节点
-     * @param low  区间低端
-     * @param high 区间高端
+     * @param data 原始数据
      */
-    private void buildTree(int root, int low, int high) {
-        addition_record[root] = 0;
-        if (low == high) {
-            tree_data[root] = origin_data[low];
-        } else {
-            int mid = (low + high) / 2;
-            buildTree(root * 2 + 1, low, mid);
-            buildTree(root * 2 + 2, mid + 1, high);
-            tree_data[root] = Math.min(tree_data[root * 2 + 1], tree_data[root * 2 + 2]);
-        }
+    private void buildTree(int[] data) {
+        for (int i = 0; i < size; i++)
+            tree_data.set(size + i, pack(0, i < length ? data[i] : Integer.MAX_VALUE));
+        for (int i = size - 1; i > 0; i--)
+            tree_data.set(i, pack(0, Math.min(value(tree_data.get(i * 2)), value(tree_data.get(i * 2 + 1)))));
     }
 
     /**
@@ -47,97 +46,123 @@ public class SegmentTree {
      * @return 该区间内最小值
      */
     public int query(int qu_low, int qu_high) {
-        return query(0, 0, origin_data.length - 1, qu_low, qu_high);
-    }
-
-    private int query(int root, int curr_low, int curr_high, int qu_low, int qu_high) {
-        // 查询区间和当前区间没有交集
-        if (qu_low > curr_high || qu_high < curr_low)
-            return Integer.MAX_VALUE;
-        // 查询区包含当前区间
-        if (qu_low <= curr_low && qu_high >= curr_high)
-            return tree_data[root];
-        pushDown(root);
-        int mid = (curr_low + curr_high) / 2;
-        return Math.min(query(root * 2 + 1, curr_low, mid, qu_low, qu_high),
-                query(root * 2 + 2, mid + 1, curr_high, qu_low, qu_high));
+        int result = Integer.MAX_VALUE;
+        int low = qu_low + size, high = qu_high + size + 1;
+        while (low < high) {
+            if ((low & 1) != 0)
+                result = Math.min(result, value(tree_data.get(low++)));
+            if ((high & 1) != 0)
+                result = Math.min(result, value(tree_data.get(--high)));
+            low >>>= 1;
+            high >>>= 1;
+        }
+        return result;
     }
 
     /**
-     * 将当前节点的延迟累计向孩子节点传递
-     * 在查询的时候也可能存在更新操作
-     *
-     * @param root
+     * 线段树区间更新操作，更新返回时所有祖先节点都已包含本次修改
+     * @param up_low 目标区间低端
+     * @param up_high 目标区间高端
+     * @param addition 增量，可以是负值
      */
-    private void pushDown(int root) {
-        if (addition_record[root] != 0) {
-            synchronized (this.lock_targets[root]) {
-                addition_record[root * 2 + 1] += addition_record[root];
-                addition_record[root * 2 + 2] += addition_record[root];
-
-                // 区间内所有的值都加上延迟累计
-                tree_data[root * 2 + 1] += addition_record[root];
-                tree_data[root * 2 + 2] += addition_record[root];
-                // 延迟累计已产生作用，故清零
-                addition_record[root] = 0;
+    public void update(int up_low, int up_high, int addition) {
+        int low = up_low + size, high = up_high + size;
+        for (int i = low; i <= high; i++) {
+            long curr;
+            do {
+                curr = tree_data.get(i);
+            } while (!tree_data.compareAndSet(i, curr, pack(version(curr) + 1, value(curr) + addition)));
+        }
+        // 逐层刷新被修改叶子的所有祖先
+        while (low > 1) {
+            low >>>= 1;
+            high >>>= 1;
+            for (int i = low; i <= high; i++) {
+                refresh(i);
+                refresh(i);
             }
         }
     }
 
     /**
-     * 线段树区间更新操作
-     * @param root 当前区间最小值的index
-     * @param curr_low 当前区间低端
-     * @param curr_high 当前区间高端
-     * @param up_low 目标区间低端
-     * @param up_high 目标区间高端
-     * @param addition
+     * 对每个叶子加上各自的增量，所有被修改的叶子的祖先只刷新一次
+     * @param additions 各区段的增量，长度为原始数据长度
      */
-    private void update(int root, int curr_low, int curr_high, int up_low, int up_high, int addition) {
-        // 当前区间和目标区间没有交集
-        if (curr_high < up_low || curr_low > up_high)
+    public void update(int[] additions) {
+        int low = -1, high = -1;
+        for (int j = 0; j < length; j++) {
+            if (additions[j] == 0)
+                continue;
+            int i = j + size;
+            long curr;
+            do {
+                curr = tree_data.get(i);
+            } while (!tree_data.compareAndSet(i, curr, pack(version(curr) + 1, value(curr) + additions[j])));
+            if (low < 0)
+                low = i;
+            high = i;
+        }
+        if (low < 0)
             return;
-
-        // 当前区间在目标区间内
-        if (up_low <= curr_low && up_high >= curr_high) {
-            synchronized (this.lock_targets[root]) {
-                addition_record[root] += addition;
-                tree_data[root] += addition;
+        while (low > 1) {
+            low >>>= 1;
+            high >>>= 1;
+            for (int i = low; i <= high; i++) {
+                refresh(i);
+                refresh(i);
             }
-            return;
         }
-        pushDown(root);
-        int mid = (curr_high + curr_low) / 2;
-        update(root * 2 + 1, curr_low, mid, up_low, up_high, addition);
-        update(root * 2 + 2, mid + 1, curr_high, up_low, up_high, addition);
-        tree_data[root] = Math.min(tree_data[root * 2 + 1], tree_data[root * 2 + 2]);
     }
 
-    public void update(int up_low, int up_high, int addition) {
-        update(0, 0, origin_data.length - 1, up_low, up_high, addition);
+    /**
+     * 以孩子的当前值重新计算节点，CAS失败说明其他线程已经刷新过
+     * 值不变时也要写入新版本，使在此之前读取孩子的其他线程的CAS失败
+     */
+    private void refresh(int root) {
+        long curr = tree_data.get(root);
+        int min = Math.min(value(tree_data.get(root * 2)), value(tree_data.get(root * 2 + 1)));
+        tree_data.compareAndSet(root, curr, pack(version(curr) + 1, min));
+    }
+
+    private static long pack(int version, int value) {
+        return ((long) version << 32) | (value & 0xffffffffL);
     }
 
-    public static void main(String[] args) {
-        int station = 5;
+    private static int version(long node) {
+        return (int) (node >>> 32);
+    }
+
+    private static int value(long node) {
+        return (int) node;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final int station = 5;
         int[] data = new int[station];
         for (int i =0; i < station; i++)
             data[i] = 3;
-        SegmentTree st = new SegmentTree(data);
-
-        Random rand = new Random();
-
-        int test_num = 10000;
-        for(int i=0;i<test_num;i++){
-            int departure = rand.nextInt(station) + 1;
-            int arrival = departure + rand.nextInt(station - departure + 1) + 1; // arrival is always greater than departure
-            if (i % 3 == 0){
-                st.update(departure-1, arrival-2, -1);
-            }else if(i % 11 == 0){
-                st.update(departure-1, arrival-2, 1);
-            }else {
-                st.query(departure, arrival);
-            }
+        final SegmentTree st = new SegmentTree(data);
+
+        // 多个线程对随机区间成对地减1、加1，结束后所有区段应恢复原值
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    Random rand = new Random();
+                    int test_num = 10000;
+                    for (int i = 0; i < test_num; i++) {
+                        int departure = rand.nextInt(station) + 1;
+                        int arrival = departure + rand.nextInt(station - departure + 1) + 1; // arrival is always greater than departure
+                        st.update(departure - 1, arrival - 2, -1);
+                        st.query(departure - 1, arrival - 2);
+                        st.update(departure - 1, arrival - 2, 1);
+                    }
+                }
+            });
+            threads[t].start();
         }
-
+        for (Thread thread : threads)
+            thread.join();
+        System.out.println("min = " + st.query(0, station - 1) + " (expected 3)");
     }
 }
@@ -0,0 +1,138 @@
+package ticketingsystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 发往某个分片的一次操作及其结果，车次为分片内的车次
+ * 经socket传输时请求与结果分别序列化，进程内传输时直接传递对象
+ */
+final class ShardMessage {
+    static final byte BUY = 0;
+    static final byte INQUIRY = 1;
+    static final byte REFUND = 2;
+    static final byte BUY_REPLAY = 3;
+    static final byte REFUND_REPLAY = 4;
+
+    byte op;
+    int route;
+    int departure;
+    int arrival;
+    String passenger;
+    // 退票、重放请求中的车票，以及购票结果
+    long tid;
+    int coach;
+    int seat;
+    // 购票、退票成功为1，失败为0；查询为余票数
+    int result;
+    // 分片执行时抛出的异常，经socket传输时随结果序列化
+    RuntimeException error;
+    // 分片执行完成后设置，只在进程内使用
+    CompletableFuture<ShardMessage> done;
+
+    static ShardMessage buy(String passenger, int route, int departure, int arrival) {
+        ShardMessage m = request(BUY, route, departure, arrival);
+        m.passenger = passenger;
+        return m;
+    }
+
+    static ShardMessage inquiry(int route, int departure, int arrival) {
+        return request(INQUIRY, route, departure, arrival);
+    }
+
+    /**
+     * @param op REFUND、BUY_REPLAY或REFUND_REPLAY，请求中带有整张车票
+     */
+    static ShardMessage ticket(byte op, long tid, String passenger, int route, int departure, int arrival,
+                               int coach, int seat) {
+        ShardMessage m = request(op, route, departure, arrival);
+        m.tid = tid;
+        m.passenger = passenger;
+        m.coach = coach;
+        m.seat = seat;
+        return m;
+    }
+
+    private static ShardMessage request(byte op, int route, int departure, int arrival) {
+        ShardMessage m = new ShardMessage();
+        m.op = op;
+        m.route = route;
+        m.departure = departure;
+        m.arrival = arrival;
+        return m;
+    }
+
+    void writeRequest(DataOutputStream out) throws IOException {
+        out.writeByte(op);
+        out.writeInt(route);
+        out.writeInt(departure);
+        out.writeInt(arrival);
+        if (op != INQUIRY)
+            out.writeUTF(passenger == null ? "" : passenger);
+        if (carriesTicket(op)) {
+            out.writeLong(tid);
+            out.writeInt(coach);
+            out.writeInt(seat);
+        }
+    }
+
+    static ShardMessage readRequest(DataInputStream in) throws IOException {
+        ShardMessage m = request(in.readByte(), in.readInt(), in.readInt(), in.readInt());
+        if (m.op != INQUIRY)
+            m.passenger = in.readUTF();
+        if (carriesTicket(m.op)) {
+            m.tid = in.readLong();
+            m.coach = in.readInt();
+            m.seat = in.readInt();
+        }
+        return m;
+    }
+
+    private static boolean carriesTicket(byte op) {
+        return op == REFUND || op == BUY_REPLAY || op == REFUND_REPLAY;
+    }
+
+    void writeResponse(DataOutputStream out) throws IOException {
+        out.writeBoolean(error != null);
+        if (error != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream object = new ObjectOutputStream(bytes)) {
+                object.writeObject(error);
+            }
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            return;
+        }
+        out.writeInt(result);
+        if (op == BUY && result != 0) {
+            out.writeLong(tid);
+            out.writeInt(coach);
+            out.writeInt(seat);
+        }
+    }
+
+    void readResponse(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            try (ObjectInputStream object = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                error = (RuntimeException) object.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+            return;
+        }
+        result = in.readInt();
+        if (op == BUY && result != 0) {
+            tid = in.readLong();
+            coach = in.readInt();
+            seat = in.readInt();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ticketingsystem;
+
+import java.nio.file.Paths;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 一个分片：独占一个TicketingDS，所有操作都由同一个工作线程按到达顺序执行
+ * 分片内没有并发写，座位表上的CAS总是一次成功；分片数一般取CPU核数
+ */
+final class ShardServer implements AutoCloseable {
+    // 通知工作线程退出
+    private static final ShardMessage CLOSE = new ShardMessage();
+
+    private final TicketingDS tds;
+    private final BlockingQueue<ShardMessage> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+
+    /**
+     * @param shard    分片编号，用于线程名
+     * @param routenum 分片内的车次数
+     */
+    ShardServer(int shard, int routenum, int coachnum, int seatnum, int stationnum,
+                TicketingOptions options) throws InterruptedException {
+        if (options.journal_dir != null) {
+            // 各分片的车次编号只在分片内有效，日志与快照放在各自的子目录中，恢复时只重放本分片的记录
+            options = options.copy();
+            options.journal_dir = Paths.get(options.journal_dir, "shard-" + shard).toString();
+        }
+        tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, 1, options);
+        worker = new Thread(this::serve, "ticketing-shard-" + shard);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 提交一个操作，完成后设置message.done
+     */
+    CompletableFuture<ShardMessage> submit(ShardMessage message) {
+        message.done = new CompletableFuture<>();
+        queue.add(message);
+        return message.done;
+    }
+
+    private void serve() {
+        try {
+            while (true) {
+                ShardMessage message = queue.take();
+                if (message == CLOSE)
+                    return;
+                try {
+                    execute(message);
+                    message.done.complete(message);
+                } catch (RuntimeException e) {
+                    // 非法的请求不能使工作线程退出
+                    message.done.completeExceptionally(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void execute(ShardMessage m) {
+        switch (m.op) {
+            case ShardMessage.BUY:
+                Ticket ticket = tds.buyTicket(m.passenger, m.route, m.departure, m.arrival);
+                m.result = ticket == null ? 0 : 1;
+                if (ticket != null) {
+                    m.tid = ticket.tid;
+                    m.coach = ticket.coach;
+                    m.seat = ticket.seat;
+                }
+                break;
+            case ShardMessage.INQUIRY:
+                m.result = tds.inquiry(m.route, m.departure, m.arrival);
+                break;
+            case ShardMessage.REFUND:
+                m.result = tds.refundTicket(ticket(m)) ? 1 : 0;
+                break;
+            case ShardMessage.BUY_REPLAY:
+                m.result = tds.buyTicketReplay(ticket(m)) ? 1 : 0;
+                break;
+            case ShardMessage.REFUND_REPLAY:
+                m.result = tds.refundTicketReplay(ticket(m)) ? 1 : 0;
+                break;
+            default:
+                throw new IllegalArgumentException("未知的操作: " + m.op);
+        }
+    }
+
+    private static Ticket ticket(ShardMessage m) {
+        return TicketFactory.ConstructTicket(m.tid, m.passenger, m.route, m.departure, m.arrival, m.coach, m.seat);
+    }
+
+    /**
+     * 等待工作线程执行完已提交的操作后退出；等待时被中断则保留中断状态直接返回
+     */
+    @Override
+    public void close() {
+        queue.add(CLOSE);
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package ticketingsystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+/**
+ * ShardedTicketingSystem与各分片之间的通信方式，按TicketingOptions.shard_transport构造
+ * call阻塞到分片执行完毕，返回带结果的消息
+ */
+abstract class ShardTransport implements Closeable {
+
+    /**
+     * @param shard   分片编号
+     * @param request 请求
+     * @return 带结果的消息
+     */
+    abstract ShardMessage call(int shard, ShardMessage request);
+
+    static ShardTransport Construct(TicketingOptions.Transport kind, ShardServer[] servers) throws IOException {
+        switch (kind) {
+            case LOOPBACK:
+                return new Loopback(servers);
+            case LOCAL:
+            default:
+                return new Local(servers);
+        }
+    }
+
+    /**
+     * 分片执行时抛出的异常原样交给调用方
+     */
+    private static ShardMessage await(ShardServer server, ShardMessage request) {
+        try {
+            return server.submit(request).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * 直接把请求放入分片的队列
+     */
+    static final class Local extends ShardTransport {
+        private final ShardServer[] servers;
+
+        Local(ShardServer[] servers) {
+            this.servers = servers;
+        }
+
+        @Override
+        ShardMessage call(int shard, ShardMessage request) {
+            return await(servers[shard], request);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * 每个分片在回环地址上监听一个端口，每个连接由一个线程读取请求、交给分片并写回结果
+     * 每个调用线程对每个分片持有一条连接，同一连接上的请求串行
+     */
+    static final class Loopback extends ShardTransport {
+        private final ServerSocket[] listeners;
+        private final List<Socket> sockets = new ArrayList<>();
+        private final ThreadLocal<Connection[]> connections;
+        private volatile boolean closed;
+
+        Loopback(final ShardServer[] servers) throws IOException {
+            listeners = new ServerSocket[servers.length];
+            for (int i = 0; i < servers.length; i++) {
+                final ServerSocket listener = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+                final ShardServer server = servers[i];
+                listeners[i] = listener;
+                Thread acceptor = new Thread(() -> accept(listener, server), "ticketing-shard-listener-" + i);
+                acceptor.setDaemon(true);
+                acceptor.start();
+            }
+            connections = ThreadLocal.withInitial(() -> new Connection[servers.length]);
+        }
+
+        private void accept(ServerSocket listener, ShardServer server) {
+            while (!closed) {
+                try {
+                    final Socket socket = listener.accept();
+                    register(socket);
+                    Thread handler = new Thread(() -> handle(socket, server), "ticketing-shard-connection");
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    // 关闭监听时accept抛出异常
+                    return;
+                }
+            }
+        }
+
+        private void handle(Socket socket, ShardServer server) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                while (true) {
+                    ShardMessage request = ShardMessage.readRequest(in);
+                    ShardMessage response;
+                    try {
+                        response = await(server, request);
+                    } catch (RuntimeException e) {
+                        // 非法的请求把异常传回调用方，不断开连接
+                        request.error = e;
+                        response = request;
+                    }
+                    response.writeResponse(out);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // 对端关闭连接
+            }
+        }
+
+        @Override
+        ShardMessage call(int shard, ShardMessage request) {
+            Connection[] mine = connections.get();
+            try {
+                if (mine[shard] == null) {
+                    Socket socket = new Socket(InetAddress.getLoopbackAddress(), listeners[shard].getLocalPort());
+                    register(socket);
+                    mine[shard] = new Connection(socket);
+                }
+                Connection connection = mine[shard];
+                request.writeRequest(connection.out);
+                connection.out.flush();
+                request.readResponse(connection.in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // 与Local一致，分片执行时抛出的异常原样交给调用方
+            if (request.error != null)
+                throw request.error;
+            return request;
+        }
+
+        private void register(Socket socket) throws IOException {
+            socket.setTcpNoDelay(true);
+            synchronized (sockets) {
+                sockets.add(socket);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            for (ServerSocket listener : listeners)
+                listener.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets)
+                    socket.close();
+                sockets.clear();
+            }
+        }
+
+        private static final class Connection {
+            final DataInputStream in;
+            final DataOutputStream out;
+
+            Connection(Socket socket) throws IOException {
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            }
+        }
+    }
+}
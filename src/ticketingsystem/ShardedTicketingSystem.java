@@ -0,0 +1,116 @@
+package ticketingsystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * 按车次分片的售票系统：车次之间互不影响，第route个车次由分片 (route - 1) % 分片数 负责，
+ * 在分片内是第 (route - 1) / 分片数 + 1 个车次
+ * 每个分片是一个独立的TicketingDS，由单个工作线程执行所有操作，经ShardTransport访问
+ *
+ * 返回给调用方的车票使用全局车次，tid为 分片内tid * 分片数 + 分片编号，在所有分片之间唯一，
+ * 构造时检查使用ROUTE_SEQUENCE时该换算不会溢出
+ * 设置journal_dir时第i个分片的日志与快照位于其中的shard-i子目录
+ */
+public class ShardedTicketingSystem implements TicketingSystem, Closeable {
+    private final int ROUTE_NUM;
+    private final int shard_num;
+    private final ShardServer[] servers;
+    private final ShardTransport transport;
+
+    public ShardedTicketingSystem(int routenum, int coachnum, int seatnum, int stationnum, int shardnum)
+            throws InterruptedException, IOException {
+        this(routenum, coachnum, seatnum, stationnum, shardnum, new TicketingOptions());
+    }
+
+    public ShardedTicketingSystem(int routenum, int coachnum, int seatnum, int stationnum, int shardnum,
+                                  TicketingOptions options) throws InterruptedException, IOException {
+        if (shardnum < 1 || shardnum > routenum)
+            throw new IllegalArgumentException("分片数应在1到车次数之间");
+        // ROUTE_SEQUENCE的tid高位为车次，分片0负责的车次最多，其tid上界换算为全局tid后不能溢出；
+        // 其它策略是计数器，要售出约2^63 / 分片数张车票才会溢出
+        if (options.id_strategy == TicketingOptions.IdStrategy.ROUTE_SEQUENCE
+                && TicketIdGenerator.RouteSequence.maxTid((routenum + shardnum - 1) / shardnum)
+                > (Long.MAX_VALUE - (shardnum - 1)) / shardnum)
+            throw new IllegalArgumentException("车次数与分片数超出ROUTE_SEQUENCE的tid编码范围");
+        ROUTE_NUM = routenum;
+        shard_num = shardnum;
+        servers = new ShardServer[shardnum];
+        for (int i = 0; i < shardnum; i++) {
+            // 分片i负责的车次数
+            int routes = (routenum - i + shardnum - 1) / shardnum;
+            servers[i] = new ShardServer(i, routes, coachnum, seatnum, stationnum, options);
+        }
+        transport = ShardTransport.Construct(options.shard_transport, servers);
+    }
+
+    private int shard(int route) {
+        if (route < 1 || route > ROUTE_NUM)
+            throw new IndexOutOfBoundsException("车次不存在: " + route);
+        return (route - 1) % shard_num;
+    }
+
+    private int localRoute(int route) {
+        return (route - 1) / shard_num + 1;
+    }
+
+    @Override
+    public Ticket buyTicket(String passenger, int route, int departure, int arrival) {
+        int shard = shard(route);
+        ShardMessage result = transport.call(shard,
+                ShardMessage.buy(passenger, localRoute(route), departure, arrival));
+        if (result.result == 0)
+            return null;
+        return TicketFactory.ConstructTicket(result.tid * shard_num + shard, passenger, route, departure, arrival,
+                result.coach, result.seat);
+    }
+
+    @Override
+    public int inquiry(int route, int departure, int arrival) {
+        return transport.call(shard(route), ShardMessage.inquiry(localRoute(route), departure, arrival)).result;
+    }
+
+    @Override
+    public boolean refundTicket(Ticket ticket) {
+        return call(ShardMessage.REFUND, ticket);
+    }
+
+    /**
+     * 按车票的全局车次交给负责的分片重放，车票须是本系统按同样分片方式签发的
+     */
+    @Override
+    public boolean buyTicketReplay(Ticket ticket) {
+        return call(ShardMessage.BUY_REPLAY, ticket);
+    }
+
+    @Override
+    public boolean refundTicketReplay(Ticket ticket) {
+        return call(ShardMessage.REFUND_REPLAY, ticket);
+    }
+
+    /**
+     * 把车票换算为分片内的车次和tid后交给负责的分片
+     *
+     * @return 分片执行成功时返回true；车次不存在或tid不属于该分片时返回false
+     */
+    private boolean call(byte op, Ticket ticket) {
+        if (ticket == null || ticket.route < 1 || ticket.route > ROUTE_NUM)
+            return false;
+        int shard = shard(ticket.route);
+        if (ticket.tid % shard_num != shard)
+            return false;
+        ShardMessage request = ShardMessage.ticket(op, ticket.tid / shard_num, ticket.passenger,
+                localRoute(ticket.route), ticket.departure, ticket.arrival, ticket.coach, ticket.seat);
+        return transport.call(shard, request).result != 0;
+    }
+
+    /**
+     * 关闭传输并停止所有分片的工作线程
+     */
+    @Override
+    public void close() throws IOException {
+        transport.close();
+        for (ShardServer server : servers)
+            server.close();
+    }
+}
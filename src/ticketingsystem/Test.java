@@ -1,7 +1,13 @@
 package ticketingsystem;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class TestResult {
     public double avgSingleBuyTicketTime;
@@ -57,6 +63,11 @@ public class Test {
     }
 
     public TestResult test(final int threadnum, final int testnum, final int routenum, final int coachnum, final int seatnum, final int stationnum) throws Exception {
+        return test(threadnum, testnum, routenum, coachnum, seatnum, stationnum, new TicketingOptions());
+    }
+
+    public TestResult test(final int threadnum, final int testnum, final int routenum, final int coachnum, final int seatnum, final int stationnum,
+                           TicketingOptions options) throws Exception {
         Thread[] threads = new Thread[threadnum];
 
         // 用于计算单线程方法平均耗时
@@ -67,7 +78,7 @@ public class Test {
         final int[][] executeCount = new int[threadnum][3];
 
         long startTime = System.currentTimeMillis();
-        final TicketingDS tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, threadnum);
+        final TicketingDS tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, threadnum, options);
 
         for (int i = 0; i < threadnum; i++) {
             final int finalI = i;
@@ -148,18 +159,97 @@ public class Test {
         return test(16);
     }
 
-    public static void main(String[] args) throws Exception {
+    /**
+     * 多线程并发买票/退票/查询若干轮，每轮结束后（静止状态下）比较区间计数、从历史位置遍历与全量遍历的余票是否一致；
+     * 并发过程中计数查询的结果必须落在[0, 总座位数]内
+     *
+     * @return 不一致的次数
+     */
+    public int checkInquiryConsistency(final int threadnum, final int testnum, final int rounds,
+                                       final int routenum, final int coachnum, final int seatnum, final int stationnum) throws Exception {
+        final TicketingDS tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, threadnum,
+                new TicketingOptions(TicketingOptions.InquiryMode.COUNTER));
+        final int total = coachnum * seatnum;
+        final AtomicInteger errors = new AtomicInteger();
+
+        for (int r = 0; r < rounds; r++) {
+            Thread[] threads = new Thread[threadnum];
+            for (int i = 0; i < threadnum; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    public void run() {
+                        Random rand = new Random();
+                        Ticket ticket;
+                        ArrayList<Ticket> soldTicket = new ArrayList<>();
+
+                        for (int j = 0; j < testnum; j++) {
+                            int sel = rand.nextInt(inqpc);
+                            int route = rand.nextInt(routenum) + 1;
+                            int departure = rand.nextInt(stationnum - 1) + 1;
+                            int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                            if (sel < retpc && soldTicket.size() > 0) {
+                                ticket = soldTicket.remove(rand.nextInt(soldTicket.size()));
+                                tds.refundTicket(ticket);
+                            } else if (sel < buypc) {
+                                if ((ticket = tds.buyTicket(passengerName(testnum), route, departure, arrival)) != null)
+                                    soldTicket.add(ticket);
+                            } else {
+                                int leftTicket = tds.inquiry(route, departure, arrival);
+                                if (leftTicket < 0 || leftTicket > total)
+                                    errors.incrementAndGet();
+                            }
+                        }
+                        // 保留一部分已售车票，使下一轮从非空状态开始
+                        for (int j = soldTicket.size() - 1; j >= 0; j -= 2)
+                            tds.refundTicket(soldTicket.get(j));
+                    }
+                });
+                threads[i].start();
+            }
+            for (int i = 0; i < threadnum; i++) {
+                threads[i].join();
+            }
+
+            for (int route = 1; route <= routenum; route++) {
+                for (int departure = 1; departure < stationnum; departure++) {
+                    for (int arrival = departure + 1; arrival <= stationnum; arrival++) {
+                        int counted = tds.inquiry(route, departure, arrival);
+                        int from_history = tds.inquiryFromHistory(route, departure, arrival);
+                        int scanned = tds.inquiryScan(route, departure, arrival);
+                        if (counted != scanned || from_history != scanned) {
+                            errors.incrementAndGet();
+                            System.out.println("Inconsistent inquiry: route " + route + " " + departure + "->" + arrival
+                                    + " counter=" + counted + " history=" + from_history + " scan=" + scanned);
+                        }
+                    }
+                }
+            }
+        }
+
+        // 以上只在所有线程结束后比较；运行期间的查询结果由HistoryChecker按调用/返回时间检查，
+        // 座位很少时修改之间的重叠最多
+        for (int r = 0; r < rounds; r++) {
+            java.util.List<HistoryChecker.Operation> history = Trace.record(
+                    new TicketingOptions(TicketingOptions.InquiryMode.COUNTER), threadnum, testnum, 2, 2, 4, stationnum);
+            for (String error : new HistoryChecker(2, 2, 4, stationnum).check(history)) {
+                errors.incrementAndGet();
+                System.out.println("Inquiry under load: " + error);
+            }
+        }
+        return errors.get();
+    }
+
+    /**
+     * 按thread_nums依次测试，每种线程数重复each次取平均
+     */
+    public void sweep(int routenum, int coachnum, int seatnum, int stationnum, TicketingOptions options) throws Exception {
         int[] thread_nums = {4, 8, 16, 32, 64};
         int each = 5;
 
-        Test test = new Test();
-
-        double[] result = new double[thread_nums.length];
         TestResult[] testResult = new TestResult[thread_nums.length];
         for (int i = 0; i < thread_nums.length; i++) {
             testResult[i] = new TestResult();
             for (int j = 0; j < each; j++) {
-                TestResult tmp = test.test(thread_nums[i]);
+                TestResult tmp = test(thread_nums[i], 10000, routenum, coachnum, seatnum, stationnum, options);
                 testResult[i].avgSingleBuyTicketTime += tmp.avgSingleBuyTicketTime;
                 testResult[i].avgSingleInquiryTime += tmp.avgSingleInquiryTime;
                 testResult[i].avgSingleRefundTime += tmp.avgSingleRefundTime;
@@ -171,6 +261,1432 @@ public class Test {
             testResult[i].throughput /= each;
             System.out.println("Thread: " + thread_nums[i] + "\n" + testResult[i]);
         }
-        // TODO 验证多线程的正确性
+    }
+
+    /**
+     * 用ThreadMXBean统计单线程下各操作的堆分配量，使用可复用Ticket的购票、退票和查询路径都要求不分配内存
+     * 同时输出各操作的平均耗时，退票的耗时包括降低历史位置，站点越多需要降低的区间越多
+     *
+     * @param stationnum 站点数
+     * @return 有分配的操作数
+     */
+    public int checkAllocation(int stationnum) throws Exception {
+        final int coachnum = 100, seatnum = 100;
+        final int total = coachnum * seatnum;
+        final int rounds = 50;
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+
+        int errors = 0;
+        for (TicketingOptions.InquiryMode mode : TicketingOptions.InquiryMode.values()) {
+            TicketingDS tds = new TicketingDS(1, coachnum, seatnum, stationnum, 1, new TicketingOptions(mode));
+            Ticket[] holders = new Ticket[total];
+            boolean[] sold = new boolean[total];
+            int[] departures = new int[total];
+            int[] arrivals = new int[total];
+            Random rand = new Random();
+            for (int i = 0; i < total; i++) {
+                holders[i] = new Ticket();
+                departures[i] = rand.nextInt(stationnum - 1) + 1;
+                arrivals[i] = departures[i] + rand.nextInt(stationnum - departures[i]) + 1;
+            }
+            String passenger = passengerName(total);
+
+            long[] bytes = new long[3];
+            long[] nanos = new long[3];
+            long ops = 0;
+            // 第一轮用于预热，不计入统计
+            for (int r = 0; r <= rounds; r++) {
+                long start = mx.getThreadAllocatedBytes(tid);
+                long t0 = System.nanoTime();
+                for (int i = 0; i < total; i++) {
+                    sold[i] = tds.buyTicket(holders[i], passenger, 1, departures[i], arrivals[i]);
+                }
+                long t1 = System.nanoTime();
+                long bought = mx.getThreadAllocatedBytes(tid);
+                for (int i = 0; i < total; i++) {
+                    tds.inquiry(1, departures[i], arrivals[i]);
+                }
+                long t2 = System.nanoTime();
+                long inquired = mx.getThreadAllocatedBytes(tid);
+                for (int i = 0; i < total; i++) {
+                    if (sold[i])
+                        tds.refundTicket(holders[i]);
+                }
+                long t3 = System.nanoTime();
+                long refunded = mx.getThreadAllocatedBytes(tid);
+                if (r > 0) {
+                    bytes[0] += bought - start;
+                    bytes[1] += refunded - inquired;
+                    bytes[2] += inquired - bought;
+                    nanos[0] += t1 - t0;
+                    nanos[1] += t3 - t2;
+                    nanos[2] += t2 - t1;
+                    ops += total;
+                }
+            }
+            System.out.println("Inquiry mode " + mode + ": buy " + bytes[0] / ops + " bytes/op " + nanos[0] / ops
+                    + " ns/op, refund " + bytes[1] / ops + " bytes/op " + nanos[1] / ops
+                    + " ns/op, inquiry " + bytes[2] / ops + " bytes/op " + nanos[2] / ops + " ns/op");
+            for (long b : bytes) {
+                if (b / ops != 0)
+                    errors++;
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * 关注GC的购票/退票/查询吞吐测试：每个线程在64个槽位上轮流买票和退票，
+     * reuse为true时使用可复用的Ticket购票，否则每次购票新建Ticket
+     * 输出吞吐量、每次操作的堆分配量以及测试期间GC的次数和耗时
+     */
+    public void gcBenchmark(final int threadnum, final int testnum, final boolean reuse) throws Exception {
+        final int routenum = 5, coachnum = 8, seatnum = 100, stationnum = 10;
+        final TicketingDS tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, threadnum);
+        final com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final AtomicLong allocated = new AtomicLong();
+        final String[] passengers = new String[1024];
+        for (int i = 0; i < passengers.length; i++)
+            passengers[i] = "passenger" + i;
+
+        long gc_count = 0, gc_time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gc_count -= gc.getCollectionCount();
+            gc_time -= gc.getCollectionTime();
+        }
+        long startTime = System.nanoTime();
+
+        Thread[] threads = new Thread[threadnum];
+        for (int i = 0; i < threadnum; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    long tid = Thread.currentThread().getId();
+                    long start = mx.getThreadAllocatedBytes(tid);
+                    Random rand = new Random();
+                    Ticket[] slots = new Ticket[64];
+                    boolean[] held = new boolean[64];
+                    if (reuse) {
+                        for (int k = 0; k < slots.length; k++)
+                            slots[k] = new Ticket();
+                    }
+
+                    for (int j = 0; j < testnum; j++) {
+                        int route = rand.nextInt(routenum) + 1;
+                        int departure = rand.nextInt(stationnum - 1) + 1;
+                        int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                        int k = j & 63;
+                        if (rand.nextInt(inqpc) >= buypc) {
+                            tds.inquiry(route, departure, arrival);
+                        } else if (held[k]) {
+                            tds.refundTicket(slots[k]);
+                            held[k] = false;
+                        } else if (reuse) {
+                            held[k] = tds.buyTicket(slots[k], passengers[j & 1023], route, departure, arrival);
+                        } else {
+                            slots[k] = tds.buyTicket(passengers[j & 1023], route, departure, arrival);
+                            held[k] = slots[k] != null;
+                        }
+                    }
+                    allocated.addAndGet(mx.getThreadAllocatedBytes(tid) - start);
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threadnum; i++) {
+            threads[i].join();
+        }
+
+        long totalTime = System.nanoTime() - startTime;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gc_count += gc.getCollectionCount();
+            gc_time += gc.getCollectionTime();
+        }
+        long ops = (long) threadnum * testnum;
+        System.out.println("Thread: " + threadnum + ", reuse ticket: " + reuse
+                + ", throughput=" + String.format("%.2f", ops * 1e9 / totalTime) + "times/s"
+                + ", allocated=" + allocated.get() / ops + "bytes/op"
+                + ", gc=" + gc_count + " collections/" + gc_time + "ms");
+    }
+
+    /**
+     * tid生成器的竞争测试：所有线程同时在随机车次上不停地取tid
+     *
+     * @return 每秒生成的tid数
+     */
+    public double idBenchmark(TicketingOptions.IdStrategy strategy, final int threadnum, final int testnum) throws Exception {
+        final int routenum = 5;
+        TicketingOptions options = new TicketingOptions();
+        options.id_strategy = strategy;
+        final TicketIdGenerator generator = TicketIdGenerator.Construct(options, routenum);
+
+        Thread[] threads = new Thread[threadnum];
+        long startTime = System.nanoTime();
+        for (int i = 0; i < threadnum; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Random rand = new Random();
+                    for (int j = 0; j < testnum; j++) {
+                        generator.next(rand.nextInt(routenum) + 1);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threadnum; i++) {
+            threads[i].join();
+        }
+        return 1.0 * threadnum * testnum * 1e9 / (System.nanoTime() - startTime);
+    }
+
+    /**
+     * 以相同的操作序列分别运行未包装与InstrumentedTicketingSystem包装的TicketingDS，比较吞吐量
+     *
+     * @param instrumented 是否包装
+     * @return 每秒操作数
+     */
+    public double instrumentBenchmark(final int threadnum, final int testnum, boolean instrumented) throws Exception {
+        final int routenum = 5, coachnum = 8, seatnum = 100, stationnum = 10;
+        TicketingDS tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, threadnum);
+        final TicketingSystem system = instrumented ? new InstrumentedTicketingSystem(tds, routenum) : tds;
+        Thread[] threads = new Thread[threadnum];
+        long startTime = System.nanoTime();
+        for (int i = 0; i < threadnum; i++) {
+            final int finalI = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Random rand = new Random(finalI);
+                    ArrayList<Ticket> soldTicket = new ArrayList<>();
+                    for (int j = 0; j < testnum; j++) {
+                        int sel = rand.nextInt(inqpc);
+                        int route = rand.nextInt(routenum) + 1;
+                        int departure = rand.nextInt(stationnum - 1) + 1;
+                        int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                        if (sel < retpc && soldTicket.size() > 0) {
+                            system.refundTicket(soldTicket.remove(rand.nextInt(soldTicket.size())));
+                        } else if (sel < buypc) {
+                            Ticket ticket = system.buyTicket("passenger", route, departure, arrival);
+                            if (ticket != null)
+                                soldTicket.add(ticket);
+                        } else {
+                            system.inquiry(route, departure, arrival);
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threadnum; i++) {
+            threads[i].join();
+        }
+        double throughput = 1.0 * threadnum * testnum * 1e9 / (System.nanoTime() - startTime);
+        if (instrumented)
+            System.out.print(((InstrumentedTicketingSystem) system).snapshot());
+        return throughput;
+    }
+
+    /**
+     * 包装后的批量购票、退票转发给TicketingDS，各自只记录一次，不经过单张购票、退票
+     *
+     * @return 错误数
+     */
+    public int checkInstrumentedBatches() throws Exception {
+        final int coachnum = 1, seatnum = 4, stationnum = 5;
+        InstrumentedTicketingSystem system = new InstrumentedTicketingSystem(
+                new TicketingDS(1, coachnum, seatnum, stationnum, 1), 1);
+        String[] passengers = {"a", "b", "c", "d", "e"};
+        int errors = 0;
+        Ticket[] tickets = system.buyTickets(passengers, 1, 1, stationnum, 3);
+        if (tickets == null) {
+            errors++;
+            System.out.println("Batch of 3 was not sold");
+        }
+        if (system.buyTickets(passengers, 1, 1, stationnum, 5) != null) {
+            errors++;
+            System.out.println("Batch of 5 was sold with " + seatnum + " seats");
+        }
+        if (tickets != null && system.refundTickets(tickets) != 3) {
+            errors++;
+            System.out.println("Batch refund did not release 3 tickets");
+        }
+        InstrumentedTicketingSystem.Snapshot snapshot = system.snapshot();
+        long[] expected = {0, 0, 0, 2, tickets == null ? 0 : 1};
+        for (int op = 0; op < expected.length; op++) {
+            if (snapshot.operation[op].count() != expected[op]) {
+                errors++;
+                System.out.println(InstrumentedTicketingSystem.OPERATIONS[op] + ": count="
+                        + snapshot.operation[op].count() + ", expected " + expected[op]);
+            }
+        }
+        if (snapshot.batch_sold_out != 1) {
+            errors++;
+            System.out.println("Batches sold out: " + snapshot.batch_sold_out + ", expected 1");
+        }
+        return errors;
+    }
+
+    /**
+     * 座位分配策略对比：单个车次、一半的购票集中在全程区间，退票维持余票
+     * 输出吞吐量、每次分配的CAS失败次数与扫描座位数，以及结束时全程区间的余票（越少说明碎片越多）
+     */
+    public void policyBenchmark(TicketingOptions.AllocationPolicy policy, final int threadnum, final int testnum) throws Exception {
+        final int coachnum = 8, seatnum = 100, stationnum = 10;
+        TicketingOptions options = new TicketingOptions();
+        options.allocation_policy = policy;
+        final TicketingDS tds = new TicketingDS(1, coachnum, seatnum, stationnum, threadnum, options);
+        final InstrumentedTicketingSystem system = new InstrumentedTicketingSystem(tds, 1);
+        final AtomicInteger held = new AtomicInteger();
+        Thread[] threads = new Thread[threadnum];
+        long startTime = System.nanoTime();
+        for (int i = 0; i < threadnum; i++) {
+            final int finalI = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Random rand = new Random(finalI);
+                    ArrayList<Ticket> soldTicket = new ArrayList<>();
+                    for (int j = 0; j < testnum; j++) {
+                        if (rand.nextInt(100) < 45 && soldTicket.size() > 0) {
+                            system.refundTicket(soldTicket.remove(rand.nextInt(soldTicket.size())));
+                        } else {
+                            int departure = 1, arrival = stationnum;
+                            if (rand.nextBoolean()) {
+                                departure = rand.nextInt(stationnum - 1) + 1;
+                                arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                            }
+                            Ticket ticket = system.buyTicket("passenger", 1, departure, arrival);
+                            if (ticket != null)
+                                soldTicket.add(ticket);
+                        }
+                    }
+                    held.addAndGet(soldTicket.size());
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threadnum; i++) {
+            threads[i].join();
+        }
+        double throughput = 1.0 * threadnum * testnum * 1e9 / (System.nanoTime() - startTime);
+        InstrumentedTicketingSystem.Snapshot snapshot = system.snapshot();
+        System.out.println("Policy: " + policy + ", thread: " + threadnum
+                + ", throughput=" + String.format("%.2f", throughput) + "ops/s"
+                + ", CAS failures/allocation=" + String.format("%.4f", (double) snapshot.allocate_retries / Math.max(1, snapshot.allocations))
+                + ", seats scanned/allocation=" + String.format("%.2f", (double) snapshot.seats_scanned / Math.max(1, snapshot.allocations))
+                + ", held=" + held.get() + ", full-route seats left=" + tds.inquiryScan(1, 1, stationnum));
+    }
+
+    /**
+     * 碎片模拟：单个车次、30个站，区间长度均匀分布，购票多于退票，车次很快接近售满
+     * 之后能否买到票取决于空闲区段是否被零散占用；输出吞吐量、购票失败比例，
+     * 以及结束时的装载率（被占用的座位区段数 / 座位数 * 区段数）
+     */
+    public void fragmentationBenchmark(TicketingOptions.AllocationPolicy policy, final int threadnum, final int testnum) throws Exception {
+        final int coachnum = 8, seatnum = 100, stationnum = 30;
+        TicketingOptions options = new TicketingOptions();
+        options.allocation_policy = policy;
+        final TicketingDS tds = new TicketingDS(1, coachnum, seatnum, stationnum, threadnum, options);
+        final AtomicInteger bought = new AtomicInteger(), failed = new AtomicInteger();
+        Thread[] threads = new Thread[threadnum];
+        long startTime = System.nanoTime();
+        for (int i = 0; i < threadnum; i++) {
+            final int finalI = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Random rand = new Random(finalI);
+                    ArrayList<Ticket> soldTicket = new ArrayList<>();
+                    int buys = 0, failures = 0;
+                    for (int j = 0; j < testnum; j++) {
+                        if (rand.nextInt(100) < 30 && soldTicket.size() > 0) {
+                            int k = rand.nextInt(soldTicket.size());
+                            tds.refundTicket(soldTicket.get(k));
+                            soldTicket.set(k, soldTicket.get(soldTicket.size() - 1));
+                            soldTicket.remove(soldTicket.size() - 1);
+                        } else {
+                            int length = rand.nextInt(stationnum - 1) + 1;
+                            int departure = rand.nextInt(stationnum - length) + 1;
+                            Ticket ticket = tds.buyTicket("passenger", 1, departure, departure + length);
+                            buys++;
+                            if (ticket != null)
+                                soldTicket.add(ticket);
+                            else
+                                failures++;
+                        }
+                    }
+                    bought.addAndGet(buys);
+                    failed.addAndGet(failures);
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threadnum; i++) {
+            threads[i].join();
+        }
+        double throughput = 1.0 * threadnum * testnum * 1e9 / (System.nanoTime() - startTime);
+        SeatBitMap seats = tds.routeSeats(1);
+        long occupied = 0;
+        for (int i = 0; i < coachnum * seatnum; i++)
+            occupied += Long.bitCount(seats.seatWord(i, 0));
+        System.out.println("Policy: " + policy + ", thread: " + threadnum
+                + ", throughput=" + String.format("%.2f", throughput) + "ops/s"
+                + ", failed buys=" + String.format("%.2f", 100.0 * failed.get() / Math.max(1, bought.get())) + "%"
+                + ", load factor=" + String.format("%.3f", (double) occupied / (coachnum * seatnum * (stationnum - 1))));
+    }
+
+    /**
+     * 车次布局的扩展性：车次很多、每车次的状态很小，相邻车次的热点状态容易落在同一缓存行
+     * 查询60%、购票30%、退票10%；affine时第t个线程只访问第 t % 分片数 个亲和分片中的车次，否则随机选车次
+     *
+     * @return 每秒操作数
+     */
+    public double scalingBenchmark(TicketingOptions.RouteLayout layout, boolean affine, final int threadnum,
+                                   final int routenum, final int testnum) throws Exception {
+        final int coachnum = 2, seatnum = 32, stationnum = 10;
+        TicketingOptions options = new TicketingOptions();
+        options.route_layout = layout;
+        final TicketingDS tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, threadnum, options);
+        Thread[] threads = new Thread[threadnum];
+        for (int i = 0; i < threadnum; i++) {
+            final int finalI = i;
+            final int[] routes = affine ? tds.affinityRoutes(i % tds.affinityShards()) : null;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Random rand = new Random(finalI);
+                    ArrayList<Ticket> soldTicket = new ArrayList<>();
+                    for (int j = 0; j < testnum; j++) {
+                        int route = routes != null ? routes[rand.nextInt(routes.length)] : rand.nextInt(routenum) + 1;
+                        int departure = rand.nextInt(stationnum - 1) + 1;
+                        int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                        int sel = rand.nextInt(100);
+                        if (sel < 10 && soldTicket.size() > 0) {
+                            int k = rand.nextInt(soldTicket.size());
+                            tds.refundTicket(soldTicket.get(k));
+                            soldTicket.set(k, soldTicket.get(soldTicket.size() - 1));
+                            soldTicket.remove(soldTicket.size() - 1);
+                        } else if (sel < 40) {
+                            Ticket ticket = tds.buyTicket("passenger", route, departure, arrival);
+                            if (ticket != null)
+                                soldTicket.add(ticket);
+                        } else {
+                            tds.inquiry(route, departure, arrival);
+                        }
+                    }
+                }
+            });
+        }
+        long startTime = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        return 1.0 * threadnum * testnum * 1e9 / (System.nanoTime() - startTime);
+    }
+
+    /**
+     * 团体购票对比：逐张购票/退票与buyTickets/refundTickets一次处理一组
+     * 单线程，车次先随机售出约一半座位，之后反复买下一组车票再全部退掉
+     *
+     * @return 每张车票（一次购票加一次退票）的平均纳秒数
+     */
+    public double batchBenchmark(int group, boolean batch, TicketingSystem.SeatPreference preference,
+                                 int testnum) throws Exception {
+        final int coachnum = 100, seatnum = 100, stationnum = 10;
+        TicketingDS tds = new TicketingDS(1, coachnum, seatnum, stationnum, 1);
+        Random rand = new Random(group);
+        for (int i = 0; i < coachnum * seatnum; i++) {
+            int departure = rand.nextInt(stationnum - 1) + 1;
+            tds.buyTicket("passenger", 1, departure, departure + rand.nextInt(stationnum - departure) + 1);
+        }
+        String[] passengers = new String[group];
+        Arrays.fill(passengers, "passenger");
+        Ticket[] tickets = new Ticket[group];
+        long startTime = System.nanoTime();
+        long sold = 0;
+        for (int j = 0; j < testnum; j++) {
+            int departure = rand.nextInt(stationnum - 1) + 1;
+            int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+            if (batch) {
+                Ticket[] bought = tds.buyTickets(passengers, 1, departure, arrival, group, preference);
+                if (bought != null) {
+                    tds.refundTickets(bought);
+                    sold += group;
+                }
+            } else {
+                int n = 0;
+                while (n < group && (tickets[n] = tds.buyTicket(passengers[n], 1, departure, arrival)) != null)
+                    n++;
+                for (int k = 0; k < n; k++)
+                    tds.refundTicket(tickets[k]);
+                sold += n;
+            }
+        }
+        return (double) (System.nanoTime() - startTime) / Math.max(1, sold);
+    }
+
+    /**
+     * 分片扩展性测试：16个车次平均分到shardnum个分片，threadnum个线程随机访问所有车次
+     *
+     * @return 每秒完成的操作数
+     */
+    public double shardBenchmark(int shardnum, TicketingOptions.Transport transport, final int threadnum,
+                                 final int testnum) throws Exception {
+        final int routenum = 16, coachnum = 8, seatnum = 100, stationnum = 10;
+        TicketingOptions options = new TicketingOptions();
+        options.shard_transport = transport;
+        try (final ShardedTicketingSystem system = new ShardedTicketingSystem(routenum, coachnum, seatnum,
+                stationnum, shardnum, options)) {
+            Thread[] threads = new Thread[threadnum];
+            long startTime = System.nanoTime();
+            for (int i = 0; i < threadnum; i++) {
+                final int finalI = i;
+                threads[i] = new Thread(new Runnable() {
+                    public void run() {
+                        Random rand = new Random(finalI);
+                        ArrayList<Ticket> soldTicket = new ArrayList<>();
+                        for (int j = 0; j < testnum; j++) {
+                            int sel = rand.nextInt(inqpc);
+                            int route = rand.nextInt(routenum) + 1;
+                            int departure = rand.nextInt(stationnum - 1) + 1;
+                            int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                            if (sel < retpc && soldTicket.size() > 0) {
+                                system.refundTicket(soldTicket.remove(rand.nextInt(soldTicket.size())));
+                            } else if (sel < buypc) {
+                                Ticket ticket = system.buyTicket("passenger", route, departure, arrival);
+                                if (ticket != null)
+                                    soldTicket.add(ticket);
+                            } else {
+                                system.inquiry(route, departure, arrival);
+                            }
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            for (int i = 0; i < threadnum; i++) {
+                threads[i].join();
+            }
+            return 1.0 * threadnum * testnum * 1e9 / (System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * 无锁实现与单写者实现的对比，5个车次、混合操作
+     * pipeline为0时使用同步接口；大于0时使用异步接口，每个线程至多有pipeline个未完成的请求
+     *
+     * @param actor 为false时测试TicketingDS
+     * @return 每秒完成的操作数
+     */
+    public double actorBenchmark(boolean actor, final int pipeline, final int threadnum, final int testnum) throws Exception {
+        final int routenum = 5, coachnum = 8, seatnum = 100, stationnum = 10;
+        final TicketingSystem system = actor ? new ActorTicketingSystem(routenum, coachnum, seatnum, stationnum, 4)
+                : new TicketingDS(routenum, coachnum, seatnum, stationnum, threadnum);
+        Thread[] threads = new Thread[threadnum];
+        long startTime = System.nanoTime();
+        for (int i = 0; i < threadnum; i++) {
+            final int finalI = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Random rand = new Random(finalI);
+                    ArrayList<Ticket> soldTicket = new ArrayList<>();
+                    CompletableFuture<?>[] pending = new CompletableFuture<?>[Math.max(1, pipeline)];
+                    for (int j = 0; j < testnum; j++) {
+                        int sel = rand.nextInt(inqpc);
+                        int route = rand.nextInt(routenum) + 1;
+                        int departure = rand.nextInt(stationnum - 1) + 1;
+                        int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                        if (pipeline == 0) {
+                            if (sel < retpc && soldTicket.size() > 0) {
+                                system.refundTicket(soldTicket.remove(rand.nextInt(soldTicket.size())));
+                            } else if (sel < buypc) {
+                                Ticket ticket = system.buyTicket("passenger", route, departure, arrival);
+                                if (ticket != null)
+                                    soldTicket.add(ticket);
+                            } else {
+                                system.inquiry(route, departure, arrival);
+                            }
+                            continue;
+                        }
+                        // 复用槽位前等待其中的请求完成，购票结果留作之后退票
+                        int slot = j % pipeline;
+                        if (pending[slot] != null && pending[slot].join() instanceof Ticket)
+                            soldTicket.add((Ticket) pending[slot].join());
+                        ActorTicketingSystem actors = (ActorTicketingSystem) system;
+                        if (sel < retpc && soldTicket.size() > 0) {
+                            pending[slot] = actors.refundTicketAsync(soldTicket.remove(rand.nextInt(soldTicket.size())));
+                        } else if (sel < buypc) {
+                            pending[slot] = actors.buyTicketAsync("passenger", route, departure, arrival);
+                        } else {
+                            pending[slot] = actors.inquiryAsync(route, departure, arrival);
+                        }
+                    }
+                    for (CompletableFuture<?> future : pending) {
+                        if (future != null)
+                            future.join();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threadnum; i++) {
+            threads[i].join();
+        }
+        double throughput = 1.0 * threadnum * testnum * 1e9 / (System.nanoTime() - startTime);
+        if (actor)
+            ((ActorTicketingSystem) system).close();
+        return throughput;
+    }
+
+    /**
+     * 一致读取的代价：混合操作的吞吐量（写者多两次原子操作、读者可能重读），
+     * 以及同时有一个线程不停地读取整车次余票矩阵时每秒完成的矩阵数
+     */
+    public void consistentBenchmark(boolean consistent, final int threadnum, final int testnum) throws Exception {
+        final int routenum = 5, coachnum = 8, seatnum = 100, stationnum = 10;
+        TicketingOptions options = new TicketingOptions();
+        options.consistent_inquiry = consistent;
+        final TicketingDS tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, threadnum, options);
+        final AtomicInteger running = new AtomicInteger(threadnum);
+        final AtomicLong snapshots = new AtomicLong();
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                Random rand = new Random();
+                while (running.get() > 0) {
+                    tds.inquirySnapshot(rand.nextInt(routenum) + 1);
+                    snapshots.incrementAndGet();
+                }
+            }
+        });
+        Thread[] threads = new Thread[threadnum];
+        long startTime = System.nanoTime();
+        reader.start();
+        for (int i = 0; i < threadnum; i++) {
+            final int finalI = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Random rand = new Random(finalI);
+                    ArrayList<Ticket> soldTicket = new ArrayList<>();
+                    for (int j = 0; j < testnum; j++) {
+                        int sel = rand.nextInt(inqpc);
+                        int route = rand.nextInt(routenum) + 1;
+                        int departure = rand.nextInt(stationnum - 1) + 1;
+                        int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                        if (sel < retpc && soldTicket.size() > 0) {
+                            tds.refundTicket(soldTicket.remove(rand.nextInt(soldTicket.size())));
+                        } else if (sel < buypc) {
+                            Ticket ticket = tds.buyTicket("passenger", route, departure, arrival);
+                            if (ticket != null)
+                                soldTicket.add(ticket);
+                        } else {
+                            tds.inquiry(route, departure, arrival);
+                        }
+                    }
+                    running.decrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threadnum; i++) {
+            threads[i].join();
+        }
+        reader.join();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        long[] stats = tds.consistentReadStats();
+        System.out.println("Consistent: " + consistent + ", thread: " + threadnum
+                + ", throughput=" + String.format("%.2f", threadnum * testnum / seconds) + "ops/s"
+                + ", snapshots=" + String.format("%.2f", snapshots.get() / seconds) + "/s"
+                + (stats == null ? "" : ", retries=" + stats[0] + ", fallbacks=" + stats[1]));
+    }
+
+    /**
+     * 区间计数查询与扫描查询的对比：车次先售出约一半座位，之后购票、退票各占writepc / 2 %，其余为查询
+     * 输出吞吐量，以及COUNTER查询因写并发退回扫描的次数
+     */
+    public void counterBenchmark(TicketingOptions.InquiryMode mode, final int threadnum, final int testnum,
+                                 final int writepc) throws Exception {
+        final int routenum = 5, coachnum = 20, seatnum = 100, stationnum = 10;
+        final TicketingDS tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, threadnum,
+                new TicketingOptions(mode));
+        Random prefill = new Random(0);
+        for (int j = 0; j < routenum * coachnum * seatnum / 2; j++) {
+            int departure = prefill.nextInt(stationnum - 1) + 1;
+            tds.buyTicket("passenger", prefill.nextInt(routenum) + 1, departure,
+                    departure + prefill.nextInt(stationnum - departure) + 1);
+        }
+        Thread[] threads = new Thread[threadnum];
+        long startTime = System.nanoTime();
+        for (int i = 0; i < threadnum; i++) {
+            final int finalI = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Random rand = new Random(finalI);
+                    ArrayList<Ticket> soldTicket = new ArrayList<>();
+                    for (int j = 0; j < testnum; j++) {
+                        int sel = rand.nextInt(100);
+                        int route = rand.nextInt(routenum) + 1;
+                        int departure = rand.nextInt(stationnum - 1) + 1;
+                        int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                        if (sel < writepc / 2 && soldTicket.size() > 0) {
+                            tds.refundTicket(soldTicket.remove(rand.nextInt(soldTicket.size())));
+                        } else if (sel < writepc) {
+                            Ticket ticket = tds.buyTicket("passenger", route, departure, arrival);
+                            if (ticket != null)
+                                soldTicket.add(ticket);
+                        } else {
+                            tds.inquiry(route, departure, arrival);
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threadnum; i++) {
+            threads[i].join();
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        long[] stats = tds.consistentReadStats();
+        System.out.println("Inquiry mode " + mode + ", writes: " + writepc + "%, thread: " + threadnum
+                + ", throughput=" + String.format("%.2f", threadnum * testnum / seconds) + "ops/s"
+                + (stats == null ? "" : ", fallbacks=" + stats[1]));
+    }
+
+    /**
+     * 余票缓存：查询集中在少数热点区间，购票、退票各占writepc / 2 %，车次先售出约一半座位
+     *
+     * @param hot 落在8个热点(车次, 始发站, 终点站)上的查询比例（百分比）
+     */
+    public void cacheBenchmark(String label, TicketingOptions options, final int threadnum, final int testnum,
+                               final int writepc, final int hot) throws Exception {
+        final int routenum = 5, coachnum = 8, seatnum = 100, stationnum = 30;
+        final TicketingDS tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, threadnum, options);
+        Random prefill = new Random(0);
+        for (int i = 0; i < routenum * coachnum * seatnum; i++) {
+            int departure = prefill.nextInt(stationnum - 1) + 1;
+            tds.buyTicket("passenger", prefill.nextInt(routenum) + 1, departure,
+                    departure + prefill.nextInt(stationnum - departure) + 1);
+        }
+        final int[][] hot_triples = new int[8][];
+        for (int i = 0; i < hot_triples.length; i++) {
+            int departure = prefill.nextInt(stationnum - 1) + 1;
+            hot_triples[i] = new int[]{prefill.nextInt(routenum) + 1, departure,
+                    departure + prefill.nextInt(stationnum - departure) + 1};
+        }
+        Thread[] threads = new Thread[threadnum];
+        long startTime = System.nanoTime();
+        for (int i = 0; i < threadnum; i++) {
+            final int finalI = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Random rand = new Random(finalI);
+                    ArrayList<Ticket> soldTicket = new ArrayList<>();
+                    for (int j = 0; j < testnum; j++) {
+                        int sel = rand.nextInt(100);
+                        int route = rand.nextInt(routenum) + 1;
+                        int departure = rand.nextInt(stationnum - 1) + 1;
+                        int arrival = departure + rand.nextInt(stationnum - departure) + 1;
+                        if (sel < writepc / 2 && soldTicket.size() > 0) {
+                            tds.refundTicket(soldTicket.remove(rand.nextInt(soldTicket.size())));
+                        } else if (sel < writepc) {
+                            Ticket ticket = tds.buyTicket("passenger", route, departure, arrival);
+                            if (ticket != null)
+                                soldTicket.add(ticket);
+                        } else if (rand.nextInt(100) < hot) {
+                            int[] triple = hot_triples[rand.nextInt(hot_triples.length)];
+                            tds.inquiry(triple[0], triple[1], triple[2]);
+                        } else {
+                            tds.inquiry(route, departure, arrival);
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threadnum; i++) {
+            threads[i].join();
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        long[] stats = tds.inquiryCacheStats();
+        String cache = "";
+        if (stats != null) {
+            long inquiries = stats[0] + stats[1] + stats[2];
+            cache = String.format(", hit rate=%.1f%% (stale %.1f%%), saved scans=%d, uncached=%d",
+                    100.0 * (stats[0] + stats[1]) / inquiries, 100.0 * stats[1] / inquiries,
+                    stats[0] + stats[1], stats[3]);
+        }
+        System.out.println(label + ", thread: " + threadnum + ", writes: " + writepc + "%"
+                + ", throughput=" + String.format("%.2f", threadnum * testnum / seconds) + "ops/s" + cache);
+    }
+
+    /**
+     * 整车次余票矩阵：逐区间inquiry与inquiryAll一次遍历的对比，车次先随机售出约一半座位
+     *
+     * @return {逐区间查询, inquiryAll} 每个矩阵的平均纳秒数
+     */
+    public double[] matrixBenchmark(int stationnum, int testnum) throws Exception {
+        final int coachnum = 8, seatnum = 100;
+        TicketingDS tds = new TicketingDS(1, coachnum, seatnum, stationnum, 1);
+        Random rand = new Random(stationnum);
+        for (int i = 0; i < coachnum * seatnum * 2; i++) {
+            int departure = rand.nextInt(stationnum - 1) + 1;
+            tds.buyTicket("passenger", 1, departure, departure + rand.nextInt(stationnum - departure) + 1);
+        }
+        long sink = 0;
+        long startTime = System.nanoTime();
+        for (int j = 0; j < testnum; j++) {
+            for (int departure = 1; departure < stationnum; departure++) {
+                for (int arrival = departure + 1; arrival <= stationnum; arrival++)
+                    sink += tds.inquiry(1, departure, arrival);
+            }
+        }
+        double single = (double) (System.nanoTime() - startTime) / testnum;
+        startTime = System.nanoTime();
+        for (int j = 0; j < testnum; j++)
+            sink -= tds.inquiryAll(1)[1][stationnum];
+        double all = (double) (System.nanoTime() - startTime) / testnum;
+        if (sink == Long.MIN_VALUE)
+            System.out.println(sink);
+        return new double[]{single, all};
+    }
+
+    /**
+     * 预写日志对购票/退票的开销：各线程在随机车次上交替购票、退票
+     *
+     * @param dir   日志目录，为null时不记录日志
+     * @param fsync 是否等待日志落盘
+     * @return 每次操作的平均纳秒数
+     */
+    public double journalOverhead(String dir, boolean fsync, final int threadnum, final int testnum) throws Exception {
+        TicketingOptions options = new TicketingOptions();
+        options.journal_dir = dir;
+        options.journal_fsync = fsync;
+        if (dir != null)
+            clearJournal(dir);
+        return buyRefundTime(options, threadnum, testnum);
+    }
+
+    /**
+     * 各线程在随机车次上交替购票、退票
+     *
+     * @return 每次操作的平均纳秒数
+     */
+    public double buyRefundTime(TicketingOptions options, final int threadnum, final int testnum) throws Exception {
+        final int routenum = 20, coachnum = 10, seatnum = 100, stationnum = 10;
+        final TicketingDS tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, threadnum, options);
+        Thread[] threads = new Thread[threadnum];
+        long startTime = System.nanoTime();
+        for (int i = 0; i < threadnum; i++) {
+            final int finalI = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    Random rand = new Random(finalI);
+                    for (int j = 0; j < testnum / 2; j++) {
+                        int departure = rand.nextInt(stationnum - 1) + 1;
+                        Ticket ticket = tds.buyTicket("passenger", rand.nextInt(routenum) + 1, departure,
+                                departure + rand.nextInt(stationnum - departure) + 1);
+                        if (ticket != null)
+                            tds.refundTicket(ticket);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (int i = 0; i < threadnum; i++) {
+            threads[i].join();
+        }
+        double ns = (double) (System.nanoTime() - startTime) / ((long) threadnum * testnum);
+        tds.close();
+        return ns;
+    }
+
+    /**
+     * 分片加日志的恢复：只在部分车次上购票、退票，关闭后重新构造，
+     * 每个车次每个区间的余票都要与关闭前一致，没有操作过的车次应保持全部空闲
+     *
+     * @return 余票不一致的区间数
+     */
+    public int checkShardedRecovery(String dir) throws Exception {
+        final int routenum = 6, coachnum = 2, seatnum = 5, stationnum = 5, shardnum = 3;
+        TicketingOptions options = new TicketingOptions();
+        options.journal_dir = dir;
+        options.journal_fsync = false;
+        clearJournal(dir);
+        int[][][] before = new int[routenum + 1][stationnum + 1][stationnum + 1];
+        try (ShardedTicketingSystem system = new ShardedTicketingSystem(routenum, coachnum, seatnum, stationnum,
+                shardnum, options)) {
+            Random rand = new Random(0);
+            ArrayList<Ticket> soldTicket = new ArrayList<>();
+            // 只操作第1个分片的车次1和第2个分片的车次5
+            int[] touched = {1, 5};
+            for (int j = 0; j < 200; j++) {
+                int departure = rand.nextInt(stationnum - 1) + 1;
+                Ticket ticket = system.buyTicket("passenger", touched[rand.nextInt(touched.length)], departure,
+                        departure + rand.nextInt(stationnum - departure) + 1);
+                if (ticket != null)
+                    soldTicket.add(ticket);
+                if (!soldTicket.isEmpty() && rand.nextInt(3) == 0)
+                    system.refundTicket(soldTicket.remove(rand.nextInt(soldTicket.size())));
+            }
+            for (int route = 1; route <= routenum; route++)
+                for (int departure = 1; departure < stationnum; departure++)
+                    for (int arrival = departure + 1; arrival <= stationnum; arrival++)
+                        before[route][departure][arrival] = system.inquiry(route, departure, arrival);
+        }
+        int errors = 0;
+        try (ShardedTicketingSystem system = new ShardedTicketingSystem(routenum, coachnum, seatnum, stationnum,
+                shardnum, options)) {
+            for (int route = 1; route <= routenum; route++) {
+                for (int departure = 1; departure < stationnum; departure++) {
+                    for (int arrival = departure + 1; arrival <= stationnum; arrival++) {
+                        int after = system.inquiry(route, departure, arrival);
+                        if (after != before[route][departure][arrival]) {
+                            errors++;
+                            System.out.println("Recovered inquiry: route " + route + " " + departure + "->" + arrival
+                                    + " before=" + before[route][departure][arrival] + " after=" + after);
+                        }
+                    }
+                }
+            }
+        }
+        clearJournal(dir);
+        return errors;
+    }
+
+    /**
+     * 被拒绝的退票不写日志：重复退票、伪造座位的退票与批量退票中的无效车票前后日志末尾不变，
+     * 重新构造后余票与关闭前一致
+     *
+     * @return 错误数
+     */
+    public int checkRejectedRefunds(String dir) throws Exception {
+        final int routenum = 2, coachnum = 1, seatnum = 2, stationnum = 4;
+        TicketingOptions options = new TicketingOptions();
+        options.journal_dir = dir;
+        options.journal_fsync = false;
+        clearJournal(dir);
+        int errors = 0;
+        int[] before = new int[routenum + 1];
+        try (TicketingDS tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, 1, options)) {
+            Ticket first = tds.buyTicket("passenger", 1, 1, 3);
+            Ticket second = tds.buyTicket("passenger", 1, 2, 4);
+            long position = tds.journalPosition();
+            // 换到另一个座位的伪造车票，该座位只在[2, 4)被占用
+            Ticket forged = TicketFactory.ConstructTicket(first.tid, first.passenger, first.route,
+                    first.departure, first.arrival, first.coach, first.seat % seatnum + 1);
+            if (tds.refundTicket(forged) || tds.journalPosition() != position) {
+                errors++;
+                System.out.println("Forged refund: journal " + position + " -> " + tds.journalPosition());
+            }
+            if (!tds.refundTicket(first) || tds.journalPosition() == position) {
+                errors++;
+                System.out.println("Valid refund was not journaled");
+            }
+            position = tds.journalPosition();
+            if (tds.refundTicket(first) || tds.journalPosition() != position) {
+                errors++;
+                System.out.println("Double refund: journal " + position + " -> " + tds.journalPosition());
+            }
+            if (tds.refundTickets(new Ticket[]{first, forged}) != 0 || tds.journalPosition() != position) {
+                errors++;
+                System.out.println("Rejected batch refund: journal " + position + " -> " + tds.journalPosition());
+            }
+            if (tds.refundTickets(new Ticket[]{first, second}) != 1) {
+                errors++;
+                System.out.println("Batch refund of one valid ticket was not accepted");
+            }
+            for (int route = 1; route <= routenum; route++)
+                before[route] = tds.inquiry(route, 1, stationnum);
+        }
+        try (TicketingDS tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, 1, options)) {
+            for (int route = 1; route <= routenum; route++) {
+                if (tds.inquiry(route, 1, stationnum) != before[route]) {
+                    errors++;
+                    System.out.println("Recovered inquiry: route " + route + " before=" + before[route]
+                            + " after=" + tds.inquiry(route, 1, stationnum));
+                }
+            }
+        }
+        clearJournal(dir);
+        return errors;
+    }
+
+    /**
+     * 分片与ROUTE_SEQUENCE：换算后的tid会溢出时构造失败；不溢出时最后一个车次的车票可以正常退票
+     *
+     * @return 错误数
+     */
+    public int checkShardedIdRange() throws Exception {
+        int errors = 0;
+        TicketingOptions options = new TicketingOptions();
+        options.id_strategy = TicketingOptions.IdStrategy.ROUTE_SEQUENCE;
+        try {
+            // 每个分片2^22个车次，分片内tid的上界约为2^62，乘以分片数后溢出
+            new ShardedTicketingSystem(1 << 23, 1, 1, 2, 2, options).close();
+            errors++;
+            System.out.println("Overflowing tid layout was accepted");
+        } catch (IllegalArgumentException e) {
+            // 预期的结果
+        }
+        try (ShardedTicketingSystem system = new ShardedTicketingSystem(7, 1, 2, 3, 3, options)) {
+            Ticket ticket = system.buyTicket("passenger", 7, 1, 3);
+            if (ticket == null || ticket.tid < 0 || !system.refundTicket(ticket)) {
+                errors++;
+                System.out.println("ROUTE_SEQUENCE ticket on the last route: " + (ticket == null ? "not sold" : "tid " + ticket.tid));
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * 恢复时间：先写入records条日志（售出约一半座位后随机退票、购票），
+     * 分别测量只重放日志、以及从快照加日志尾部恢复所需的时间
+     */
+    public void journalRecovery(String dir, int records) throws Exception {
+        final int routenum = 50, coachnum = 20, seatnum = 100, stationnum = 30;
+        TicketingOptions options = new TicketingOptions();
+        options.journal_dir = dir;
+        options.journal_fsync = false;
+        clearJournal(dir);
+        TicketingDS tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, 1, options);
+        Random rand = new Random(0);
+        ArrayList<Ticket> soldTicket = new ArrayList<>();
+        int target = routenum * coachnum * seatnum / 2;
+        long startTime = System.nanoTime();
+        for (int j = 0; j < records; j++) {
+            if (soldTicket.size() >= target) {
+                int k = rand.nextInt(soldTicket.size());
+                Ticket ticket = soldTicket.get(k);
+                soldTicket.set(k, soldTicket.get(soldTicket.size() - 1));
+                soldTicket.remove(soldTicket.size() - 1);
+                tds.refundTicket(ticket);
+            } else {
+                int departure = rand.nextInt(stationnum - 1) + 1;
+                Ticket ticket = tds.buyTicket("passenger", rand.nextInt(routenum) + 1, departure,
+                        departure + rand.nextInt(stationnum - departure) + 1);
+                if (ticket != null)
+                    soldTicket.add(ticket);
+            }
+        }
+        double write_seconds = (System.nanoTime() - startTime) / 1e9;
+        tds.close();
+
+        startTime = System.nanoTime();
+        tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, 1, options);
+        double replay_seconds = (System.nanoTime() - startTime) / 1e9;
+        tds.snapshot();
+        // 快照之后再写约1%的日志作为需要重放的尾部
+        for (int j = 0; j < records / 100; j++) {
+            Ticket ticket = soldTicket.remove(soldTicket.size() - 1);
+            tds.refundTicket(ticket);
+            int departure = rand.nextInt(stationnum - 1) + 1;
+            ticket = tds.buyTicket("passenger", rand.nextInt(routenum) + 1, departure,
+                    departure + rand.nextInt(stationnum - departure) + 1);
+            soldTicket.add(0, ticket);
+        }
+        tds.close();
+        startTime = System.nanoTime();
+        tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, 1, options);
+        double snapshot_seconds = (System.nanoTime() - startTime) / 1e9;
+        int held = 0;
+        for (int route = 1; route <= routenum; route++)
+            held += coachnum * seatnum - tds.inquiry(route, 1, 2);
+        tds.close();
+        System.out.println("Records: " + records + ", write=" + String.format("%.2f", write_seconds)
+                + "s, replay all=" + String.format("%.2f", replay_seconds)
+                + "s, snapshot + tail=" + String.format("%.2f", snapshot_seconds) + "s"
+                + ", seats held at station 1: " + held);
+    }
+
+    /**
+     * 已售车票表：写入live张车票后测量每张车票占用的内存，
+     * 再做testnum次合法退票（之后重新登记，保持有效车票数不变）与伪造退票，统计耗时与GC次数
+     */
+    public void registryBenchmark(long live, int testnum) {
+        final int routenum = 1000, coachnum = 20, seatnum = 100, stationnum = 30;
+        String[] names = new String[100000];
+        for (int i = 0; i < names.length; i++)
+            names[i] = "passenger" + i;
+        TicketRegistry registry = new TicketRegistry(routenum, coachnum, seatnum, stationnum, live);
+        Ticket ticket = new Ticket();
+        long startTime = System.nanoTime();
+        for (long tid = 0; tid < live; tid++)
+            registry.register(syntheticTicket(ticket, tid, names, routenum, coachnum, seatnum, stationnum));
+        double insert_ns = (double) (System.nanoTime() - startTime) / live;
+        long table_bytes = registry.tableBytes();
+        System.out.println("Live tickets: " + live + ", register=" + String.format("%.0f", insert_ns) + "ns"
+                + ", table=" + table_bytes / (1 << 20) + "MB (" + String.format("%.1f", (double) table_bytes / live)
+                + " bytes/ticket), passenger names=" + registry.passengerBytes() / 1024 + "KB");
+
+        long gc_count = 0, gc_time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gc_count -= gc.getCollectionCount();
+            gc_time -= gc.getCollectionTime();
+        }
+        int rejected = 0, refunded = 0, doubled = 0;
+        startTime = System.nanoTime();
+        for (int i = 0; i < testnum; i++) {
+            // 7919与live互素时各次退票的tid互不相同
+            long tid = i * 7919L % live;
+            syntheticTicket(ticket, tid, names, routenum, coachnum, seatnum, stationnum);
+            ticket.seat = ticket.seat % seatnum + 1;
+            if (!registry.remove(ticket))
+                rejected++;
+            ticket.seat = (ticket.seat + seatnum - 2) % seatnum + 1;
+            if (registry.remove(ticket))
+                refunded++;
+            if (registry.remove(ticket))
+                doubled++;
+            registry.register(ticket);
+        }
+        double ns = (double) (System.nanoTime() - startTime) / testnum;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gc_count += gc.getCollectionCount();
+            gc_time += gc.getCollectionTime();
+        }
+        System.out.println("Refund checks: " + testnum + ", forged rejected=" + rejected + ", refunded=" + refunded
+                + ", double refunds accepted=" + doubled + ", " + String.format("%.0f", ns)
+                + "ns per forged + valid + double refund + re-register, gc=" + gc_count + " collections/" + gc_time + "ms");
+    }
+
+    /**
+     * 由tid确定地生成车票内容，验证时不需要另外保存车票
+     */
+    private static Ticket syntheticTicket(Ticket ticket, long tid, String[] names,
+                                          int routenum, int coachnum, int seatnum, int stationnum) {
+        long h = tid * 0x9E3779B97F4A7C15L;
+        int departure = (int) ((h >>> 8) & 0xFF) % (stationnum - 1) + 1;
+        return TicketFactory.FillTicket(ticket, tid, names[(int) (tid % names.length)],
+                (int) ((h >>> 40) % routenum) + 1, departure,
+                departure + (int) ((h >>> 16) & 0xFF) % (stationnum - departure) + 1,
+                (int) ((h >>> 24) & 0xFF) % coachnum + 1, (int) ((h >>> 48) & 0xFFFF) % seatnum + 1);
+    }
+
+    private static void clearJournal(String dir) throws java.io.IOException {
+        java.nio.file.Path path = java.nio.file.Paths.get(dir);
+        if (!java.nio.file.Files.isDirectory(path))
+            return;
+        try (java.nio.file.DirectoryStream<java.nio.file.Path> files = java.nio.file.Files.newDirectoryStream(path)) {
+            for (java.nio.file.Path file : files) {
+                // 分片的日志位于子目录中
+                if (java.nio.file.Files.isDirectory(file)) {
+                    clearJournal(file.toString());
+                }
+                java.nio.file.Files.delete(file);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Test test = new Test();
+        String mode = args.length > 0 ? args[0] : "";
+
+        if (mode.equals("consistency")) {
+            int errors = test.checkInquiryConsistency(16, 10000, 10, 5, 8, 100, 10);
+            System.out.println("Inquiry consistency: " + (errors == 0 ? "OK" : errors + " errors"));
+            return;
+        }
+
+        if (mode.equals("alloc")) {
+            int errors = test.checkAllocation(args.length > 1 ? Integer.parseInt(args[1]) : 10);
+            System.out.println("Allocation check: " + (errors == 0 ? "OK" : errors + " allocating paths"));
+            return;
+        }
+
+        if (mode.equals("gc")) {
+            // 新建Ticket与复用Ticket两种购票路径的分配量与GC对比
+            int[] thread_nums = {4, 16, 64};
+            for (int threadnum : thread_nums) {
+                for (int j = 0; j < 2; j++) {
+                    test.gcBenchmark(threadnum, 200000, false);
+                    test.gcBenchmark(threadnum, 200000, true);
+                }
+            }
+            return;
+        }
+
+        if (mode.equals("ids")) {
+            int[] thread_nums = {1, 2, 4, 8, 16, 32, 64, 128};
+            for (TicketingOptions.IdStrategy strategy : TicketingOptions.IdStrategy.values()) {
+                // 预热
+                test.idBenchmark(strategy, 4, 200000);
+                for (int threadnum : thread_nums) {
+                    System.out.println("Id strategy: " + strategy + ", thread: " + threadnum + ", throughput="
+                            + String.format("%.2f", test.idBenchmark(strategy, threadnum, 200000)) + "ids/s");
+                }
+            }
+            return;
+        }
+
+        if (mode.equals("instrument")) {
+            // 延迟统计的开销：未包装与包装后的吞吐量对比，交替运行以减少JIT与GC的影响
+            int[] thread_nums = {1, 4, 16};
+            for (int threadnum : thread_nums) {
+                test.instrumentBenchmark(threadnum, 200000, false);
+                test.instrumentBenchmark(threadnum, 200000, true);
+                double plain = 0, instrumented = 0;
+                for (int j = 0; j < 3; j++) {
+                    plain += test.instrumentBenchmark(threadnum, 500000, false);
+                    instrumented += test.instrumentBenchmark(threadnum, 500000, true);
+                }
+                System.out.println("Thread: " + threadnum + ", plain=" + String.format("%.2f", plain / 3)
+                        + "ops/s, instrumented=" + String.format("%.2f", instrumented / 3) + "ops/s, overhead="
+                        + String.format("%.2f", (1 - instrumented / plain) * 100) + "%");
+            }
+            InstrumentedTicketingSystem system = new InstrumentedTicketingSystem(new TicketingDS(5, 8, 100, 10, 1), 5);
+            system.registerMBean("test");
+            system.buyTicket("passenger", 1, 1, 10);
+            TicketingStatsMXBean mbean = javax.management.JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                    new javax.management.ObjectName("ticketingsystem:type=TicketingStats,name=\"test\""), TicketingStatsMXBean.class);
+            System.out.println("MBean OperationCounts: " + mbean.getOperationCounts());
+            int errors = test.checkInstrumentedBatches();
+            System.out.println("Instrumented batches: " + (errors == 0 ? "OK" : errors + " errors"));
+            return;
+        }
+
+        if (mode.equals("policy")) {
+            int[] thread_nums = {4, 16, 32, 64};
+            for (TicketingOptions.AllocationPolicy policy : TicketingOptions.AllocationPolicy.values()) {
+                // 预热
+                test.policyBenchmark(policy, 4, 100000);
+                for (int threadnum : thread_nums)
+                    test.policyBenchmark(policy, threadnum, 100000);
+            }
+            return;
+        }
+
+        if (mode.equals("fragmentation")) {
+            for (TicketingOptions.AllocationPolicy policy : TicketingOptions.AllocationPolicy.values()) {
+                // 预热
+                test.fragmentationBenchmark(policy, 1, 100000);
+                for (int threadnum : new int[]{1, 4, 16})
+                    test.fragmentationBenchmark(policy, threadnum, 400000 / threadnum);
+            }
+            return;
+        }
+
+        if (mode.equals("scaling")) {
+            // 输出为制表符分隔的列，便于与perf对照；要统计某一组配置的缓存未命中时单独运行它，例如
+            // perf stat -e cache-misses,LLC-load-misses java ticketingsystem.Test scaling PADDED affine 8
+            int cores = Runtime.getRuntime().availableProcessors();
+            int routenum = 4 * cores;
+            System.out.println("# pid=" + ProcessHandle.current().pid() + ", cores=" + cores + ", routes=" + routenum);
+            System.out.println("layout\trouting\tthreads\tops/s\tns/op");
+            if (args.length > 3) {
+                TicketingOptions.RouteLayout layout = TicketingOptions.RouteLayout.valueOf(args[1]);
+                boolean affine = args[2].equals("affine");
+                int threadnum = Integer.parseInt(args[3]);
+                // 预热
+                test.scalingBenchmark(layout, affine, threadnum, routenum, 200000);
+                double throughput = test.scalingBenchmark(layout, affine, threadnum, routenum, 2000000);
+                System.out.println(layout + "\t" + args[2] + "\t" + threadnum + "\t" + String.format("%.0f", throughput)
+                        + "\t" + String.format("%.1f", threadnum * 1e9 / throughput));
+                return;
+            }
+            ArrayList<Integer> thread_nums = new ArrayList<>();
+            for (int threadnum = 1; threadnum < cores; threadnum *= 2)
+                thread_nums.add(threadnum);
+            thread_nums.add(cores);
+            for (TicketingOptions.RouteLayout layout : TicketingOptions.RouteLayout.values()) {
+                for (boolean affine : new boolean[]{false, true}) {
+                    // 预热
+                    test.scalingBenchmark(layout, affine, cores, routenum, 100000);
+                    for (int threadnum : thread_nums) {
+                        double throughput = test.scalingBenchmark(layout, affine, threadnum, routenum, 1000000 / threadnum);
+                        System.out.println(layout + "\t" + (affine ? "affine" : "random") + "\t" + threadnum
+                                + "\t" + String.format("%.0f", throughput) + "\t" + String.format("%.1f", threadnum * 1e9 / throughput));
+                    }
+                }
+            }
+            return;
+        }
+
+        if (mode.equals("batch")) {
+            int[] groups = {1, 10, 100, 1000};
+            for (int group : groups) {
+                int testnum = Math.max(200, 400000 / group);
+                // 预热
+                test.batchBenchmark(group, false, TicketingSystem.SeatPreference.NONE, testnum);
+                test.batchBenchmark(group, true, TicketingSystem.SeatPreference.NONE, testnum);
+                System.out.println("Group: " + group
+                        + ", single=" + String.format("%.1f", test.batchBenchmark(group, false, TicketingSystem.SeatPreference.NONE, testnum))
+                        + "ns/ticket, batch=" + String.format("%.1f", test.batchBenchmark(group, true, TicketingSystem.SeatPreference.NONE, testnum))
+                        + "ns/ticket, batch same coach=" + String.format("%.1f", test.batchBenchmark(group, true, TicketingSystem.SeatPreference.SAME_COACH, testnum))
+                        + "ns/ticket");
+            }
+            return;
+        }
+
+        if (mode.equals("shards")) {
+            // 分片数从1增加到8，理想情况下吞吐量随分片数（不超过CPU核数时）线性增长
+            int[] shard_nums = {1, 2, 4, 8};
+            for (TicketingOptions.Transport transport : TicketingOptions.Transport.values()) {
+                int testnum = transport == TicketingOptions.Transport.LOCAL ? 100000 : 10000;
+                // 预热
+                test.shardBenchmark(2, transport, 16, testnum);
+                for (int shardnum : shard_nums) {
+                    System.out.println("Transport: " + transport + ", shards: " + shardnum + ", thread: 16, throughput="
+                            + String.format("%.2f", test.shardBenchmark(shardnum, transport, 16, testnum)) + "ops/s");
+                }
+            }
+            int errors = test.checkShardedIdRange();
+            System.out.println("Sharded tid range: " + (errors == 0 ? "OK" : errors + " errors"));
+            return;
+        }
+
+        if (mode.equals("actor")) {
+            // 无锁（CAS）、单写者同步调用、单写者异步流水线（每线程32个未完成请求）
+            int[] thread_nums = {4, 16, 64, 128};
+            test.actorBenchmark(false, 0, 4, 200000);
+            test.actorBenchmark(true, 0, 4, 200000);
+            test.actorBenchmark(true, 32, 4, 200000);
+            for (int threadnum : thread_nums) {
+                int testnum = 2000000 / threadnum;
+                System.out.println("Thread: " + threadnum
+                        + ", lock-free=" + String.format("%.2f", test.actorBenchmark(false, 0, threadnum, testnum))
+                        + "ops/s, actor=" + String.format("%.2f", test.actorBenchmark(true, 0, threadnum, testnum))
+                        + "ops/s, actor async=" + String.format("%.2f", test.actorBenchmark(true, 32, threadnum, testnum))
+                        + "ops/s");
+            }
+            return;
+        }
+
+        if (mode.equals("openloop")) {
+            // openloop [会话数] [总到达率] [秒数] [速率曲线文件]：开环负载下修正协调遗漏的延迟
+            int clients = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+            double rate = args.length > 2 ? Double.parseDouble(args[2]) : 200000;
+            double seconds = args.length > 3 ? Double.parseDouble(args[3]) : 10;
+            double[][] curve = args.length > 4 ? OpenLoopDriver.readCurve(args[4]) : new double[][]{{0}, {rate}};
+            OpenLoopDriver driver = new OpenLoopDriver(clients, curve[0], curve[1], 64, retpc, buypc, inqpc);
+            boolean virtual = driver.run(new TicketingDS(5, 8, 100, 10, 64), 5, 10, seconds);
+            System.out.println("Clients: " + clients + (virtual ? " (virtual threads)" : " (64 platform threads)")
+                    + ", target rate: " + (args.length > 4 ? args[4] : String.format("%.0fops/s", rate)));
+            System.out.print(driver.report(seconds));
+            return;
+        }
+
+        if (mode.equals("consistent")) {
+            int[] thread_nums = {4, 16, 64};
+            test.consistentBenchmark(false, 4, 200000);
+            test.consistentBenchmark(true, 4, 200000);
+            for (int threadnum : thread_nums) {
+                test.consistentBenchmark(false, threadnum, 1000000 / threadnum);
+                test.consistentBenchmark(true, threadnum, 1000000 / threadnum);
+            }
+            return;
+        }
+
+        if (mode.equals("registry")) {
+            // registry [有效车票数]
+            long live = args.length > 1 ? Long.parseLong(args[1]) : 50000000;
+            TicketingOptions options = new TicketingOptions();
+            options.ticket_registry = true;
+            // 预热
+            test.buyRefundTime(new TicketingOptions(), 1, 400000);
+            test.buyRefundTime(options, 1, 400000);
+            System.out.println("Buy/refund: no registry=" + String.format("%.0f", test.buyRefundTime(new TicketingOptions(), 1, 400000))
+                    + "ns/op, registry=" + String.format("%.0f", test.buyRefundTime(options, 1, 400000)) + "ns/op");
+            test.registryBenchmark(live, 10000000);
+            return;
+        }
+
+        if (mode.equals("journal")) {
+            // journal [目录] [日志记录数]
+            String dir = args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir") + "/ticket-journal";
+            int records = args.length > 2 ? Integer.parseInt(args[2]) : 10000000;
+            int[] thread_nums = {1, 4, 16};
+            for (int threadnum : thread_nums) {
+                int testnum = 400000 / threadnum;
+                // 预热
+                test.journalOverhead(null, false, threadnum, testnum);
+                test.journalOverhead(dir, false, threadnum, testnum);
+                System.out.println("Thread: " + threadnum
+                        + ", no journal=" + String.format("%.0f", test.journalOverhead(null, false, threadnum, testnum))
+                        + "ns/op, journal=" + String.format("%.0f", test.journalOverhead(dir, false, threadnum, testnum))
+                        + "ns/op, journal + fsync=" + String.format("%.0f", test.journalOverhead(dir, true, threadnum, testnum / 20))
+                        + "ns/op");
+            }
+            test.journalRecovery(dir, records);
+            clearJournal(dir);
+            int errors = test.checkRejectedRefunds(dir);
+            System.out.println("Rejected refunds: " + (errors == 0 ? "OK" : errors + " errors"));
+            errors = test.checkShardedRecovery(dir);
+            System.out.println("Sharded recovery: " + (errors == 0 ? "OK" : errors + " errors"));
+            return;
+        }
+
+        if (mode.equals("cache")) {
+            TicketingOptions cached = new TicketingOptions();
+            cached.inquiry_cache = true;
+            TicketingOptions stale = new TicketingOptions();
+            stale.inquiry_cache = true;
+            stale.inquiry_staleness_us = 50;
+            int[] write_pcts = {1, 5, 20};
+            // 预热
+            test.cacheBenchmark("warmup", cached, 4, 200000, 5, 90);
+            for (int writepc : write_pcts) {
+                for (int threadnum : new int[]{1, 4}) {
+                    test.cacheBenchmark("No cache", new TicketingOptions(), threadnum, 1000000 / threadnum, writepc, 90);
+                    test.cacheBenchmark("Cache", cached, threadnum, 1000000 / threadnum, writepc, 90);
+                    test.cacheBenchmark("Cache, 50us stale", stale, threadnum, 1000000 / threadnum, writepc, 90);
+                }
+            }
+            return;
+        }
+
+        if (mode.equals("matrix")) {
+            int[] station_nums = {10, 30, 64};
+            for (int stationnum : station_nums) {
+                int testnum = 200000 / (stationnum * stationnum);
+                // 预热
+                test.matrixBenchmark(stationnum, testnum);
+                double[] result = test.matrixBenchmark(stationnum, testnum);
+                System.out.println("Stations: " + stationnum
+                        + ", inquiry per interval=" + String.format("%.0f", result[0])
+                        + "ns/matrix, inquiryAll=" + String.format("%.0f", result[1])
+                        + "ns/matrix, speedup=" + String.format("%.1f", result[0] / result[1]) + "x");
+            }
+            return;
+        }
+
+        if (mode.equals("layout")) {
+            // 座位主序（紧密/缓存行填充）与区段主序布局对比
+            for (TicketingOptions.SeatLayout layout : TicketingOptions.SeatLayout.values()) {
+                for (TicketingOptions.SeatPadding padding : TicketingOptions.SeatPadding.values()) {
+                    if (layout != TicketingOptions.SeatLayout.SEAT_MAJOR && padding != TicketingOptions.SeatPadding.NONE)
+                        continue;
+                    TicketingOptions options = new TicketingOptions();
+                    options.seat_layout = layout;
+                    options.seat_padding = padding;
+                    new TicketingDS(5, 8, 100, 10, 1, options).printState();
+                    test.sweep(5, 8, 100, 10, options);
+                }
+            }
+            return;
+        }
+
+        if (mode.equals("stations")) {
+            // 单word（64站）与多word（128、256站）座位对比
+            int[] station_nums = {64, 128, 256};
+            for (int stationnum : station_nums) {
+                System.out.println("Stations: " + stationnum);
+                test.sweep(5, 8, 100, stationnum, new TicketingOptions());
+            }
+            return;
+        }
+
+        if (mode.equals("counter")) {
+            // 写占比不同的负载下COUNTER与SCAN的吞吐量，先各跑一次预热
+            int[] write_pcs = {1, 10, 40};
+            int[] thread_nums = {1, 4, 16};
+            for (TicketingOptions.InquiryMode inquiry : TicketingOptions.InquiryMode.values())
+                test.counterBenchmark(inquiry, 4, 50000, 10);
+            for (int writepc : write_pcs) {
+                for (int threadnum : thread_nums) {
+                    for (TicketingOptions.InquiryMode inquiry : TicketingOptions.InquiryMode.values())
+                        test.counterBenchmark(inquiry, threadnum, 400000 / threadnum, writepc);
+                }
+            }
+            return;
+        }
+
+        test.sweep(5, 8, 100, 10, new TicketingOptions());
+        // 多线程的正确性由 Trace check 验证
     }
 }
@@ -1,12 +1,20 @@
 package ticketingsystem;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class TicketFactory {
-	private static AtomicInteger count = new AtomicInteger();
 
 	public static Ticket ConstructTicket(String passenger, int route, int departure, int arrival, int coach, int seat){
-		Ticket t = new Ticket();
-		t.tid = count.getAndIncrement();
+		return ConstructTicket(TicketIdGenerator.GLOBAL.next(route), passenger, route, departure, arrival, coach, seat);
+	}
+
+	public static Ticket ConstructTicket(long tid, String passenger, int route, int departure, int arrival, int coach, int seat){
+		return FillTicket(new Ticket(), tid, passenger, route, departure, arrival, coach, seat);
+	}
+
+	/**
+	 * 填充调用方提供的Ticket，用于复用Ticket对象的购票路径
+	 */
+	public static Ticket FillTicket(Ticket t, long tid, String passenger, int route, int departure, int arrival, int coach, int seat){
+		t.tid = tid;
 		t.passenger = passenger;
 		t.route = route;
 		t.coach = coach;
@@ -0,0 +1,137 @@
+package ticketingsystem;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 车票tid生成器，按TicketingOptions.id_strategy构造
+ * 所有策略生成的tid在同一生成器内唯一，并且在各自的分片（全局、线程、车次）内单调递增
+ */
+abstract class TicketIdGenerator {
+
+    /**
+     * @param route 车次，从1开始
+     * @return 新的tid
+     */
+    abstract long next(int route);
+
+    /**
+     * 从日志或快照恢复后调用，之后生成的tid都大于tid
+     *
+     * @param tid 已经使用过的tid
+     */
+    abstract void advancePast(long tid);
+
+    /**
+     * @param options   配置
+     * @param route_num 车次数
+     * @return tid生成器
+     */
+    static TicketIdGenerator Construct(TicketingOptions options, int route_num) {
+        switch (options.id_strategy) {
+            case THREAD_BLOCK:
+                return new ThreadBlock(options.id_block_size);
+            case ROUTE_SEQUENCE:
+                return new RouteSequence(route_num);
+            case GLOBAL:
+            default:
+                return GLOBAL;
+        }
+    }
+
+    // 所有TicketingDS共享的全局计数器，与原先TicketFactory中的计数器行为一致
+    static final TicketIdGenerator GLOBAL = new Global();
+
+    /**
+     * 单个64位全局计数器，每次购票都在同一缓存行上竞争
+     */
+    static final class Global extends TicketIdGenerator {
+        private final AtomicLong count = new AtomicLong();
+
+        @Override
+        long next(int route) {
+            return count.getAndIncrement();
+        }
+
+        @Override
+        void advancePast(long tid) {
+            count.accumulateAndGet(tid + 1, Math::max);
+        }
+    }
+
+    /**
+     * 每个线程一次从全局计数器领取block_size个连续的tid，之后在线程内递增
+     * 全局计数器的竞争降为原来的1/block_size
+     */
+    static final class ThreadBlock extends TicketIdGenerator {
+        private final AtomicLong count = new AtomicLong();
+        private final int block_size;
+        // {下一个tid, 当前块的结束位置}
+        private final ThreadLocal<long[]> block = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[2];
+            }
+        };
+
+        ThreadBlock(int block_size) {
+            this.block_size = block_size;
+        }
+
+        @Override
+        long next(int route) {
+            long[] curr = block.get();
+            if (curr[0] == curr[1]) {
+                curr[0] = count.getAndAdd(block_size);
+                curr[1] = curr[0] + block_size;
+            }
+            return curr[0]++;
+        }
+
+        /**
+         * 只影响之后领取的块，应在各线程开始购票之前调用
+         */
+        @Override
+        void advancePast(long tid) {
+            count.accumulateAndGet(tid + 1, Math::max);
+        }
+    }
+
+    /**
+     * tid的高ROUTE_BITS位为车次，低位为该车次内的序号，不同车次的购票互不竞争
+     */
+    static final class RouteSequence extends TicketIdGenerator {
+        static final int SEQUENCE_BITS = 40;
+        // 每个车次的计数器独占一个缓存行
+        private static final int STRIDE = 8;
+        private final AtomicLongArray sequences;
+
+        RouteSequence(int route_num) {
+            if (route_num >= 1 << (63 - SEQUENCE_BITS))
+                throw new IllegalArgumentException("车次数超出tid编码范围");
+            sequences = new AtomicLongArray(route_num * STRIDE);
+        }
+
+        /**
+         * @param route_num 车次数
+         * @return 生成的tid的上界（含）
+         */
+        static long maxTid(int route_num) {
+            return (long) route_num << SEQUENCE_BITS | ((1L << SEQUENCE_BITS) - 1);
+        }
+
+        @Override
+        long next(int route) {
+            return (long) route << SEQUENCE_BITS | sequences.getAndIncrement((route - 1) * STRIDE);
+        }
+
+        @Override
+        void advancePast(long tid) {
+            int route = (int) (tid >>> SEQUENCE_BITS);
+            if (route < 1 || (route - 1) * STRIDE >= sequences.length())
+                return;
+            long sequence = tid & ((1L << SEQUENCE_BITS) - 1);
+            sequences.accumulateAndGet((route - 1) * STRIDE, sequence + 1, Math::max);
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package ticketingsystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * 购票/退票的预写日志：只追加的二进制记录，写在内存映射的段文件中
+ * 每个段文件名为 journal-<起始偏移>.log，偏移在所有段间连续编号（段尾未用完的部分也计入偏移）
+ * 记录格式：[int 长度][int CRC32C][byte 类型][long tid][int 车次 车厢 座位 始发站 终点站][int 乘客名字节数][乘客名UTF-8]
+ * 记录不跨段，段内最后一条记录之后至少有4个字节的0，读到长度为0表示本段结束
+ * 追加只写映射内存，不等待落盘；需要持久化的调用方用awaitDurable等待，
+ * 同时等待的多个调用方由其中一个执行force，其余的共享这次落盘（组提交）
+ */
+final class TicketJournal implements Closeable {
+    static final byte BUY = 1;
+    static final byte REFUND = 2;
+    // 默认段大小
+    static final int SEGMENT_BYTES = 64 << 20;
+    // 记录中乘客名之前的字节数
+    private static final int HEADER = 4 + 4 + 1 + 8 + 5 * 4 + 4;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+
+    /**
+     * 恢复时逐条接收日志记录
+     */
+    interface RecordVisitor {
+        /**
+         * @param offset 记录的起始偏移
+         * @param type   BUY或REFUND
+         * @param ticket 记录的车票，调用返回后会被下一条记录覆盖
+         */
+        void visit(long offset, byte type, Ticket ticket);
+    }
+
+    private final Path dir;
+    private final int segment_bytes;
+    // 为false时不调用force，只保证JVM崩溃后不丢失（由操作系统写回）
+    private final boolean fsync;
+
+    // 以下字段由this保护
+    private MappedByteBuffer buffer;
+    private long segment_start;
+    private int position;
+    // 每车次日志中出现过的最大tid，写快照时记录
+    private final long[] max_tid;
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+
+    // 组提交：durable之前的记录都已落盘，flushing表示有调用方正在执行force
+    private final Object flush_lock = new Object();
+    private volatile long durable;
+    private boolean flushing;
+
+    /**
+     * 打开日志用于追加，end之后的内容（崩溃时未写完的记录）被清零，之后的段被删除
+     *
+     * @param end      scan返回的有效日志末尾
+     * @param route_num 车次数
+     */
+    TicketJournal(Path dir, long end, boolean fsync, int route_num) throws IOException {
+        this(dir, end, fsync, route_num, SEGMENT_BYTES);
+    }
+
+    TicketJournal(Path dir, long end, boolean fsync, int route_num, int segment_bytes) throws IOException {
+        this.dir = dir;
+        this.fsync = fsync;
+        this.max_tid = new long[route_num];
+        java.util.Arrays.fill(max_tid, -1);
+        Files.createDirectories(dir);
+        List<Long> segments = segments(dir);
+        long start = end;
+        for (long s : segments) {
+            if (s <= end)
+                start = s;
+        }
+        for (long s : segments) {
+            if (s > start)
+                Files.delete(segmentPath(dir, s));
+        }
+        this.segment_bytes = segments.contains(start) ? (int) Files.size(segmentPath(dir, start)) : segment_bytes;
+        map(start);
+        position = (int) (end - start);
+        // 清除崩溃时写了一半的记录以及它之后的残留
+        byte[] zeros = new byte[64 << 10];
+        for (int p = position; p < this.segment_bytes; p += zeros.length)
+            buffer.put(p, zeros, 0, Math.min(zeros.length, this.segment_bytes - p));
+        buffer.force();
+        durable = end;
+    }
+
+    private void map(long start) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(dir, start), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segment_bytes);
+        }
+        segment_start = start;
+        position = 0;
+    }
+
+    /**
+     * 追加一条记录，此时记录只在映射内存中
+     *
+     * @return 记录末尾的偏移，交给awaitDurable等待落盘
+     */
+    synchronized long append(byte type, Ticket ticket) {
+        byte[] name = ticket.passenger == null ? null : ticket.passenger.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER + (name == null ? 0 : name.length);
+        if (length + 4 > segment_bytes)
+            throw new IllegalArgumentException("乘客名过长，无法写入日志");
+        if (scratch.capacity() < length)
+            scratch = ByteBuffer.allocate(length);
+        ByteBuffer record = scratch.clear();
+        record.putInt(length).putInt(0).put(type).putLong(ticket.tid)
+                .putInt(ticket.route).putInt(ticket.coach).putInt(ticket.seat)
+                .putInt(ticket.departure).putInt(ticket.arrival).putInt(name == null ? -1 : name.length);
+        if (name != null)
+            record.put(name);
+        record.putInt(4, checksum(crc, record.array(), length));
+
+        if (position + length + 4 > segment_bytes)
+            roll();
+        buffer.put(position, record.array(), 0, length);
+        position += length;
+        if (type == BUY && ticket.route >= 1 && ticket.route <= max_tid.length)
+            max_tid[ticket.route - 1] = Math.max(max_tid[ticket.route - 1], ticket.tid);
+        return segment_start + position;
+    }
+
+    /**
+     * 换到下一个段，旧段整体落盘后才开始写新段，因此恢复时非最后一段中的0一定是段尾
+     */
+    private void roll() {
+        try {
+            buffer.force();
+            long next = segment_start + segment_bytes;
+            synchronized (flush_lock) {
+                durable = Math.max(durable, segment_start + position);
+            }
+            map(next);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 等待offset之前的记录落盘，未启用fsync时直接返回
+     */
+    void awaitDurable(long offset) {
+        if (!fsync || durable >= offset)
+            return;
+        synchronized (flush_lock) {
+            while (durable < offset && flushing) {
+                try {
+                    flush_lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (durable >= offset)
+                return;
+            flushing = true;
+        }
+        long target = durable;
+        try {
+            MappedByteBuffer segment;
+            long start;
+            synchronized (this) {
+                segment = buffer;
+                start = segment_start;
+                target = start + position;
+            }
+            // 之前的段在换段时已经落盘
+            int from = (int) Math.max(0, durable - start);
+            segment.force(from, (int) (target - start) - from);
+        } finally {
+            synchronized (flush_lock) {
+                durable = Math.max(durable, target);
+                flushing = false;
+                flush_lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return 当前的日志末尾，之前的记录都已追加完成
+     */
+    synchronized long position() {
+        return segment_start + position;
+    }
+
+    /**
+     * @return 车次日志中出现过的最大tid，没有时为-1
+     */
+    synchronized long maxTid(int route) {
+        return max_tid[route - 1];
+    }
+
+    /**
+     * 恢复时记录快照与日志中出现过的tid
+     */
+    synchronized void noteTid(int route, long tid) {
+        max_tid[route - 1] = Math.max(max_tid[route - 1], tid);
+    }
+
+    /**
+     * 删除全部记录都在offset之前的段，当前段不删除
+     */
+    void deleteBefore(long offset) throws IOException {
+        long current;
+        synchronized (this) {
+            current = segment_start;
+        }
+        for (long s : segments(dir)) {
+            if (s < current && s + Files.size(segmentPath(dir, s)) <= offset)
+                Files.delete(segmentPath(dir, s));
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        buffer.force();
+    }
+
+    /**
+     * 从offset开始顺序读取日志，遇到长度为0或校验失败的记录时结束
+     *
+     * @return 有效日志的末尾，日志为空时为offset与第一个段起点中较大的一个
+     */
+    static long scan(Path dir, long offset, RecordVisitor visitor) throws IOException {
+        List<Long> segments = segments(dir);
+        CRC32C crc = new CRC32C();
+        Ticket ticket = new Ticket();
+        byte[] bytes = new byte[256];
+        long end = segments.isEmpty() ? offset : Math.max(offset, segments.get(0));
+        for (int i = 0; i < segments.size(); i++) {
+            long start = segments.get(i);
+            boolean last = i == segments.size() - 1;
+            MappedByteBuffer segment;
+            try (FileChannel channel = FileChannel.open(segmentPath(dir, start), StandardOpenOption.READ)) {
+                if (start + channel.size() <= offset)
+                    continue;
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            int size = segment.capacity();
+            int p = (int) Math.max(0, offset - start);
+            while (true) {
+                int length = p + 4 <= size ? segment.getInt(p) : 0;
+                boolean valid = length >= HEADER && p + length <= size;
+                if (valid) {
+                    if (bytes.length < length)
+                        bytes = new byte[length];
+                    segment.get(p, bytes, 0, length);
+                    valid = checksum(crc, bytes, length) == segment.getInt(p + 4);
+                }
+                if (!valid) {
+                    end = start + p;
+                    // 非最后一段的0是段尾，继续读下一段；其他情况是日志末尾
+                    if (length == 0 && !last)
+                        break;
+                    return end;
+                }
+                ByteBuffer record = ByteBuffer.wrap(bytes, 0, length);
+                record.position(8);
+                byte type = record.get();
+                ticket.tid = record.getLong();
+                ticket.route = record.getInt();
+                ticket.coach = record.getInt();
+                ticket.seat = record.getInt();
+                ticket.departure = record.getInt();
+                ticket.arrival = record.getInt();
+                int name_length = record.getInt();
+                ticket.passenger = name_length < 0 ? null
+                        : new String(bytes, HEADER, name_length, StandardCharsets.UTF_8);
+                visitor.visit(start + p, type, ticket);
+                p += length;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * 校验和覆盖长度字段和校验和之后的全部内容
+     */
+    private static int checksum(CRC32C crc, byte[] record, int length) {
+        crc.reset();
+        crc.update(record, 0, 4);
+        crc.update(record, 8, length - 8);
+        return (int) crc.getValue();
+    }
+
+    private static Path segmentPath(Path dir, long start) {
+        return dir.resolve(String.format("%s%020d%s", PREFIX, start, SUFFIX));
+    }
+
+    /**
+     * @return 目录中所有段的起始偏移，升序
+     */
+    private static List<Long> segments(Path dir) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        if (!Files.isDirectory(dir))
+            return segments;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+}
@@ -0,0 +1,345 @@
+package ticketingsystem;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 服务端的已售车票表，以tid为键，退票时据此校验车票确实售出且未退过
+ * 车票压缩为定长记录存放在基本类型数组中，不为每张车票创建对象：
+ * 每个槽位为 [long tid][long 车次|车厢|座位|始发站|终点站] 加一个int乘客编号，共20字节
+ * 表按tid的哈希分为若干段，每段一把锁，段内为线性探测的开放寻址表，删除时后移补位，不留墓碑；
+ * 段容量不要求是2的幂，由哈希高位乘容量取高32位得到槽位，按预计车票数建表时不会因取整浪费空间
+ * 乘客名驻留为int编号，相同的乘客名只保存一份
+ */
+final class TicketRegistry {
+    // 段数，必须是2的幂
+    private static final int SEGMENTS = 64;
+    // 空槽位的tid
+    private static final long EMPTY = -1;
+    // 按预计车票数建表时的装载率 7/10，留出各段车票数不均的余量
+    private static final int INITIAL_NUMERATOR = 7, INITIAL_DENOMINATOR = 10;
+    // 段内元素数超过容量的 4/5 时扩容为1.5倍
+    private static final int LOAD_NUMERATOR = 4, LOAD_DENOMINATOR = 5;
+    // 压缩记录中各字段的位数：车次20位，车厢12位，座位16位，始发站、终点站各8位
+    private static final int COACH_SHIFT = 20, SEAT_SHIFT = 32, DEPARTURE_SHIFT = 48, ARRIVAL_SHIFT = 56;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Passengers passengers = new Passengers();
+
+    /**
+     * @param route_num   车次数
+     * @param coach_num   车厢数
+     * @param seat_num    每节车厢座位数
+     * @param station_num 站点数
+     * @param expected    预计同时有效的车票数，用于确定初始容量
+     */
+    TicketRegistry(int route_num, int coach_num, int seat_num, int station_num, long expected) {
+        if (route_num >= 1 << COACH_SHIFT || coach_num >= 1 << (SEAT_SHIFT - COACH_SHIFT)
+                || seat_num >= 1 << (DEPARTURE_SHIFT - SEAT_SHIFT) || station_num >= 1 << (ARRIVAL_SHIFT - DEPARTURE_SHIFT))
+            throw new IllegalArgumentException("车次、车厢、座位或站点数超出已售车票表的记录格式");
+        long per_segment = Math.max(16, expected / SEGMENTS * INITIAL_DENOMINATOR / INITIAL_NUMERATOR + 1);
+        if (per_segment > Integer.MAX_VALUE / 2)
+            throw new IllegalArgumentException("预计车票数过多");
+        int capacity = (int) per_segment;
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(capacity);
+    }
+
+    /**
+     * 记录一张售出的车票，tid已存在时覆盖
+     */
+    void register(Ticket ticket) {
+        if (ticket.tid < 0)
+            throw new IllegalArgumentException("tid不能为负数");
+        long hash = hash(ticket.tid);
+        segment(hash).put(ticket.tid, hash, pack(ticket), passengers.intern(ticket.passenger));
+    }
+
+    /**
+     * 车票与已售记录完全一致时删除该记录
+     *
+     * @return 车票确实售出且未退过时返回true，伪造、篡改或重复退票返回false
+     */
+    boolean remove(Ticket ticket) {
+        int passenger = passengers.find(ticket.passenger);
+        if (ticket.tid < 0 || passenger < 0)
+            return false;
+        long hash = hash(ticket.tid);
+        return segment(hash).remove(ticket.tid, hash, pack(ticket), passenger);
+    }
+
+    /**
+     * @return 车票与某条已售记录完全一致
+     */
+    boolean contains(Ticket ticket) {
+        int passenger = passengers.find(ticket.passenger);
+        if (ticket.tid < 0 || passenger < 0)
+            return false;
+        long hash = hash(ticket.tid);
+        return segment(hash).contains(ticket.tid, hash, pack(ticket), passenger);
+    }
+
+    /**
+     * @return 有效车票数
+     */
+    long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return 表占用的字节数（槽位数组，不含乘客名）
+     */
+    long tableBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                // 两个数组的对象头
+                bytes += 8L * segment.slots.length + 4L * segment.passenger_ids.length + 2 * 16;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return 驻留的乘客名及其索引估算占用的字节数
+     */
+    long passengerBytes() {
+        return passengers.bytes();
+    }
+
+    /**
+     * 写出全部记录，用于快照；写出期间的并发修改可能部分可见，由快照之后的日志重放补齐
+     */
+    void write(DataOutputStream out) throws IOException {
+        for (Segment segment : segments) {
+            long[] slots;
+            int[] passenger_ids;
+            synchronized (segment) {
+                slots = segment.slots.clone();
+                passenger_ids = segment.passenger_ids.clone();
+            }
+            int size = 0;
+            for (int i = 0; i < passenger_ids.length; i++) {
+                if (slots[2 * i] != EMPTY)
+                    size++;
+            }
+            out.writeInt(size);
+            for (int i = 0; i < passenger_ids.length; i++) {
+                if (slots[2 * i] != EMPTY) {
+                    out.writeLong(slots[2 * i]);
+                    out.writeLong(slots[2 * i + 1]);
+                    out.writeInt(passenger_ids[i]);
+                }
+            }
+        }
+        passengers.write(out);
+    }
+
+    /**
+     * 读入write写出的记录，应在并发访问开始前调用
+     */
+    void read(DataInputStream in) throws IOException {
+        for (int s = 0; s < SEGMENTS; s++) {
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                long tid = in.readLong();
+                long packed = in.readLong();
+                int passenger = in.readInt();
+                long hash = hash(tid);
+                segment(hash).put(tid, hash, packed, passenger);
+            }
+        }
+        passengers.read(in);
+    }
+
+    private Segment segment(long hash) {
+        return segments[(int) hash & (SEGMENTS - 1)];
+    }
+
+    private static long hash(long tid) {
+        long h = tid * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    private static long pack(Ticket ticket) {
+        return (long) ticket.route | (long) ticket.coach << COACH_SHIFT | (long) ticket.seat << SEAT_SHIFT
+                | (long) ticket.departure << DEPARTURE_SHIFT | (long) ticket.arrival << ARRIVAL_SHIFT;
+    }
+
+    private static final class Segment {
+        // 第i个槽位的tid与压缩记录位于 2 * i 和 2 * i + 1
+        long[] slots;
+        int[] passenger_ids;
+        int size;
+
+        Segment(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            slots = new long[2 * capacity];
+            for (int i = 0; i < slots.length; i += 2)
+                slots[i] = EMPTY;
+            passenger_ids = new int[capacity];
+        }
+
+        /**
+         * 段内槽位由哈希的高32位决定，低位已用于选择段
+         */
+        private int home(long hash) {
+            return (int) (((hash >>> 32) * passenger_ids.length) >>> 32);
+        }
+
+        private int next(int i) {
+            return i + 1 == passenger_ids.length ? 0 : i + 1;
+        }
+
+        /**
+         * @return 沿探测方向从from到to的距离
+         */
+        private int distance(int from, int to) {
+            return to >= from ? to - from : to - from + passenger_ids.length;
+        }
+
+        synchronized void put(long tid, long hash, long packed, int passenger) {
+            int i = home(hash);
+            while (slots[2 * i] != EMPTY && slots[2 * i] != tid)
+                i = next(i);
+            if (slots[2 * i] == EMPTY)
+                size++;
+            slots[2 * i] = tid;
+            slots[2 * i + 1] = packed;
+            passenger_ids[i] = passenger;
+            if ((long) size * LOAD_DENOMINATOR > (long) passenger_ids.length * LOAD_NUMERATOR)
+                resize();
+        }
+
+        synchronized boolean contains(long tid, long hash, long packed, int passenger) {
+            int i = find(tid, hash);
+            return i >= 0 && slots[2 * i + 1] == packed && passenger_ids[i] == passenger;
+        }
+
+        synchronized boolean remove(long tid, long hash, long packed, int passenger) {
+            int i = find(tid, hash);
+            if (i < 0 || slots[2 * i + 1] != packed || passenger_ids[i] != passenger)
+                return false;
+            // 后移补位：把之后探测链上可以前移的元素移到空出的槽位，保证查找不会提前遇到空槽
+            int hole = i;
+            for (int j = next(i); slots[2 * j] != EMPTY; j = next(j)) {
+                int h = home(TicketRegistry.hash(slots[2 * j]));
+                // h不在(hole, j]之间时，j处的元素可以移到hole
+                if (distance(h, j) >= distance(hole, j)) {
+                    slots[2 * hole] = slots[2 * j];
+                    slots[2 * hole + 1] = slots[2 * j + 1];
+                    passenger_ids[hole] = passenger_ids[j];
+                    hole = j;
+                }
+            }
+            slots[2 * hole] = EMPTY;
+            size--;
+            return true;
+        }
+
+        private int find(long tid, long hash) {
+            for (int i = home(hash); slots[2 * i] != EMPTY; i = next(i)) {
+                if (slots[2 * i] == tid)
+                    return i;
+            }
+            return -1;
+        }
+
+        private void resize() {
+            long[] old_slots = slots;
+            int[] old_passengers = passenger_ids;
+            allocate(old_passengers.length + old_passengers.length / 2);
+            for (int k = 0; k < old_passengers.length; k++) {
+                long tid = old_slots[2 * k];
+                if (tid == EMPTY)
+                    continue;
+                int i = home(TicketRegistry.hash(tid));
+                while (slots[2 * i] != EMPTY)
+                    i = next(i);
+                slots[2 * i] = tid;
+                slots[2 * i + 1] = old_slots[2 * k + 1];
+                passenger_ids[i] = old_passengers[k];
+            }
+        }
+    }
+
+    /**
+     * 乘客名与int编号的双向表，编号0表示null
+     */
+    private static final class Passengers {
+        private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+        // 由this保护
+        private String[] names = new String[16];
+        private int count = 1;
+        private long name_bytes;
+
+        int intern(String name) {
+            if (name == null)
+                return 0;
+            Integer id = ids.get(name);
+            return id != null ? id : add(name);
+        }
+
+        /**
+         * @return 乘客名的编号，未出现过时返回-1
+         */
+        int find(String name) {
+            if (name == null)
+                return 0;
+            Integer id = ids.get(name);
+            return id == null ? -1 : id;
+        }
+
+        private synchronized int add(String name) {
+            Integer id = ids.get(name);
+            if (id != null)
+                return id;
+            if (count == names.length)
+                names = java.util.Arrays.copyOf(names, count * 2);
+            names[count] = name;
+            // String对象与byte[]约 24 + 16 + 长度字节，ConcurrentHashMap节点32字节，Integer 16字节，names中一个引用
+            name_bytes += 24 + 16 + name.length() + 32 + 16 + 4;
+            ids.put(name, count);
+            return count++;
+        }
+
+        synchronized long bytes() {
+            return name_bytes + 4L * names.length;
+        }
+
+        synchronized void write(DataOutputStream out) throws IOException {
+            out.writeInt(count);
+            for (int i = 1; i < count; i++) {
+                byte[] bytes = names[i].getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        /**
+         * 读入的编号与写出时相同，应在任何intern之前调用
+         */
+        synchronized void read(DataInputStream in) throws IOException {
+            int n = in.readInt();
+            for (int i = 1; i < n; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                String name = new String(bytes, StandardCharsets.UTF_8);
+                if (add(name) != i)
+                    throw new IOException("乘客名编号与快照不一致");
+            }
+        }
+    }
+}
@@ -1,10 +1,22 @@
 package ticketingsystem;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
-
-public class TicketingDS implements TicketingSystem {
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class TicketingDS implements TicketingSystem, Closeable {
     private final int ROUTE_NUM;
     private final int TICKETS_PER_STATION;
     private final int COACH_NUM;
@@ -12,163 +24,48 @@ public class TicketingDS implements TicketingSystem {
     private final int STATION_NUM;
 
     private int ranges;
+    private final TicketingOptions options;
+    // 每车次各区段余票的上界，退票在释放座位前加1，购票在占用座位后减1，因此不会小于实际余票
     private SegmentTree[] routes_tickets_num;
     private SeatBitMap[] routes_seats;
+    // 区间编号与检测器表
+    private final IntervalTable intervals;
+    // 车票tid生成器
+    private final TicketIdGenerator id_generator;
+    // 座位word存储，SCATTERED布局下所有车次共用一块，PADDED布局下每个亲和分片一块；区段主序布局下为null
+    private AtomicLongArray[] seat_storage;
+    // 第s个亲和分片的车次下标为[shard_start[s], shard_start[s + 1])
+    private int[] shard_start;
+    // 每车次的写计数器，启用consistent_inquiry、inquiry_cache、COUNTER查询或日志时非空
+    private RouteVersions versions;
+    // 一致读取最多尝试的次数，之后返回最后一次的结果
+    private static final int CONSISTENT_ATTEMPTS = 64;
+    // 有进行中的写时先自旋的次数
+    private static final int CONSISTENT_SPINS = 8;
+    // COUNTER查询读取计数的次数，都有写并发时退回扫描
+    private static final int COUNTED_ATTEMPTS = 4;
+    // 余票查询结果缓存，未启用inquiry_cache时为null
+    private InquiryCache inquiry_cache;
+    // 已售车票表，未启用ticket_registry时为null
+    private TicketRegistry registry;
+    // 预写日志，未设置journal_dir时为null
+    private TicketJournal journal;
+    // 定期写快照的后台线程
+    private Thread snapshot_thread;
+    private final Object snapshot_lock = new Object();
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    // "TKSNAP01"
+    private static final long SNAPSHOT_MAGIC = 0x544b534e41503031L;
 
-    class SeatBitMap {
-        // 车厢数
-        private int coach_num;
-        // 每节车厢座位数
-        private int seat_num;
-        // 总座位数
-        private int total_seat_num;
-
-        private AtomicLong[] seat_bit_map;
-
-        // 记录当前车票的上一次购票index，针对探测器构造历史
-        private ConcurrentHashMap<Long, AtomicInteger> history;
-
-        public SeatBitMap(int coach_num, int seat_num) {
-            this.coach_num = coach_num;
-            this.seat_num = seat_num;
-            this.total_seat_num = coach_num * seat_num;
-
-            seat_bit_map = new AtomicLong[total_seat_num];
-            for (int i = 0; i < total_seat_num; i++) {
-                seat_bit_map[i] = new AtomicLong();
-            }
-
-            history = new ConcurrentHashMap<Long, AtomicInteger>();
-        }
-
-
-        /**
-         * 使用bit来表示某对应区段的座位是否被占用, 1表示占用
-         *
-         * @param departure 始发站
-         * @param arrival   终点站
-         * @return {车厢号， 座位号}
-         * @throws Exception
-         */
-        public int[] allocateSeat(int departure, int arrival) {
-            int[] result = {0, 0};
-
-            //TODO 构造探测器
-            long detector = getDetector(departure, arrival);
-
-            //TODO 如果不存在，构造新的记录
-            if (!history.containsKey(detector)) {
-                history.put(detector, new AtomicInteger());
-            }
-
-            long new_seat_flag_bit, seat_flag_bit;
-            AtomicInteger curr_history = history.get(detector);
-            int curr_index = curr_history.get();
-            for (int i = curr_index; i < total_seat_num; i++) {
-                //TODO find seat
-                AtomicLong curr_flag_bit = seat_bit_map[i];
-                seat_flag_bit = curr_flag_bit.get();
-                // 找到探测器范围内bit值都为0的座位
-                while ((seat_flag_bit & detector) == 0) {
-                    // 将对应区段都改为1标志
-                    new_seat_flag_bit = seat_flag_bit | detector;
-
-                    if (curr_flag_bit.compareAndSet(seat_flag_bit, new_seat_flag_bit)) {
-                        result = new int[]{i / SEAT_NUM + 1, i % SEAT_NUM + 1};
-                        // 更新最近购票位
-                        curr_history.compareAndSet(curr_index, i + 1);
-                        return result;
-                    }
-                    seat_flag_bit = curr_flag_bit.get();
-                }
-            }
-            return result;
-        }
-
-        /**
-         * 回收退票对应的座位
-         *
-         * @param departure 始发站
-         * @param arrival   终点站
-         * @param coach     车厢号
-         * @param seat      座位号
-         * @return
-         * @throws Exception
-         */
-        public boolean recycleSeat(int departure, int arrival, int coach, int seat) throws Exception {
-            int index = (coach - 1) * SEAT_NUM + seat - 1;
-            AtomicLong curr_flag_bit = seat_bit_map[index];
-            long seat_flag_bit = curr_flag_bit.get();
-            long new_seat_flag_bit;
-
-            // 获取余票检测器
-            long detector = getDetector(departure, arrival);
-
-            // 在探测器范围内的bit都应该是1，否则出错
-            AtomicInteger curr_history = history.get(detector);
-            while ((seat_flag_bit & detector) == detector) {
-                new_seat_flag_bit = (~detector) & seat_flag_bit;
-                if (curr_flag_bit.compareAndSet(seat_flag_bit, new_seat_flag_bit)) {
-                    // TODO 如何保证小于历史的index一定都被记录到？
-                    int expect = curr_history.get();
-                    while (index < expect) {
-                        curr_history.compareAndSet(expect, index);
-                        expect = curr_history.get();
-                    }
-                    return true;
-                }
-                seat_flag_bit = curr_flag_bit.get();
-            }
-            System.out.println("Can't recycle seat, something wrong!");
-            System.out.flush();
-            return false;
-        }
-
-        /**
-         * 返回剩余的车票数
-         *
-         * @param departure 始发站
-         * @param arrival   终点站
-         * @return 余票
-         */
-        public int query(int departure, int arrival) {
-            int count = 0;
-            long detector = getDetector(departure, arrival);
-
-            int curr_index = 0;
-            if (history.containsKey(detector)) {
-                AtomicInteger curr_history = history.get(detector);
-                curr_index = curr_history.get();
-            }
-            for (int i = curr_index; i < total_seat_num; i++) {
-                AtomicLong curr_seat_bit = seat_bit_map[i];
-                if ((curr_seat_bit.get() & detector) == 0)
-                    count++;
-            }
-            return count;
-        }
-
-        /**
-         * 返回对应区间的余票检测器
-         *
-         * @param departure
-         * @param arrival
-         * @return
-         */
-        private long getDetector(int departure, int arrival) {
-            long detector = 0;
-            for (int j = departure - 1; j < arrival - 1; j++) {
-                detector += 1 << j;
-            }
-            return detector;
-        }
-
+    public TicketingDS(int routenum, int coachnum, int seatnum, int stationnum, int threadnum) throws InterruptedException{
+        this(routenum, coachnum, seatnum, stationnum, threadnum, new TicketingOptions());
     }
 
-    public TicketingDS(int routenum, int coachnum, int seatnum, int stationnum, int threadnum) throws InterruptedException{
+    public TicketingDS(int routenum, int coachnum, int seatnum, int stationnum, int threadnum,
+                       TicketingOptions options) throws InterruptedException{
         // 验证数据是否合法
-        if (stationnum > 64)
-            throw new InterruptedException("不支持64个以上的站点");
+        if (stationnum < 2)
+            throw new InterruptedException("至少需要两个站点");
 
         ROUTE_NUM = routenum;
         COACH_NUM = coachnum;
@@ -179,42 +76,611 @@ public class TicketingDS implements TicketingSystem {
         TICKETS_PER_STATION = COACH_NUM * SEAT_NUM;
 
         ranges = STATION_NUM - 1;
+        this.options = options;
+        intervals = new IntervalTable(STATION_NUM);
+        id_generator = TicketIdGenerator.Construct(options, routenum);
+        int shards = options.affinity_shards > 0 ? options.affinity_shards : Runtime.getRuntime().availableProcessors();
+        shards = Math.max(1, Math.min(shards, routenum));
+        shard_start = new int[shards + 1];
+        for (int s = 0; s <= shards; s++)
+            shard_start[s] = (int) ((long) s * routenum / shards);
         // 所有车次当前余座
         routes_seats = new SeatBitMap[routenum];
-        for (int i = 0; i < routenum; i++) {
-            // 初始化座位
-            routes_seats[i] = new SeatBitMap(COACH_NUM, SEAT_NUM);
+        if (options.route_layout == TicketingOptions.RouteLayout.PADDED) {
+            constructShards();
+        } else {
+            seat_storage = new AtomicLongArray[]{
+                    SeatBitMapFactory.ConstructSeatStorage(options, routenum, TICKETS_PER_STATION, STATION_NUM)};
+            for (int i = 0; i < routenum; i++) {
+                // 初始化座位
+                routes_seats[i] = SeatBitMapFactory.ConstructSeatBitMap(options, seat_storage[0], i,
+                        COACH_NUM, SEAT_NUM, intervals);
+            }
+        }
+        if (options.consistent_inquiry || options.inquiry_cache
+                || options.inquiry_mode == TicketingOptions.InquiryMode.COUNTER)
+            versions = new RouteVersions(routenum);
+        if (options.inquiry_cache)
+            inquiry_cache = new InquiryCache(routenum, options.inquiry_cache_entries,
+                    options.inquiry_staleness_us * 1000);
+        if (options.availability_precheck) {
+            int[] tickets_num = new int[ranges];
+            java.util.Arrays.fill(tickets_num, TICKETS_PER_STATION);
+            routes_tickets_num = new SegmentTree[routenum];
+            for (int i = 0; i < routenum; i++)
+                routes_tickets_num[i] = new SegmentTree(tickets_num);
+        }
+        if (options.ticket_registry)
+            registry = new TicketRegistry(routenum, coachnum, seatnum, stationnum, (long) routenum * TICKETS_PER_STATION);
+        if (options.journal_dir != null) {
+            // 快照依赖写计数器取得与日志位置一致的座位状态
+            if (versions == null)
+                versions = new RouteVersions(routenum);
+            try {
+                recover(Paths.get(options.journal_dir));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (options.snapshot_interval_ms > 0)
+                startSnapshots(options.snapshot_interval_ms);
+        }
+    }
+
+    /**
+     * 每个亲和分片由一个线程分配座位word存储并构造其中车次的座位占用表：
+     * 同一线程分配的对象连续地位于它自己的TLAB中，不同分片的对象不会相邻，
+     * 在-XX:+UseNUMA下还位于分配线程所在节点的内存中
+     */
+    private void constructShards() throws InterruptedException {
+        int shards = shard_start.length - 1;
+        seat_storage = new AtomicLongArray[shards];
+        Thread[] threads = new Thread[shards];
+        RuntimeException[] errors = new RuntimeException[shards];
+        for (int s = 0; s < shards; s++) {
+            final int shard = s;
+            threads[s] = new Thread(() -> {
+                try {
+                    int first = shard_start[shard], last = shard_start[shard + 1];
+                    AtomicLongArray storage = SeatBitMapFactory.ConstructSeatStorage(options, last - first,
+                            TICKETS_PER_STATION, STATION_NUM);
+                    for (int i = first; i < last; i++)
+                        routes_seats[i] = SeatBitMapFactory.ConstructSeatBitMap(options, storage, i - first,
+                                COACH_NUM, SEAT_NUM, intervals);
+                    seat_storage[shard] = storage;
+                } catch (RuntimeException e) {
+                    errors[shard] = e;
+                }
+            }, "ticketing-shard-" + s);
+            threads[s].start();
         }
+        for (Thread thread : threads)
+            thread.join();
+        for (RuntimeException error : errors) {
+            if (error != null)
+                throw error;
+        }
+    }
+
+    /**
+     * @return 亲和分片数
+     */
+    public int affinityShards() {
+        return shard_start.length - 1;
+    }
+
+    /**
+     * 车次按编号连续分到各亲和分片，同一分片的车次由同一组线程访问时，各组线程使用的缓存行互不相交
+     *
+     * @param route 车次，从1开始
+     * @return 车次所属的亲和分片，从0开始
+     */
+    public int affinityShard(int route) {
+        // shard_start[s] = s * ROUTE_NUM / 分片数 向下取整，其中不超过route - 1的最大的s
+        return (int) (((long) route * affinityShards() - 1) / ROUTE_NUM);
+    }
+
+    /**
+     * @return 亲和分片中的车次，从1开始
+     */
+    public int[] affinityRoutes(int shard) {
+        int[] routes = new int[shard_start[shard + 1] - shard_start[shard]];
+        for (int i = 0; i < routes.length; i++)
+            routes[i] = shard_start[shard] + i + 1;
+        return routes;
     }
 
     public void printState() {
-        System.out.println("Routenum: " + routes_tickets_num.length);
+        System.out.println("Routenum: " + ROUTE_NUM);
         System.out.println("Stations: " + STATION_NUM);
         System.out.println("Tickets per station: " + TICKETS_PER_STATION);
+
+        long seat_bytes = 0;
+        for (SeatBitMap seats : routes_seats)
+            seat_bytes += seats.seatWordBytes();
+        for (AtomicLongArray storage : seat_storage) {
+            // AtomicLongArray对象及其long[]的对象头
+            if (storage != null)
+                seat_bytes += 16 + 16;
+        }
+        // 每个座位一个AtomicLong时：对象24字节 + 数组中4字节引用 + 每车次数组对象头16字节
+        long object_bytes = (long) ROUTE_NUM * (16 + 28L * TICKETS_PER_STATION);
+        System.out.println("Seat layout: " + options.seat_layout + ", padding: " + options.seat_padding
+                + ", route layout: " + options.route_layout + ", affinity shards: " + affinityShards());
+        System.out.println("Seat words heap bytes: " + seat_bytes
+                + " (AtomicLong per seat: " + object_bytes + ")");
+        if (registry != null) {
+            long live = registry.size();
+            long table_bytes = registry.tableBytes();
+            System.out.println("Ticket registry: " + live + " live tickets, table bytes: " + table_bytes
+                    + (live == 0 ? "" : " (" + table_bytes / live + " bytes/ticket)")
+                    + ", passenger names bytes: " + registry.passengerBytes());
+        }
     }
 
     @Override
     public Ticket buyTicket(String passenger, int route, int departure, int arrival) {
+        if (journal != null) {
+            Ticket ticket = new Ticket();
+            return buyJournaled(ticket, passenger, route, departure, arrival) ? ticket : null;
+        }
 
-        int[] seat = routes_seats[route - 1].allocateSeat(departure, arrival);
-        if (seat[0] != 0) {
-            return TicketFactory.ConstructTicket(passenger, route, departure, arrival,
-                    seat[0], seat[1]);
+        int seat = allocateSeat(route, departure, arrival);
+        if (seat != SeatBitMap.NO_SEAT) {
+            Ticket ticket = TicketFactory.ConstructTicket(id_generator.next(route), passenger, route, departure, arrival,
+                    seat / SEAT_NUM + 1, seat % SEAT_NUM + 1);
+            if (registry != null)
+                registry.register(ticket);
+            return ticket;
         } else
             return null;
     }
 
+    /**
+     * 购票结果写入调用方提供的可复用Ticket，整个购票路径不分配内存
+     *
+     * @param holder 用于接收车票的Ticket，购票失败时不被修改
+     * @return 购票成功返回true
+     */
+    public boolean buyTicket(Ticket holder, String passenger, int route, int departure, int arrival) {
+        if (journal != null)
+            return buyJournaled(holder, passenger, route, departure, arrival);
+        int seat = allocateSeat(route, departure, arrival);
+        if (seat == SeatBitMap.NO_SEAT)
+            return false;
+        TicketFactory.FillTicket(holder, id_generator.next(route), passenger, route, departure, arrival,
+                seat / SEAT_NUM + 1, seat % SEAT_NUM + 1);
+        if (registry != null)
+            registry.register(holder);
+        return true;
+    }
+
+    /**
+     * 占用一个座位，区间内某区段余票上界为0时直接返回
+     *
+     * @return 座位index，无余票时为NO_SEAT
+     */
+    private int allocateSeat(int route, int departure, int arrival) {
+        SegmentTree tickets_num = routes_tickets_num == null ? null : routes_tickets_num[route - 1];
+        if (tickets_num != null && tickets_num.query(departure - 1, arrival - 2) <= 0)
+            return SeatBitMap.NO_SEAT;
+        int seat;
+        beginWrite(route);
+        try {
+            seat = routes_seats[route - 1].allocateSeat(departure, arrival);
+        } finally {
+            endWrite(route);
+        }
+        if (seat != SeatBitMap.NO_SEAT && tickets_num != null)
+            tickets_num.update(departure - 1, arrival - 2, -1);
+        return seat;
+    }
+
+    /**
+     * 启用日志时的购票：占用座位、生成tid和写日志都在车次的写区间内完成，
+     * 快照由此判断一条记录是否已经包含在复制的座位状态中；更新余票上界之后再等待日志落盘
+     *
+     * @param holder 用于接收车票的Ticket，购票失败时不被修改
+     * @return 购票成功返回true
+     */
+    private boolean buyJournaled(Ticket holder, String passenger, int route, int departure, int arrival) {
+        SegmentTree tickets_num = routes_tickets_num == null ? null : routes_tickets_num[route - 1];
+        if (tickets_num != null && tickets_num.query(departure - 1, arrival - 2) <= 0)
+            return false;
+        long end;
+        beginWrite(route);
+        try {
+            int seat = routes_seats[route - 1].allocateSeat(departure, arrival);
+            if (seat == SeatBitMap.NO_SEAT)
+                return false;
+            TicketFactory.FillTicket(holder, id_generator.next(route), passenger, route, departure, arrival,
+                    seat / SEAT_NUM + 1, seat % SEAT_NUM + 1);
+            end = journal.append(TicketJournal.BUY, holder);
+            // 在写区间内登记，快照中的已售车票与座位状态对应同一日志位置
+            if (registry != null)
+                registry.register(holder);
+        } finally {
+            endWrite(route);
+        }
+        if (tickets_num != null)
+            tickets_num.update(departure - 1, arrival - 2, -1);
+        journal.awaitDurable(end);
+        return true;
+    }
+
+    /**
+     * 释放座位，余票上界先于座位增加
+     *
+     * @param journaled 启用日志时是否记录本次退票，重放日志时为false
+     * @return 座位在该区间确实被占用并已释放时返回true，启用ticket_registry时还要求车票确实售出且未退过
+     */
+    private boolean recycleSeat(Ticket ticket, boolean journaled) throws Exception {
+        // 已售车票表中删除成功的车票只有一个退票者，座位一定由它占用
+        if (registry != null && !registry.remove(ticket))
+            return false;
+        SegmentTree tickets_num = routes_tickets_num == null ? null : routes_tickets_num[ticket.route - 1];
+        if (tickets_num != null)
+            tickets_num.update(ticket.departure - 1, ticket.arrival - 2, 1);
+        boolean released = false;
+        long end = 0;
+        beginWrite(ticket.route);
+        try {
+            if (journaled && journal != null) {
+                // 在日志锁内释放座位并写退票记录：之后占用同一座位的购票要等到这里结束才能写日志，
+                // 记录一定排在退票记录后面；未能释放的车票不写日志
+                synchronized (journal) {
+                    released = routes_seats[ticket.route - 1].recycleSeat(ticket.departure, ticket.arrival,
+                            ticket.coach, ticket.seat);
+                    if (released)
+                        end = journal.append(TicketJournal.REFUND, ticket);
+                }
+            } else {
+                released = routes_seats[ticket.route - 1].recycleSeat(ticket.departure, ticket.arrival,
+                        ticket.coach, ticket.seat);
+            }
+        } finally {
+            endWrite(ticket.route);
+            // 非法的车票不释放座位，撤销增加的上界
+            if (!released && tickets_num != null)
+                tickets_num.update(ticket.departure - 1, ticket.arrival - 2, -1);
+        }
+        if (released && end != 0)
+            journal.awaitDurable(end);
+        return released;
+    }
+
+    private void beginWrite(int route) {
+        if (versions != null)
+            versions.beginWrite(route - 1);
+    }
+
+    private void endWrite(int route) {
+        if (versions != null)
+            versions.endWrite(route - 1);
+    }
+
+    /**
+     * 团体购票：余票上界不足count时直接返回，否则在座位表中一次扫描占用count个座位，
+     * 余票上界也只更新一次
+     */
+    @Override
+    public Ticket[] buyTickets(String[] passengers, int route, int departure, int arrival, int count,
+                               SeatPreference preference) {
+        if (count <= 0 || passengers.length < count)
+            throw new IllegalArgumentException("乘客数少于车票数");
+        SegmentTree tickets_num = routes_tickets_num == null ? null : routes_tickets_num[route - 1];
+        if (tickets_num != null && tickets_num.query(departure - 1, arrival - 2) < count)
+            return null;
+        int[] seats = new int[count];
+        Ticket[] tickets = new Ticket[count];
+        int claimed;
+        long end = 0;
+        beginWrite(route);
+        try {
+            claimed = routes_seats[route - 1].allocateSeats(departure, arrival, count, preference, seats);
+            // 启用日志时车票需要在写区间内记录，因此在这里生成
+            for (int i = 0; claimed == count && i < count; i++) {
+                tickets[i] = TicketFactory.ConstructTicket(id_generator.next(route), passengers[i], route,
+                        departure, arrival, seats[i] / SEAT_NUM + 1, seats[i] % SEAT_NUM + 1);
+                if (journal != null)
+                    end = journal.append(TicketJournal.BUY, tickets[i]);
+                if (registry != null)
+                    registry.register(tickets[i]);
+            }
+        } finally {
+            endWrite(route);
+        }
+        if (claimed != count)
+            return null;
+        if (tickets_num != null)
+            tickets_num.update(departure - 1, arrival - 2, -count);
+        if (end != 0)
+            journal.awaitDurable(end);
+        return tickets;
+    }
+
+    /**
+     * 批量退票：按车次分组，每个车次的余票上界只更新一次，座位表整批回收
+     */
+    @Override
+    public int refundTickets(Ticket[] tickets) {
+        if (tickets.length == 1)
+            return refundTicket(tickets[0]) ? 1 : 0;
+        // 按车次计数排序，非法的车票以及已售车票表中没有的车票不参与
+        boolean[] valid = new boolean[tickets.length];
+        int[] starts = new int[ROUTE_NUM + 1];
+        for (int i = 0; i < tickets.length; i++) {
+            valid[i] = validTicket(tickets[i]) && (registry == null || registry.remove(tickets[i]));
+            if (valid[i])
+                starts[tickets[i].route]++;
+        }
+        for (int r = 1; r <= ROUTE_NUM; r++)
+            starts[r] += starts[r - 1];
+        int[] order = new int[starts[ROUTE_NUM]];
+        for (int i = tickets.length - 1; i >= 0; i--) {
+            if (valid[i])
+                order[--starts[tickets[i].route]] = i;
+        }
+
+        boolean[] released = new boolean[tickets.length];
+        int[] additions = routes_tickets_num == null ? null : new int[ranges];
+        long end = 0;
+        for (int route = 1; route <= ROUTE_NUM; route++) {
+            // 此时starts[route]为该车次在order中的起点
+            int from = starts[route], to = route < ROUTE_NUM ? starts[route + 1] : order.length;
+            if (from == to)
+                continue;
+            // 余票上界先于座位增加，未能释放的车票再减回去
+            if (additions != null) {
+                fillAdditions(additions, tickets, order, from, to, null, 1);
+                routes_tickets_num[route - 1].update(additions);
+            }
+            beginWrite(route);
+            try {
+                if (journal != null) {
+                    // 与recycleSeat相同，只为确实释放的车票写退票记录
+                    synchronized (journal) {
+                        routes_seats[route - 1].recycleSeats(tickets, order, from, to, released);
+                        for (int k = from; k < to; k++) {
+                            if (released[order[k]])
+                                end = journal.append(TicketJournal.REFUND, tickets[order[k]]);
+                        }
+                    }
+                } else {
+                    routes_seats[route - 1].recycleSeats(tickets, order, from, to, released);
+                }
+            } finally {
+                endWrite(route);
+            }
+            if (additions != null) {
+                fillAdditions(additions, tickets, order, from, to, released, -1);
+                routes_tickets_num[route - 1].update(additions);
+            }
+        }
+
+        int refunded = 0;
+        for (boolean r : released) {
+            if (r)
+                refunded++;
+        }
+        if (refunded > 0 && end != 0)
+            journal.awaitDurable(end);
+        return refunded;
+    }
+
+    private boolean validTicket(Ticket ticket) {
+        return ticket != null && ticket.route >= 1 && ticket.route <= ROUTE_NUM
+                && ticket.departure >= 1 && ticket.departure < ticket.arrival && ticket.arrival <= STATION_NUM;
+    }
+
+    /**
+     * 用差分数组统计order[from, to)中车票在每个区段上的增量
+     *
+     * @param skip 不为null时跳过skip为true的车票
+     */
+    private static void fillAdditions(int[] additions, Ticket[] tickets, int[] order, int from, int to,
+                                      boolean[] skip, int delta) {
+        java.util.Arrays.fill(additions, 0);
+        for (int k = from; k < to; k++) {
+            if (skip != null && skip[order[k]])
+                continue;
+            Ticket ticket = tickets[order[k]];
+            additions[ticket.departure - 1] += delta;
+            if (ticket.arrival - 1 < additions.length)
+                additions[ticket.arrival - 1] -= delta;
+        }
+        for (int j = 1; j < additions.length; j++)
+            additions[j] += additions[j - 1];
+    }
+
     @Override
     public int inquiry(int route, int departure, int arrival) {
-        int result = routes_seats[route - 1].query(departure, arrival);
+        if (inquiry_cache != null)
+            return cachedInquiry(route, departure, arrival);
+        return uncachedInquiry(route, departure, arrival);
+    }
+
+    /**
+     * 先查缓存，未命中时计算；计算前后车次都没有写时，结果就是该版本下的余票，放入缓存
+     */
+    private int cachedInquiry(int route, int departure, int arrival) {
+        int interval = intervals.id(departure, arrival);
+        long version = versions.readBegin(route - 1);
+        int count = inquiry_cache.lookup(route - 1, interval, version);
+        if (count >= 0)
+            return count;
+        inquiry_cache.misses.increment();
+        count = uncachedInquiry(route, departure, arrival);
+        if (version >= 0 && versions.validate(route - 1, version))
+            inquiry_cache.store(route - 1, interval, count, version);
+        else
+            inquiry_cache.uncached.increment();
+        return count;
+    }
+
+    private int uncachedInquiry(int route, int departure, int arrival) {
+        if (!options.consistent_inquiry)
+            return readInquiry(route, departure, arrival);
+        int result = 0;
+        for (int attempt = 0; attempt < CONSISTENT_ATTEMPTS; attempt++) {
+            long version = versions.readBegin(route - 1);
+            if (version < 0) {
+                waitForWriters(attempt);
+                continue;
+            }
+            result = readInquiry(route, departure, arrival);
+            if (versions.validate(route - 1, version))
+                return result;
+            versions.retries.increment();
+        }
+        versions.fallbacks.increment();
         return result;
     }
 
+    private int readInquiry(int route, int departure, int arrival) {
+        if (options.inquiry_mode == TicketingOptions.InquiryMode.COUNTER)
+            return countedInquiry(route, departure, arrival);
+        return routes_seats[route - 1].query(departure, arrival);
+    }
+
+    /**
+     * 区间余票计数由各次修改在座位CAS之后分别加减，有写正在进行时，已经返回的购票可能还没有反映在计数中
+     * （与它重叠的另一次修改先占用了座位，减去的是另一个区间），因此只在车次没有进行中的写、
+     * 读取期间也没有写开始时采用计数，此时所有已完成的修改都已计入；写一直不停时退回扫描座位
+     * 因此COUNTER只在查询远多于写时才比SCAN快，见Test counter模式
+     */
+    private int countedInquiry(int route, int departure, int arrival) {
+        SeatBitMap seats = routes_seats[route - 1];
+        for (int attempt = 0; attempt < COUNTED_ATTEMPTS; attempt++) {
+            long version = versions.readBegin(route - 1);
+            if (version >= 0) {
+                int count = seats.countedQuery(departure, arrival);
+                if (versions.validate(route - 1, version))
+                    return count;
+            }
+            Thread.onSpinWait();
+        }
+        versions.fallbacks.increment();
+        return seats.query(departure, arrival);
+    }
+
+    /**
+     * 某车次所有区间的余票，matrix[departure][arrival]，departure < arrival
+     * 启用consistent_inquiry时所有区间来自同一次没有写并发的读取，否则与inquiryAll相同
+     *
+     * @return (站点数 + 1) * (站点数 + 1) 的矩阵，不合法的区间为0
+     */
+    public int[][] inquirySnapshot(int route) {
+        int[][] matrix = new int[STATION_NUM + 1][STATION_NUM + 1];
+        if (!options.consistent_inquiry) {
+            readMatrix(route, matrix);
+            return matrix;
+        }
+        for (int attempt = 0; attempt < CONSISTENT_ATTEMPTS; attempt++) {
+            long version = versions.readBegin(route - 1);
+            if (version < 0) {
+                waitForWriters(attempt);
+                continue;
+            }
+            readMatrix(route, matrix);
+            if (versions.validate(route - 1, version))
+                return matrix;
+            versions.retries.increment();
+        }
+        versions.fallbacks.increment();
+        return matrix;
+    }
+
+    /**
+     * 有进行中的写时等待：先自旋，多次失败后让出CPU，写者可能正被调度出去
+     */
+    private static void waitForWriters(int attempt) {
+        if (attempt < CONSISTENT_SPINS)
+            Thread.onSpinWait();
+        else
+            Thread.yield();
+    }
+
+    private void readMatrix(int route, int[][] matrix) {
+        if (options.inquiry_mode == TicketingOptions.InquiryMode.COUNTER) {
+            for (int departure = 1; departure < STATION_NUM; departure++) {
+                for (int arrival = departure + 1; arrival <= STATION_NUM; arrival++)
+                    matrix[departure][arrival] = readInquiry(route, departure, arrival);
+            }
+        } else {
+            routes_seats[route - 1].queryAll(matrix);
+        }
+    }
+
+    /**
+     * 某车次所有区间的余票，一次遍历座位得到，不保证各区间来自同一时刻（需要时使用inquirySnapshot）
+     *
+     * @return (站点数 + 1) * (站点数 + 1) 的矩阵，matrix[departure][arrival]，不合法的区间为0
+     */
+    public int[][] inquiryAll(int route) {
+        int[][] matrix = new int[STATION_NUM + 1][STATION_NUM + 1];
+        readMatrix(route, matrix);
+        return matrix;
+    }
+
+    /**
+     * @return {一致读取的重读次数, 放弃一致性或COUNTER查询退回扫描的次数}，没有维护写计数器时为null
+     */
+    long[] consistentReadStats() {
+        return versions == null ? null : new long[]{versions.retries.sum(), versions.fallbacks.sum()};
+    }
+
+    /**
+     * @return {版本一致的命中, 陈旧度范围内的命中, 未命中, 未放入缓存}，未启用inquiry_cache时为null
+     */
+    long[] inquiryCacheStats() {
+        return inquiry_cache == null ? null : new long[]{inquiry_cache.hits.sum(), inquiry_cache.stale_hits.sum(),
+                inquiry_cache.misses.sum(), inquiry_cache.uncached.sum()};
+    }
+
+    /**
+     * @return 当前的日志末尾，未启用日志时为-1
+     */
+    long journalPosition() {
+        return journal == null ? -1 : journal.position();
+    }
+
+    /**
+     * 遍历全部座位得到的余票，作为校验计数结果的基准
+     */
+    int inquiryScan(int route, int departure, int arrival) {
+        return routes_seats[route - 1].scanQuery(departure, arrival);
+    }
+
+    /**
+     * 从历史位置开始遍历得到的余票，与查询方式无关
+     */
+    int inquiryFromHistory(int route, int departure, int arrival) {
+        return routes_seats[route - 1].query(departure, arrival);
+    }
+
+    /**
+     * 某车次的座位占用表，供测试直接驱动
+     */
+    SeatBitMap routeSeats(int route) {
+        return routes_seats[route - 1];
+    }
+
+    /**
+     * 为所有车次的座位占用表启用运行统计，应在并发访问开始前调用
+     *
+     * @return 所有车次共享的统计
+     */
+    SeatMapStats enableStats() {
+        SeatMapStats stats = new SeatMapStats();
+        for (SeatBitMap seats : routes_seats)
+            seats.setStats(stats);
+        return stats;
+    }
+
     @Override
     public boolean refundTicket(Ticket ticket) {
         try {
-            if(routes_seats[ticket.route - 1].recycleSeat(ticket.departure, ticket.arrival,
-                    ticket.coach, ticket.seat))
+            if(recycleSeat(ticket, true))
                 return true;
             else
                 return false;
@@ -226,19 +692,260 @@ public class TicketingDS implements TicketingSystem {
         return false;
     }
 
-    /*
-    we don't need it
+    /**
+     * 重放一次购票：占用车票记录的座位，不写日志，之后生成的tid都大于车票的tid；用于从日志恢复
+     *
+     * @return 座位在该区间空闲并已被占用时返回true
      */
     @Override
     public boolean buyTicketReplay(Ticket ticket) {
-        return false;
+        if (!validTicket(ticket))
+            return false;
+        boolean occupied;
+        beginWrite(ticket.route);
+        try {
+            occupied = routes_seats[ticket.route - 1].occupySeat(ticket.departure, ticket.arrival,
+                    ticket.coach, ticket.seat);
+        } finally {
+            endWrite(ticket.route);
+        }
+        if (!occupied)
+            return false;
+        if (registry != null)
+            registry.register(ticket);
+        if (routes_tickets_num != null)
+            routes_tickets_num[ticket.route - 1].update(ticket.departure - 1, ticket.arrival - 2, -1);
+        id_generator.advancePast(ticket.tid);
+        return true;
     }
 
-    /*
-    we don't need it
+    /**
+     * 重放一次退票：释放车票的座位，不写日志
+     *
+     * @return 座位在该区间确实被占用并已释放时返回true
      */
     @Override
     public boolean refundTicketReplay(Ticket ticket) {
-        return false;
+        if (!validTicket(ticket))
+            return false;
+        try {
+            return recycleSeat(ticket, false);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * 写快照：逐车次在没有写并发时复制座位word，同时记下此刻的日志末尾，
+     * 恢复时各车次只需重放该位置之后的记录；快照写完并落盘后删除不再需要的日志段
+     *
+     * @throws IOException 写快照失败，原有快照与日志不受影响
+     */
+    public void snapshot() throws IOException {
+        if (journal == null)
+            throw new IllegalStateException("未设置journal_dir");
+        synchronized (snapshot_lock) {
+            Path dir = Paths.get(options.journal_dir);
+            Path tmp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+            long[] seat_words = new long[TICKETS_PER_STATION * intervals.words];
+            long min_lsn = Long.MAX_VALUE;
+            try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+                out.writeLong(SNAPSHOT_MAGIC);
+                out.writeInt(ROUTE_NUM);
+                out.writeInt(COACH_NUM);
+                out.writeInt(SEAT_NUM);
+                out.writeInt(STATION_NUM);
+                for (int route = 1; route <= ROUTE_NUM; route++) {
+                    long lsn = copySeatWords(route, seat_words);
+                    min_lsn = Math.min(min_lsn, lsn);
+                    out.writeLong(lsn);
+                    // 在lsn之后读取，不小于快照中所有车票的tid
+                    out.writeLong(journal.maxTid(route));
+                    for (long word : seat_words)
+                        out.writeLong(word);
+                }
+                // 在所有车次的日志位置之后写出，期间并发的购票、退票在恢复时重放，登记与删除都可以重复执行
+                out.writeBoolean(registry != null);
+                if (registry != null)
+                    registry.write(out);
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(tmp, dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+                directory.force(true);
+            } catch (IOException e) {
+                // 部分平台不支持同步目录
+            }
+            journal.deleteBefore(min_lsn);
+        }
+    }
+
+    /**
+     * 在没有写并发的时刻复制车次的座位word，写者很多时重试直到成功
+     *
+     * @return 复制时的日志末尾，之前的记录都已反映在复制的状态中，之后的都没有
+     */
+    private long copySeatWords(int route, long[] seat_words) {
+        SeatBitMap seats = routes_seats[route - 1];
+        int words = intervals.words;
+        for (int attempt = 0; ; attempt++) {
+            long version = versions.readBegin(route - 1);
+            if (version < 0) {
+                waitForWriters(attempt);
+                continue;
+            }
+            long lsn = journal.position();
+            for (int i = 0; i < TICKETS_PER_STATION; i++) {
+                for (int k = 0; k < words; k++)
+                    seat_words[i * words + k] = seats.seatWord(i, k);
+            }
+            if (versions.validate(route - 1, version))
+                return lsn;
+        }
+    }
+
+    /**
+     * 从快照和日志恢复：把各车次快照位置之后的日志记录按顺序叠加到快照的座位word上，
+     * 再一次性占用最终状态中的座位，最后从有效日志的末尾继续追加
+     * 逐条经buyTicketReplay/refundTicketReplay重放时，每次退票都要下调O(站点数^2)个区间的历史位置，
+     * 而恢复期间历史位置都为0，因此直接在座位word上叠加，结果与逐条重放相同
+     */
+    private void recover(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        int words = intervals.words;
+        long[][] image = new long[ROUTE_NUM][TICKETS_PER_STATION * words];
+        long[] lsn = new long[ROUTE_NUM];
+        long[] max_tid = new long[ROUTE_NUM];
+        java.util.Arrays.fill(max_tid, -1);
+        Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot))
+            loadSnapshot(snapshot, lsn, max_tid, image);
+        long from = Long.MAX_VALUE;
+        for (long l : lsn)
+            from = Math.min(from, l);
+        long end = TicketJournal.scan(dir, ROUTE_NUM == 0 ? 0 : from, (offset, type, ticket) -> {
+            if (!validTicket(ticket) || offset < lsn[ticket.route - 1] || ticket.coach < 1 || ticket.coach > COACH_NUM
+                    || ticket.seat < 1 || ticket.seat > SEAT_NUM)
+                return;
+            long[] seats = image[ticket.route - 1];
+            int slot = ((ticket.coach - 1) * SEAT_NUM + ticket.seat - 1) * words;
+            int interval = intervals.id(ticket.departure, ticket.arrival);
+            boolean buy = type == TicketJournal.BUY;
+            // 与replay方法一致：购票要求区间内全部空闲，退票要求全部占用，否则忽略该记录
+            for (int k = 0; k < words; k++) {
+                long mask = intervals.wordMask(interval, k);
+                if ((seats[slot + k] & mask) != (buy ? 0 : mask))
+                    return;
+            }
+            for (int k = 0; k < words; k++)
+                seats[slot + k] ^= intervals.wordMask(interval, k);
+            if (buy)
+                max_tid[ticket.route - 1] = Math.max(max_tid[ticket.route - 1], ticket.tid);
+            if (registry != null) {
+                if (buy)
+                    registry.register(ticket);
+                else
+                    registry.remove(ticket);
+            }
+        });
+        for (int route = 1; route <= ROUTE_NUM; route++)
+            occupyImage(route, image[route - 1]);
+        journal = new TicketJournal(dir, end, options.journal_fsync, ROUTE_NUM);
+        for (int route = 1; route <= ROUTE_NUM; route++) {
+            if (max_tid[route - 1] >= 0) {
+                journal.noteTid(route, max_tid[route - 1]);
+                id_generator.advancePast(max_tid[route - 1]);
+            }
+        }
+    }
+
+    /**
+     * 读取快照中各车次的日志位置、最大tid与座位word，以及已售车票表
+     */
+    private void loadSnapshot(Path file, long[] lsn, long[] max_tid, long[][] image) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readLong() != SNAPSHOT_MAGIC)
+                throw new IOException("不是快照文件: " + file);
+            if (in.readInt() != ROUTE_NUM || in.readInt() != COACH_NUM || in.readInt() != SEAT_NUM
+                    || in.readInt() != STATION_NUM)
+                throw new IOException("快照的车次、车厢、座位或站点数与当前配置不一致");
+            for (int route = 1; route <= ROUTE_NUM; route++) {
+                lsn[route - 1] = in.readLong();
+                max_tid[route - 1] = in.readLong();
+                long[] seats = image[route - 1];
+                for (int i = 0; i < seats.length; i++)
+                    seats[i] = in.readLong();
+            }
+            boolean has_registry = in.readBoolean();
+            if (registry != null) {
+                if (!has_registry)
+                    throw new IOException("快照中没有已售车票表，无法启用ticket_registry");
+                registry.read(in);
+            }
+        }
+    }
+
+    /**
+     * 按座位word占用座位：每个座位的每段连续占用区段占用一次，余票上界每车次更新一次
+     */
+    private void occupyImage(int route, long[] image) {
+        int words = intervals.words;
+        int[] additions = new int[ranges + 1];
+        SeatBitMap seats = routes_seats[route - 1];
+        for (int i = 0; i < TICKETS_PER_STATION; i++) {
+            for (int k = 0; k < words; k++) {
+                long word = image[i * words + k];
+                while (word != 0) {
+                    int low = Long.numberOfTrailingZeros(word);
+                    int high = Math.min(64, low + Long.numberOfTrailingZeros(~(word >>> low)));
+                    seats.occupySeat((k << 6) + low + 1, (k << 6) + high + 1, i / SEAT_NUM + 1, i % SEAT_NUM + 1);
+                    additions[(k << 6) + low]--;
+                    additions[(k << 6) + high]++;
+                    word = high == 64 ? 0 : word & (-1L << high);
+                }
+            }
+        }
+        if (routes_tickets_num != null) {
+            for (int j = 1; j < ranges; j++)
+                additions[j] += additions[j - 1];
+            routes_tickets_num[route - 1].update(java.util.Arrays.copyOf(additions, ranges));
+        }
+    }
+
+    private void startSnapshots(long interval_ms) {
+        snapshot_thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(interval_ms);
+                    snapshot();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "ticket-snapshot");
+        snapshot_thread.setDaemon(true);
+        snapshot_thread.start();
+    }
+
+    /**
+     * 停止后台快照并把日志落盘，未启用日志时什么也不做
+     */
+    @Override
+    public void close() {
+        if (snapshot_thread != null) {
+            snapshot_thread.interrupt();
+            try {
+                snapshot_thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (journal != null)
+            journal.close();
     }
 }
@@ -0,0 +1,127 @@
+package ticketingsystem;
+
+/**
+ * TicketingDS 的可选配置，默认值与原有实现保持一致
+ */
+public class TicketingOptions implements Cloneable {
+
+    public enum InquiryMode {
+        // 从历史位置开始遍历座位统计余票
+        SCAN,
+        // 直接读取买票/退票时增量维护的区间余票计数；计数在车次没有进行中的写时读取，
+        // 启用时自动维护每车次的写计数器，写一直不停时退回SCAN
+        // 面向以查询为主的负载：每次购票、退票要加减所有余票因此变化的区间（O(站点数^2)）的计数，
+        // 另加两次写计数器的原子操作，写的开销约为SCAN的两倍，有写并发时查询也不保证O(1)
+        COUNTER
+    }
+
+    public enum SeatLayout {
+        // 每个座位一个word，bit对应区段
+        SEAT_MAJOR,
+        // 每个区段一组word，bit对应座位
+        SEGMENT_MAJOR
+    }
+
+    public enum SeatPadding {
+        // 座位word紧密排列
+        NONE,
+        // 每个座位独占一个64字节缓存行，避免热点座位间的伪共享
+        CACHE_LINE
+    }
+
+    public enum RouteLayout {
+        // 各车次的历史位置、售完标记等依次分配，座位word紧接着上一车次，相邻车次可能共享缓存行
+        SCATTERED,
+        // 每车次的热点状态各自放在前后留出一个缓存行的块中；座位word按亲和分片分块存储，
+        // 各分片的存储与座位占用表由各自的线程分配（在-XX:+UseNUMA下位于该线程所在节点的内存）
+        PADDED
+    }
+
+    public enum IdStrategy {
+        // 单个64位全局计数器
+        GLOBAL,
+        // 每个线程从全局计数器成块领取
+        THREAD_BLOCK,
+        // 车次编码在高位，每个车次独立计数
+        ROUTE_SEQUENCE
+    }
+
+    public enum AllocationPolicy {
+        // 所有线程从区间的历史位置开始找第一个空闲座位
+        FIRST_FIT,
+        // 各线程从历史位置之后不同的缓存行开始找，找不到时再回到历史位置
+        THREAD_OFFSET,
+        // 座位分为若干段，各线程先在自己的段内按段内历史位置查找
+        STRIPED,
+        // 按座位的极大连续空闲区段分桶，优先占用放入后两侧剩下零散区段最少的座位，减少长区间因碎片买不到票
+        BEST_FIT
+    }
+
+    public enum Transport {
+        // 同一JVM内通过队列把请求交给分片的工作线程
+        LOCAL,
+        // 每个分片监听一个本机回环端口，请求经socket发送
+        LOOPBACK
+    }
+
+    // 余票查询方式
+    InquiryMode inquiry_mode = InquiryMode.SCAN;
+    // 座位占用表布局
+    SeatLayout seat_layout = SeatLayout.SEAT_MAJOR;
+    // 座位主序布局下座位word的填充方式
+    SeatPadding seat_padding = SeatPadding.NONE;
+    // 车票tid的生成方式
+    IdStrategy id_strategy = IdStrategy.GLOBAL;
+    // THREAD_BLOCK方式下每次领取的tid数
+    int id_block_size = 1024;
+    // 购票前用各区段余票的上界（线段树区间最小值）判断是否已售完，售完时不扫描座位
+    boolean availability_precheck = false;
+    // 记录扫描后发现售完的区间，在有座位释放之前的购票不再扫描
+    boolean sold_out_flags = false;
+    // 座位主序单word布局下维护每64个座位一块的空闲座位摘要，座位数很多时购票可以跳过已满的块
+    boolean free_seat_summary = false;
+    // 座位主序单word布局下的座位分配策略
+    AllocationPolicy allocation_policy = AllocationPolicy.FIRST_FIT;
+    // 每车次维护写计数器，余票查询在没有写并发时读取，得到某一时刻的一致结果；购票、退票各多两次原子操作
+    boolean consistent_inquiry = false;
+    // ShardedTicketingSystem访问各分片的方式
+    Transport shard_transport = Transport.LOCAL;
+    // 预写日志与快照所在的目录，为null时不记录日志；目录中已有日志时构造TicketingDS会先恢复其中的状态
+    // 启用日志时自动维护每车次的写计数器，用于写快照
+    String journal_dir = null;
+    // 购票、退票返回前等待日志落盘（多个线程共享一次force）；为false时只保证JVM崩溃后不丢失
+    boolean journal_fsync = true;
+    // 后台写快照的间隔（毫秒），为0时只在调用snapshot时写
+    long snapshot_interval_ms = 0;
+    // 缓存余票查询结果，车次没有购票、退票时直接返回；启用时自动维护每车次的写计数器
+    boolean inquiry_cache = false;
+    // 每车次缓存的区间数
+    int inquiry_cache_entries = 64;
+    // 允许返回的缓存结果的最大陈旧度（微秒），在此范围内即使车次已被修改也不重新计算；为0时只返回最新结果
+    long inquiry_staleness_us = 0;
+    // 维护服务端的已售车票表，退票时校验车票确实售出且未退过，拒绝伪造和重复的退票
+    boolean ticket_registry = false;
+    // 车次热点状态的内存布局，PADDED只支持座位主序布局
+    RouteLayout route_layout = RouteLayout.SCATTERED;
+    // 车次按编号连续分为若干亲和分片，线程按车次映射到分片；为0时取可用处理器数，不超过车次数
+    int affinity_shards = 0;
+
+    public TicketingOptions() {
+
+    }
+
+    public TicketingOptions(InquiryMode inquiry_mode) {
+        this.inquiry_mode = inquiry_mode;
+    }
+
+    /**
+     * @return 各项取值相同的副本，用于按分片修改其中的某些项
+     */
+    TicketingOptions copy() {
+        try {
+            return (TicketingOptions) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
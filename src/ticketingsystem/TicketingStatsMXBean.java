@@ -0,0 +1,23 @@
+package ticketingsystem;
+
+import java.util.Map;
+
+/**
+ * InstrumentedTicketingSystem通过JMX暴露的统计，每次读取都会合并一次各线程的记录
+ */
+public interface TicketingStatsMXBean {
+    /**
+     * @return 各操作的调用次数，键为操作名，另有 buyTicket.soldOut 表示无票的购票次数、buyTickets.soldOut 表示余票不足的批量购票次数
+     */
+    Map<String, Long> getOperationCounts();
+
+    /**
+     * @return 各操作的延迟（纳秒），键为 操作名.p50 / .p99 / .p999 / .max
+     */
+    Map<String, Long> getLatencyNanos();
+
+    /**
+     * @return 座位占用表内部的计数以及余票缓存的命中统计，被包装的不是TicketingDS时为空
+     */
+    Map<String, Long> getSeatMapCounters();
+}
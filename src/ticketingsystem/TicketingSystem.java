@@ -11,9 +11,60 @@ class Ticket{
 }
 
 public interface TicketingSystem {
+	// 团体购票的座位偏好，无法满足时退回任意座位
+	enum SeatPreference {
+		NONE,
+		// 同一车厢内座位号连续
+		ADJACENT,
+		// 同一车厢
+		SAME_COACH
+	}
+
 	Ticket buyTicket(String passenger, int route, int departure, int arrival);
 	int inquiry(int route, int departure, int arrival);
 	boolean refundTicket(Ticket ticket);
 	boolean buyTicketReplay(Ticket ticket);
 	boolean refundTicketReplay(Ticket ticket);
+
+	default Ticket[] buyTickets(String[] passengers, int route, int departure, int arrival, int count) {
+		return buyTickets(passengers, route, departure, arrival, count, SeatPreference.NONE);
+	}
+
+	/**
+	 * 团体购票，全部买到或全部不买
+	 *
+	 * @param passengers 乘客，第i张车票属于passengers[i]，长度不小于count
+	 * @param count      车票数
+	 * @param preference 座位偏好
+	 * @return count张车票，余票不足时为null
+	 */
+	default Ticket[] buyTickets(String[] passengers, int route, int departure, int arrival, int count,
+								SeatPreference preference) {
+		if (count <= 0 || passengers.length < count)
+			throw new IllegalArgumentException("乘客数少于车票数");
+		Ticket[] tickets = new Ticket[count];
+		for (int i = 0; i < count; i++) {
+			tickets[i] = buyTicket(passengers[i], route, departure, arrival);
+			if (tickets[i] == null) {
+				for (int j = 0; j < i; j++)
+					refundTicket(tickets[j]);
+				return null;
+			}
+		}
+		return tickets;
+	}
+
+	/**
+	 * 批量退票，每张车票独立处理
+	 *
+	 * @return 成功退票的张数
+	 */
+	default int refundTickets(Ticket[] tickets) {
+		int refunded = 0;
+		for (Ticket ticket : tickets) {
+			if (refundTicket(ticket))
+				refunded++;
+		}
+		return refunded;
+	}
 }
@@ -40,7 +40,218 @@ public class Trace {
 		return "passenger" + uid; 
 	}
 
+	/**
+	 * 多线程运行并记录每个操作的调用与返回时间，运行期间不输出，避免System.out的锁使各线程串行
+	 *
+	 * @return 所有线程的操作，按调用时间排序
+	 */
+	static List<HistoryChecker.Operation> record(final int threadnum, final int testnum) throws InterruptedException {
+		return record(new TicketingOptions(), threadnum, testnum, routenum, coachnum, seatnum, stationnum);
+	}
+
+	/**
+	 * 按给定的配置与规模构造TicketingDS后记录历史
+	 */
+	static List<HistoryChecker.Operation> record(TicketingOptions options, final int threadnum, final int testnum,
+			final int routenum, int coachnum, int seatnum, final int stationnum) throws InterruptedException {
+		Thread[] threads = new Thread[threadnum];
+		final TicketingDS tds = new TicketingDS(routenum, coachnum, seatnum, stationnum, threadnum, options);
+		final List<List<HistoryChecker.Operation>> histories = new ArrayList<List<HistoryChecker.Operation>>();
+		for (int i = 0; i < threadnum; i++)
+			histories.add(new ArrayList<HistoryChecker.Operation>(testnum));
+
+		for (int i = 0; i < threadnum; i++) {
+			final List<HistoryChecker.Operation> history = histories.get(i);
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					Random rand = new Random();
+					ArrayList<Ticket> soldTicket = new ArrayList<Ticket>();
+					int thread = ThreadId.get();
+					for (int i = 0; i < testnum; i++) {
+						int sel = rand.nextInt(inqpc);
+						HistoryChecker.Operation op = new HistoryChecker.Operation();
+						op.thread = thread;
+						if (0 <= sel && sel < retpc && soldTicket.size() > 0) { // return ticket
+							Ticket ticket = soldTicket.remove(rand.nextInt(soldTicket.size()));
+							op.invoke = System.nanoTime();
+							boolean refunded = tds.refundTicket(ticket);
+							op.response = System.nanoTime();
+							op.type = refunded ? HistoryChecker.REFUND : HistoryChecker.REFUND_FAILED;
+							fill(op, ticket);
+						} else if (retpc <= sel && sel < buypc) { // buy ticket
+							String passenger = passengerName();
+							int route = rand.nextInt(routenum) + 1;
+							int departure = rand.nextInt(stationnum - 1) + 1;
+							int arrival = departure + rand.nextInt(stationnum - departure) + 1; // arrival is always greater than departure
+							op.invoke = System.nanoTime();
+							Ticket ticket = tds.buyTicket(passenger, route, departure, arrival);
+							op.response = System.nanoTime();
+							if (ticket != null) {
+								soldTicket.add(ticket);
+								op.type = HistoryChecker.BUY;
+								fill(op, ticket);
+							} else {
+								op.type = HistoryChecker.SOLD_OUT;
+								op.route = route;
+								op.departure = departure;
+								op.arrival = arrival;
+							}
+						} else { // inquiry ticket
+							int route = rand.nextInt(routenum) + 1;
+							int departure = rand.nextInt(stationnum - 1) + 1;
+							int arrival = departure + rand.nextInt(stationnum - departure) + 1; // arrival is always greater than departure
+							op.invoke = System.nanoTime();
+							op.left = tds.inquiry(route, departure, arrival);
+							op.response = System.nanoTime();
+							op.type = HistoryChecker.INQUIRY;
+							op.route = route;
+							op.departure = departure;
+							op.arrival = arrival;
+						}
+						history.add(op);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (int i = 0; i < threadnum; i++) {
+			threads[i].join();
+		}
+
+		List<HistoryChecker.Operation> result = new ArrayList<HistoryChecker.Operation>();
+		for (List<HistoryChecker.Operation> history : histories)
+			result.addAll(history);
+		result.sort(Comparator.comparingLong(op -> op.invoke));
+		return result;
+	}
+
+	private static void fill(HistoryChecker.Operation op, Ticket ticket) {
+		op.tid = ticket.tid;
+		op.passenger = ticket.passenger;
+		op.route = ticket.route;
+		op.coach = ticket.coach;
+		op.seat = ticket.seat;
+		op.departure = ticket.departure;
+		op.arrival = ticket.arrival;
+	}
+
+	/**
+	 * 解析 名称=值 形式的配置项，名称与jmh中RouteParams的@Param一致：
+	 * layout inquiry policy precheck flags summary padding consistent cache registry route_layout
+	 */
+	static TicketingOptions parseOptions(String[] args, int from) {
+		TicketingOptions options = new TicketingOptions();
+		for (int i = from; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("配置项应为 名称=值: " + args[i]);
+			String name = args[i].substring(0, eq), value = args[i].substring(eq + 1);
+			switch (name) {
+				case "layout": options.seat_layout = TicketingOptions.SeatLayout.valueOf(value); break;
+				case "inquiry": options.inquiry_mode = TicketingOptions.InquiryMode.valueOf(value); break;
+				case "policy": options.allocation_policy = TicketingOptions.AllocationPolicy.valueOf(value); break;
+				case "precheck": options.availability_precheck = Boolean.parseBoolean(value); break;
+				case "flags": options.sold_out_flags = Boolean.parseBoolean(value); break;
+				case "summary": options.free_seat_summary = Boolean.parseBoolean(value); break;
+				case "padding": options.seat_padding = TicketingOptions.SeatPadding.valueOf(value); break;
+				case "consistent": options.consistent_inquiry = Boolean.parseBoolean(value); break;
+				case "cache": options.inquiry_cache = Boolean.parseBoolean(value); break;
+				case "registry": options.ticket_registry = Boolean.parseBoolean(value); break;
+				case "route_layout": options.route_layout = TicketingOptions.RouteLayout.valueOf(value); break;
+				default: throw new IllegalArgumentException("未知的配置项: " + name);
+			}
+		}
+		return options;
+	}
+
+	/**
+	 * 各种布局、查询方式与分配策略的组合，每个组合是一组 名称=值
+	 */
+	static List<String[]> optionMatrix() {
+		List<String[]> combos = new ArrayList<String[]>();
+		for (TicketingOptions.AllocationPolicy policy : TicketingOptions.AllocationPolicy.values()) {
+			combos.add(new String[]{"layout=SEAT_MAJOR", "inquiry=SCAN", "policy=" + policy});
+			combos.add(new String[]{"layout=SEAT_MAJOR", "inquiry=COUNTER", "policy=" + policy});
+		}
+		combos.add(new String[]{"layout=SEGMENT_MAJOR", "inquiry=SCAN"});
+		combos.add(new String[]{"layout=SEAT_MAJOR", "precheck=true", "flags=true"});
+		combos.add(new String[]{"layout=SEAT_MAJOR", "summary=true", "padding=CACHE_LINE"});
+		combos.add(new String[]{"layout=SEGMENT_MAJOR", "precheck=true", "flags=true"});
+		combos.add(new String[]{"layout=SEAT_MAJOR", "consistent=true"});
+		combos.add(new String[]{"layout=SEAT_MAJOR", "cache=true", "registry=true"});
+		combos.add(new String[]{"layout=SEAT_MAJOR", "route_layout=PADDED"});
+		return combos;
+	}
+
+	/**
+	 * 对每种站点数与optionMatrix中的每个组合记录并检查历史，不支持的组合跳过
+	 *
+	 * @return 全部通过
+	 */
+	static boolean checkMatrix(int threads, int operations, int routes, int coaches, int seats) throws InterruptedException {
+		boolean passed = true;
+		for (int stations : new int[]{3, 10, 80}) {
+			for (String[] combo : optionMatrix()) {
+				String label = "stations=" + stations + " " + String.join(" ", combo);
+				List<HistoryChecker.Operation> history;
+				try {
+					history = record(parseOptions(combo, 0), threads, operations, routes, coaches, seats, stations);
+				} catch (IllegalArgumentException e) {
+					System.out.println(label + ": skipped, " + e.getMessage());
+					continue;
+				}
+				System.out.print(label + ": ");
+				passed &= HistoryChecker.report(new HistoryChecker(routes, coaches, seats, stations), history);
+			}
+		}
+		return passed;
+	}
+
+	/**
+	 * 无参数时与原来一样单线程运行并逐行输出
+	 * history [threadnum] [testnum] [routenum coachnum seatnum stationnum] [名称=值 ...]：
+	 *   多线程运行，输出带调用/返回时间的历史，可交给HistoryChecker检查
+	 * check [threadnum] [testnum] [routenum coachnum seatnum stationnum] [名称=值 ...]：多线程运行后直接检查历史
+	 * matrix [threadnum] [testnum] [routenum coachnum seatnum]：对各种配置组合与站点数运行check
+	 */
 	public static void main(String[] args) throws InterruptedException {
+		if (args.length > 0 && args[0].equals("matrix")) {
+			int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+			int operations = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+			int routes = args.length > 5 ? Integer.parseInt(args[3]) : 2;
+			int coaches = args.length > 5 ? Integer.parseInt(args[4]) : 2;
+			int seats = args.length > 5 ? Integer.parseInt(args[5]) : 4;
+			if (!checkMatrix(threads, operations, routes, coaches, seats))
+				System.exit(1);
+			return;
+		}
+		if (args.length > 0 && (args[0].equals("history") || args[0].equals("check"))) {
+			// 名称=值之前的参数依次为线程数、每线程操作数以及车次、车厢、座位、站点数
+			int from = 1;
+			while (from < args.length && !args[from].contains("="))
+				from++;
+			int threads = from > 1 ? Integer.parseInt(args[1]) : 16;
+			int operations = from > 2 ? Integer.parseInt(args[2]) : testnum;
+			int routes = routenum, coaches = coachnum, seats = seatnum, stations = stationnum;
+			if (from > 6) {
+				routes = Integer.parseInt(args[3]);
+				coaches = Integer.parseInt(args[4]);
+				seats = Integer.parseInt(args[5]);
+				stations = Integer.parseInt(args[6]);
+			}
+			TicketingOptions options = parseOptions(args, from);
+			List<HistoryChecker.Operation> history = record(options, threads, operations, routes, coaches, seats, stations);
+			if (args[0].equals("history")) {
+				StringBuilder sb = new StringBuilder();
+				for (HistoryChecker.Operation op : history)
+					sb.append(op.toLine()).append('\n');
+				System.out.print(sb);
+				System.out.flush();
+			} else if (!HistoryChecker.report(new HistoryChecker(routes, coaches, seats, stations), history)) {
+				System.exit(1);
+			}
+			return;
+		}
         
 		 
 		Thread[] threads = new Thread[threadnum];